@@ -0,0 +1,330 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.AsyncMultiDataSetIterator;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Periodic checkpoints of a ComputationGraph while it is trained. Every
+ * frequency batches, the parameters, updater state, epoch and iteration counts
+ * and the position of the training iterator within the epoch are copied on the
+ * training thread; a background thread writes them with ModelSerializer to a
+ * temporary file, renames it atomically to checkpoint-ITERATION.zip and
+ * deletes all but the last keep checkpoints. A checkpoint is skipped while the
+ * previous one is still being written, so training never waits.
+ *
+ * Usage: <code>checkpointer.resume(model)</code> (if a checkpoint exists) or
+ * <code>checkpointer.clear()</code> (to start over), <code>model.fit(checkpointer.track(model, iterator))</code> for the remaining
+ * epochs, <code>checkpointer.finish()</code>. The tracking iterator snapshots
+ * between batches, so it prefetches batches itself rather than letting DL4J do
+ * it, and after a resume it skips the batches of the epoch trained already.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class AsyncCheckpointer {
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncCheckpointer.class);
+
+	private static final Pattern CHECKPOINT_NAME = Pattern.compile("checkpoint-(\\d+)\\.zip");
+	private static final Pattern TEMPORARY_NAME = Pattern.compile("checkpoint-(\\d+)\\.zip\\.tmp");
+	private static final String POSITION_KEY = "iteratorPosition";
+
+	private final File directory;
+	private final int frequency;
+	private final int keep;
+
+	private final ExecutorService executor;
+	private ComputationGraph shadow;
+	private Future<?> pending;
+	private int resumePosition;
+
+	private AsyncCheckpointer(Builder builder) {
+		this.directory = builder.directory;
+		this.frequency = builder.frequency;
+		this.keep = builder.keep;
+
+		this.directory.mkdirs();
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "AsyncCheckpointer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.resumePosition = 0;
+	}
+
+	/**
+	 * Loads parameters, updater state and epoch and iteration counts of the latest
+	 * checkpoint into model. The next tracked iterator skips the batches trained
+	 * already in the interrupted epoch.
+	 *
+	 * @return true if there was a checkpoint to resume from
+	 */
+	public boolean resume(ComputationGraph model) throws IOException {
+		File latest = this.latestCheckpoint();
+		if (latest == null) {
+			return false;
+		}
+		ComputationGraph restored = ModelSerializer.restoreComputationGraph(latest, true);
+		model.setParams(restored.params());
+		if (restored.getUpdater() != null && restored.getUpdater().getStateViewArray() != null) {
+			model.getUpdater().getStateViewArray().assign(restored.getUpdater().getStateViewArray());
+		}
+		model.getConfiguration().setEpochCount(restored.getConfiguration().getEpochCount());
+		model.getConfiguration().setIterationCount(restored.getConfiguration().getIterationCount());
+		Integer position = ModelSerializer.getObjectFromFile(latest, POSITION_KEY);
+		if (position == null) {
+			log.warn("AsyncCheckpointer: {} has no iterator position, resuming at the start of the epoch", latest);
+		}
+		this.resumePosition = position == null ? 0 : position;
+
+		log.info("> Resuming from {}: epoch {}, iteration {}, batch {} of the epoch", latest.getAbsolutePath(),
+				model.getConfiguration().getEpochCount(), model.getConfiguration().getIterationCount(),
+				this.resumePosition);
+		return true;
+	}
+
+	/**
+	 * Deletes the checkpoints (and unfinished temporary files) of a previous run,
+	 * so a run that does not resume neither mixes its checkpoints with them nor is
+	 * later resumed from one of them.
+	 */
+	public void clear() throws IOException {
+		File[] files = this.directory.listFiles((dir, name) -> CHECKPOINT_NAME.matcher(name).matches()
+				|| TEMPORARY_NAME.matcher(name).matches());
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			Files.delete(file.toPath());
+		}
+		if (files.length > 0) {
+			log.info("> Deleted {} checkpoints of a previous run in {}", files.length,
+					this.directory.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return an iterator over the batches of data that checkpoints model every
+	 *         frequency batches
+	 */
+	public MultiDataSetIterator track(ComputationGraph model, MultiDataSetIterator data) {
+		int skip = this.resumePosition;
+		this.resumePosition = 0;
+		return new TrackingIterator(model, data, skip);
+	}
+
+	/**
+	 * Waits for the checkpoint being written and stops the background thread.
+	 */
+	public void finish() throws InterruptedException {
+		this.executor.shutdown();
+		this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private void snapshot(ComputationGraph model, int position) {
+		if (this.pending != null && !this.pending.isDone()) {
+			log.info("Checkpoint at batch {} skipped, the previous one is still being written", position);
+			return;
+		}
+
+		int epoch = model.getConfiguration().getEpochCount();
+		int iteration = model.getConfiguration().getIterationCount();
+		INDArray params;
+		INDArray updaterState;
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			params = model.params().dup();
+			INDArray state = model.getUpdater().getStateViewArray();
+			updaterState = state == null ? null : state.dup();
+			if (this.shadow == null) {
+				this.shadow = model.clone();
+			}
+		}
+
+		this.pending = this.executor.submit(() -> {
+			try {
+				this.shadow.setParams(params);
+				if (updaterState != null) {
+					this.shadow.getUpdater().getStateViewArray().assign(updaterState);
+				}
+				this.shadow.getConfiguration().setEpochCount(epoch);
+				this.shadow.getConfiguration().setIterationCount(iteration);
+				this.write(iteration, position);
+			} catch (IOException | RuntimeException e) {
+				log.error("Writing the checkpoint of iteration " + iteration + " failed", e);
+			}
+		});
+	}
+
+	private void write(int iteration, int position) throws IOException {
+		File checkpoint = new File(this.directory, "checkpoint-" + iteration + ".zip");
+		File temporary = new File(this.directory, checkpoint.getName() + ".tmp");
+		ModelSerializer.writeModel(this.shadow, temporary, true);
+		ModelSerializer.addObjectToFile(temporary, POSITION_KEY, position);
+		Files.move(temporary.toPath(), checkpoint.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		log.info("Checkpoint {} written (batch {} of epoch {})", checkpoint.getAbsolutePath(), position,
+				this.shadow.getConfiguration().getEpochCount());
+
+		File[] checkpoints = this.checkpoints();
+		for (int i = 0; i < checkpoints.length - this.keep; i++) {
+			Files.delete(checkpoints[i].toPath());
+		}
+	}
+
+	/**
+	 * @return the checkpoints in the directory, oldest first
+	 */
+	private File[] checkpoints() {
+		File[] checkpoints = this.directory.listFiles((dir, name) -> CHECKPOINT_NAME.matcher(name).matches());
+		if (checkpoints == null) {
+			return new File[0];
+		}
+		Arrays.sort(checkpoints, Comparator.comparingLong(AsyncCheckpointer::iterationOf));
+		return checkpoints;
+	}
+
+	private File latestCheckpoint() {
+		File[] checkpoints = this.checkpoints();
+		return checkpoints.length == 0 ? null : checkpoints[checkpoints.length - 1];
+	}
+
+	private static long iterationOf(File checkpoint) {
+		Matcher matcher = CHECKPOINT_NAME.matcher(checkpoint.getName());
+		matcher.matches();
+		return Long.parseLong(matcher.group(1));
+	}
+
+	/**
+	 * Counts the batches handed to the model within the epoch. A call to next
+	 * means the previous batch is trained, which is where a snapshot is consistent
+	 * (also with truncated BPTT, which runs several iterations per batch).
+	 */
+	private class TrackingIterator implements MultiDataSetIterator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ComputationGraph model;
+		private final MultiDataSetIterator data;
+		private int position;
+		private int skip;
+
+		private TrackingIterator(ComputationGraph model, MultiDataSetIterator data, int skip) {
+			this.model = model;
+			this.data = data.asyncSupported() ? new AsyncMultiDataSetIterator(data, 2) : data;
+			this.position = 0;
+			this.skip = skip;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (this.skip > 0 && this.data.hasNext()) {
+				this.data.next();
+				this.position++;
+				this.skip--;
+			}
+			return this.data.hasNext();
+		}
+
+		@Override
+		public MultiDataSet next() {
+			this.hasNext();
+			if (this.position > 0 && this.position % AsyncCheckpointer.this.frequency == 0) {
+				AsyncCheckpointer.this.snapshot(this.model, this.position);
+			}
+			this.position++;
+			return this.data.next();
+		}
+
+		@Override
+		public MultiDataSet next(int num) {
+			throw new UnsupportedOperationException("Not implemented");
+		}
+
+		@Override
+		public void reset() {
+			this.data.reset();
+			this.position = 0;
+			this.skip = 0;
+		}
+
+		@Override
+		public boolean resetSupported() {
+			return this.data.resetSupported();
+		}
+
+		@Override
+		public boolean asyncSupported() {
+			return false;
+		}
+
+		@Override
+		public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+			this.data.setPreProcessor(preProcessor);
+		}
+
+		@Override
+		public MultiDataSetPreProcessor getPreProcessor() {
+			return this.data.getPreProcessor();
+		}
+	}
+
+	public static class Builder {
+
+		private final File directory;
+		private int frequency = 500;
+		private int keep = 3;
+
+		/**
+		 * @param directory where the checkpoints are written
+		 */
+		public Builder(File directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * Number of batches between checkpoints. Defaults to 500.
+		 */
+		public Builder frequency(int frequency) {
+			this.frequency = frequency;
+			return this;
+		}
+
+		/**
+		 * Number of checkpoints to keep, older ones are deleted. Defaults to 3.
+		 */
+		public Builder keep(int keep) {
+			this.keep = keep;
+			return this;
+		}
+
+		public AsyncCheckpointer build() {
+			return new AsyncCheckpointer(this);
+		}
+	}
+
+}
@@ -0,0 +1,233 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Evaluates a network without pausing training: at the end of every epoch the
+ * parameters are copied, and a separate thread evaluates the test set on its
+ * own clone of the network while training continues. Results are logged when
+ * they are ready. Optionally, a fixed stratified sample of the test set (the
+ * same number of examples per class) is evaluated every N iterations for cheap
+ * progress tracking; a sample evaluation is skipped if the previous one is
+ * still running.
+ *
+ * Works for MultiLayerNetwork and ComputationGraph. The test iterator is used
+ * by the evaluation thread only, so call {@link #finish()} before using it
+ * otherwise.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class AsyncEvaluationListener extends BaseTrainingListener {
+
+	private static final Logger log = LoggerFactory.getLogger(AsyncEvaluationListener.class);
+
+	private final DataSetIterator testData;
+	private final int sampleFrequency;
+	private final int samplePerClass;
+
+	private final ExecutorService executor;
+	private Model evaluationModel;
+	private DataSet sample;
+	private Future<?> pendingSample;
+	private volatile Evaluation lastEvaluation;
+	private int epoch;
+
+	private AsyncEvaluationListener(Builder builder) {
+		this.testData = builder.testData;
+		this.sampleFrequency = builder.sampleFrequency;
+		this.samplePerClass = builder.samplePerClass;
+
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "AsyncEvaluationListener");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.epoch = 0;
+	}
+
+	@Override
+	public void onEpochEnd(Model model) {
+		this.submit(model, "epoch " + this.epoch++, false);
+	}
+
+	@Override
+	public void iterationDone(Model model, int iteration, int epoch) {
+		if (this.sampleFrequency > 0 && iteration > 0 && iteration % this.sampleFrequency == 0) {
+			if (this.pendingSample != null && !this.pendingSample.isDone()) {
+				log.debug("Sample evaluation at iteration {} skipped, the previous one is still running", iteration);
+				return;
+			}
+			this.pendingSample = this.submit(model, "iteration " + iteration, true);
+		}
+	}
+
+	/**
+	 * Waits for the pending evaluations and stops the evaluation thread.
+	 *
+	 * @return the evaluation of the last epoch, or null if there was none
+	 */
+	public Evaluation finish() throws InterruptedException {
+		this.executor.shutdown();
+		this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		return this.lastEvaluation;
+	}
+
+	/**
+	 * @return the evaluation of the last epoch finished so far, or null
+	 */
+	public Evaluation getLastEvaluation() {
+		return this.lastEvaluation;
+	}
+
+	private Future<?> submit(Model model, String snapshot, boolean onSample) {
+		INDArray params;
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			params = model.params().dup();
+			if (this.evaluationModel == null) {
+				this.evaluationModel = AsyncEvaluationListener.cloneModel(model);
+			}
+		}
+		return this.executor.submit(() -> {
+			try {
+				this.evaluationModel.setParams(params);
+				if (onSample) {
+					DataSet sample = this.getSample();
+					Evaluation eval = this.evaluate(new ListDataSetIterator<DataSet>(sample.asList(),
+							this.testData.batch()));
+					log.info("> Sample evaluation after {} ({} examples): accuracy {}, F1 {}", snapshot,
+							sample.numExamples(), eval.accuracy(), eval.f1());
+				} else {
+					this.testData.reset();
+					Evaluation eval = this.evaluate(this.testData);
+					log.info("> Evaluation after {}:\n{}", snapshot, eval.stats());
+					this.lastEvaluation = eval;
+				}
+			} catch (RuntimeException e) {
+				log.error("Evaluation after " + snapshot + " failed", e);
+			}
+		});
+	}
+
+	private Evaluation evaluate(DataSetIterator data) {
+		if (this.evaluationModel instanceof MultiLayerNetwork) {
+			return ((MultiLayerNetwork) this.evaluationModel).evaluate(data);
+		}
+		return ((ComputationGraph) this.evaluationModel).evaluate(data);
+	}
+
+	/**
+	 * Collects up to samplePerClass examples of each class (the class with the
+	 * most label values, summed over time steps for sequences) on first use.
+	 */
+	private DataSet getSample() {
+		if (this.sample == null) {
+			Map<Integer, Integer> countPerClass = new HashMap<Integer, Integer>();
+			List<DataSet> examples = new ArrayList<DataSet>();
+			try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+				this.testData.reset();
+				boolean complete = false;
+				while (!complete && this.testData.hasNext()) {
+					DataSet batch = this.testData.next();
+					long numberOfClasses = batch.getLabels().size(1);
+					for (int i = 0; i < batch.numExamples(); i++) {
+						DataSet example = batch.get(i);
+						INDArray labels = example.getLabels();
+						if (labels.rank() == 3) {
+							labels = labels.sum(2);
+						}
+						int label = Nd4j.argMax(labels, 1).getInt(0);
+						int count = countPerClass.getOrDefault(label, 0);
+						if (count < this.samplePerClass) {
+							countPerClass.put(label, count + 1);
+							examples.add(new DataSet(example.getFeatures().dup(), example.getLabels().dup(),
+									AsyncEvaluationListener.dup(example.getFeaturesMaskArray()),
+									AsyncEvaluationListener.dup(example.getLabelsMaskArray())));
+						}
+					}
+					complete = countPerClass.size() == numberOfClasses
+							&& countPerClass.values().stream().allMatch(count -> count == this.samplePerClass);
+				}
+				this.sample = DataSet.merge(examples);
+			}
+			log.info("> Evaluation sample: {} examples per class {}", this.samplePerClass, countPerClass);
+		}
+		return this.sample;
+	}
+
+	private static INDArray dup(INDArray array) {
+		return array == null ? null : array.dup();
+	}
+
+	private static Model cloneModel(Model model) {
+		if (model instanceof MultiLayerNetwork) {
+			return ((MultiLayerNetwork) model).clone();
+		}
+		if (model instanceof ComputationGraph) {
+			return ((ComputationGraph) model).clone();
+		}
+		throw new IllegalArgumentException(
+				"AsyncEvaluationListener supports MultiLayerNetwork and ComputationGraph, not " + model.getClass());
+	}
+
+	public static class Builder {
+
+		private final DataSetIterator testData;
+		private int sampleFrequency = 0;
+		private int samplePerClass = 50;
+
+		/**
+		 * @param testData evaluated at the end of every epoch
+		 */
+		public Builder(DataSetIterator testData) {
+			this.testData = testData;
+		}
+
+		/**
+		 * Evaluate the stratified sample every sampleFrequency iterations. Defaults to
+		 * 0 (no sample evaluation).
+		 */
+		public Builder sampleFrequency(int sampleFrequency) {
+			this.sampleFrequency = sampleFrequency;
+			return this;
+		}
+
+		/**
+		 * Number of test examples per class in the sample. Defaults to 50.
+		 */
+		public Builder samplePerClass(int samplePerClass) {
+			this.samplePerClass = samplePerClass;
+			return this;
+		}
+
+		public AsyncEvaluationListener build() {
+			return new AsyncEvaluationListener(this);
+		}
+	}
+
+}
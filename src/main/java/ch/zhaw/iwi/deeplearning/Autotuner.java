@@ -0,0 +1,232 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.UnaryOperator;
+
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Chooses the batch size and the number of ND4J (OpenMP) threads with the
+ * highest training throughput: for each combination of a grid, a short trial
+ * fits some batches of the real iterator on the real model and is timed. The
+ * batches of a batch size are read once and fitted for every thread count, so
+ * the thread counts are compared on the same data. Batch sizes whose estimated
+ * memory exceeds the budget are skipped. The best combination is saved to a
+ * properties file, together with the memory budget and the settings the
+ * throughput depends on (e.g. data types and sequence length). Later runs with
+ * the same settings apply it without tuning again; a saved tuning for other
+ * settings is stale, it is not applied and the defaults are used until tuning
+ * is asked for again.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class Autotuner {
+
+	private static final Logger log = LoggerFactory.getLogger(Autotuner.class);
+
+	private static final String BATCH_SIZE = "batchSize";
+	private static final String THREADS = "threads";
+	private static final String EXAMPLES_PER_SECOND = "examplesPerSecond";
+	private static final String SETTING_PREFIX = "setting.";
+
+	/**
+	 * Reads the batches of the trials with the given batch size, e.g. with
+	 * {@link Autotuner#take}. Called once per batch size, the batches are fitted
+	 * for all thread counts.
+	 */
+	public interface Trial<B> {
+		/**
+		 * @return up to count batches, which stay valid for all trials
+		 */
+		List<B> read(int batchSize, int count) throws Exception;
+	}
+
+	/**
+	 * Fits one batch of a trial.
+	 */
+	public interface BatchFitter<B> {
+		/**
+		 * @return the number of examples fitted
+		 */
+		int fit(B batch) throws Exception;
+	}
+
+	private final File file;
+	private final MemoryPlanner planner;
+	private final long memoryBudget;
+	private final Properties settings;
+
+	/**
+	 * @param file         where the chosen batch size and thread count are saved
+	 * @param planner      estimates the memory per batch size, may be null
+	 * @param memoryBudget off-heap bytes a batch size may need, 0 for no limit
+	 */
+	public Autotuner(File file, MemoryPlanner planner, long memoryBudget) {
+		this.file = file;
+		this.planner = planner;
+		this.memoryBudget = memoryBudget;
+		this.settings = new Properties();
+		this.setting("memoryBudget", memoryBudget);
+	}
+
+	/**
+	 * Records a setting the tuning depends on, a saved tuning is only applied with
+	 * the same settings.
+	 */
+	public Autotuner setting(String key, Object value) {
+		this.settings.setProperty(SETTING_PREFIX + key, String.valueOf(value));
+		return this;
+	}
+
+	/**
+	 * @return 1, 2, 4, ... up to the number of available processors
+	 */
+	public static int[] threadCounts() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		List<Integer> counts = new ArrayList<Integer>();
+		for (int threads = 1; threads < processors; threads *= 2) {
+			counts.add(threads);
+		}
+		counts.add(processors);
+		return counts.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * @return copies of the next count batches of iterator at most, copied because
+	 *         iterators may reuse their arrays
+	 */
+	public static <B> List<B> take(Iterator<B> iterator, int count, UnaryOperator<B> copy) {
+		List<B> batches = new ArrayList<B>(count);
+		while (batches.size() < count && iterator.hasNext()) {
+			batches.add(copy.apply(iterator.next()));
+		}
+		return batches;
+	}
+
+	/**
+	 * Times iterations batches (after one warm-up batch) for each combination of
+	 * batch size and thread count, and saves the fastest combination. The batches
+	 * of a batch size are read once and fitted for all thread counts.
+	 */
+	public <B> void tune(int[] batchSizes, int[] threadCounts, int iterations, Trial<B> trial,
+			BatchFitter<B> fitter) throws Exception {
+
+		log.info("> Autotuning batch sizes and thread counts ...");
+
+		int bestBatchSize = -1;
+		int bestThreads = -1;
+		double bestExamplesPerSecond = 0;
+		for (int batchSize : batchSizes) {
+			if (this.planner != null && this.memoryBudget > 0
+					&& this.planner.getTotalBytes(batchSize) > this.memoryBudget) {
+				log.info("Batch size {} skipped, it needs {} bytes", batchSize, this.planner.getTotalBytes(batchSize));
+				continue;
+			}
+			List<B> batches = trial.read(batchSize, iterations + 1);
+			if (batches.size() < 2) {
+				log.info("Batch size {} skipped, there are not enough batches", batchSize);
+				continue;
+			}
+			for (int threads : threadCounts) {
+				Autotuner.setThreads(threads);
+				fitter.fit(batches.get(0));
+
+				long examples = 0;
+				long start = System.nanoTime();
+				for (B batch : batches.subList(1, batches.size())) {
+					examples += fitter.fit(batch);
+				}
+				double examplesPerSecond = examples * 1e9 / (System.nanoTime() - start);
+				log.info("Batch size {}, {} threads: {} examples/s", batchSize, threads, examplesPerSecond);
+
+				if (examplesPerSecond > bestExamplesPerSecond) {
+					bestBatchSize = batchSize;
+					bestThreads = threads;
+					bestExamplesPerSecond = examplesPerSecond;
+				}
+			}
+		}
+		if (bestBatchSize < 0) {
+			throw new IllegalStateException("Autotuner: no batch size fits into " + this.memoryBudget + " bytes");
+		}
+
+		Properties properties = new Properties();
+		properties.putAll(this.settings);
+		properties.setProperty(BATCH_SIZE, String.valueOf(bestBatchSize));
+		properties.setProperty(THREADS, String.valueOf(bestThreads));
+		properties.setProperty(EXAMPLES_PER_SECOND, String.valueOf(bestExamplesPerSecond));
+		try (OutputStream out = new FileOutputStream(this.file)) {
+			properties.store(out, "Autotuner");
+		}
+
+		log.info("> Autotuning DONE: batch size {}, {} threads, {} examples/s, saved to {}", bestBatchSize,
+				bestThreads, bestExamplesPerSecond, this.file.getAbsolutePath());
+	}
+
+	/**
+	 * Sets the saved thread count, if a tuning was saved for the same settings.
+	 *
+	 * @return the saved batch size (at most the largest that fits into the memory
+	 *         budget), or defaultBatchSize if no tuning was saved for the same
+	 *         settings
+	 */
+	public int apply(int defaultBatchSize) throws IOException {
+		if (!this.file.exists()) {
+			return defaultBatchSize;
+		}
+		Properties properties = this.load();
+		if (!this.settingsOf(properties).equals(this.settings)) {
+			log.warn("Autotuner: {} was tuned for {}, not for {}, using the defaults until tuned again",
+					this.file.getAbsolutePath(), this.settingsOf(properties), this.settings);
+			return defaultBatchSize;
+		}
+		int batchSize = Integer.parseInt(properties.getProperty(BATCH_SIZE));
+		int threads = Integer.parseInt(properties.getProperty(THREADS));
+		if (this.planner != null && this.memoryBudget > 0) {
+			batchSize = Math.min(batchSize, this.planner.getLargestBatchSize(this.memoryBudget));
+		}
+		Autotuner.setThreads(threads);
+		log.info("> Using autotuned batch size {} and {} threads from {}", batchSize, threads,
+				this.file.getAbsolutePath());
+		return batchSize;
+	}
+
+	private Properties load() throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(this.file)) {
+			properties.load(in);
+		}
+		return properties;
+	}
+
+	private Properties settingsOf(Properties properties) {
+		Properties settings = new Properties();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(SETTING_PREFIX)) {
+				settings.setProperty(key, properties.getProperty(key));
+			}
+		}
+		return settings;
+	}
+
+	private static void setThreads(int threads) {
+		NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(threads);
+	}
+
+}
@@ -0,0 +1,210 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Preallocated batch arrays for iterators. Every named buffer (e.g. features,
+ * labels, masks) is allocated once per slot with room for the largest batch
+ * (minibatchSize x maxSentenceLength x ...). Each batch takes a free slot and
+ * gets zeroed views of the requested shape onto its buffers, so assembling a
+ * batch allocates no off-heap memory. The batch leases its slot
+ * ({@link #lease(Object)}) until it is released ({@link #release(Object)}),
+ * so a batch is never overwritten while its consumer holds it. Consumers that
+ * keep batches beyond their release (e.g. a shuffle buffer, or a hold-out set)
+ * take a copy with {@link #detach(DataSet)}; DataSet.detach() does not help,
+ * the pooled arrays are not in a workspace.
+ *
+ * A batch for which no slot is free (its consumer does not release batches),
+ * or which is larger than reserved, cannot be pooled and is allocated; this is
+ * logged once and counted by {@link #getAllocations()}, which stays 0 while
+ * the pool keeps its promise.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class BatchBufferPool {
+
+	private static final Logger log = LoggerFactory.getLogger(BatchBufferPool.class);
+
+	public static final int DEFAULT_SLOTS = 6;
+
+	private static final AtomicLong allocations = new AtomicLong();
+
+	private final int slots;
+	private final Map<String, INDArray[]> buffers;
+	// batches may be released on another thread than they are assembled on
+	private final Deque<Integer> freeSlots;
+	private final Map<Object, Integer> leases;
+	// the slot of the batch being assembled, -1 if none was free
+	private int slot;
+	private boolean exhausted;
+
+	public BatchBufferPool() {
+		this(DEFAULT_SLOTS);
+	}
+
+	public BatchBufferPool(int slots) {
+		this.slots = slots;
+		this.buffers = new HashMap<String, INDArray[]>();
+		this.freeSlots = new ArrayDeque<Integer>();
+		for (int i = 0; i < slots; i++) {
+			this.freeSlots.add(i);
+		}
+		this.leases = new IdentityHashMap<Object, Integer>();
+		this.slot = -1;
+	}
+
+	/**
+	 * Allocates the buffers called name, one per slot, with room for an array of
+	 * maxShape. The buffers live outside of any workspace.
+	 */
+	public void reserve(String name, DataType dataType, long... maxShape) {
+		INDArray[] slotBuffers = new INDArray[this.slots];
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			for (int i = 0; i < this.slots; i++) {
+				slotBuffers[i] = Nd4j.create(dataType, BatchBufferPool.length(maxShape));
+			}
+		}
+		this.buffers.put(name, slotBuffers);
+	}
+
+	/**
+	 * Takes a free slot for the next batch, to be called once per batch before
+	 * {@link #get(String, long...)}. Without a free slot, the arrays of the batch
+	 * are allocated.
+	 */
+	public synchronized void nextBatch() {
+		Integer free = this.freeSlots.pollFirst();
+		this.slot = free == null ? -1 : free;
+		if (free == null && !this.exhausted) {
+			this.exhausted = true;
+			log.warn("BatchBufferPool: all {} slots are leased, allocating batches until some are released "
+					+ "(warned once)", this.slots);
+		}
+	}
+
+	/**
+	 * @return a zeroed, 'f' ordered view of the given shape onto the buffer called
+	 *         name of the current slot, or a new array (counted) if no slot was
+	 *         free or the shape exceeds the reserved size
+	 */
+	public INDArray get(String name, long... shape) {
+		INDArray[] slotBuffers = this.buffers.get(name);
+		long length = BatchBufferPool.length(shape);
+		if (this.slot < 0 || length > slotBuffers[this.slot].length()) {
+			if (this.slot >= 0 && allocations.get() == 0) {
+				log.warn("BatchBufferPool: {} of {} elements exceeds the {} reserved, allocating it (warned once)",
+						name, length, slotBuffers[this.slot].length());
+			}
+			allocations.incrementAndGet();
+			try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+				return Nd4j.create(slotBuffers[0].dataType(), shape, 'f');
+			}
+		}
+		return slotBuffers[this.slot].get(NDArrayIndex.interval(0, length)).reshape('f', shape).assign(0);
+	}
+
+	/**
+	 * Binds the slot of the batch just assembled to batch, until
+	 * {@link #release(Object)}.
+	 *
+	 * @return batch
+	 */
+	public synchronized <T> T lease(T batch) {
+		if (this.slot >= 0) {
+			this.leases.put(batch, this.slot);
+			this.slot = -1;
+		}
+		return batch;
+	}
+
+	/**
+	 * Returns the slot of batch to the pool, after which its arrays are reused.
+	 * Batches that were allocated or released before are ignored.
+	 */
+	public synchronized void release(Object batch) {
+		Integer leased = this.leases.remove(batch);
+		if (leased != null) {
+			this.freeSlots.addLast(leased);
+		}
+	}
+
+	/**
+	 * @return the number of arrays allocated by {@link #get(String, long...)} of
+	 *         all pools because no slot was free or they did not fit their buffer
+	 */
+	public static long getAllocations() {
+		return allocations.get();
+	}
+
+	/**
+	 * @return the [numWords, vectorSize] lookup table of wordVectors, or null if
+	 *         its vectors are not held in one (e.g. the compressed vectors of
+	 *         WordVectorSerializer.loadStaticModel)
+	 */
+	public static INDArray wordVectorRows(WordVectors wordVectors) {
+		return wordVectors.lookupTable() != null ? wordVectors.lookupTable().getSyn0() : null;
+	}
+
+	/**
+	 * @param rows the result of {@link #wordVectorRows(WordVectors)}
+	 * @return a view onto the row of word in rows, to be copied into a pooled array
+	 *         without allocating, or a new vector from getWordVectorMatrix if there
+	 *         are no rows
+	 */
+	public static INDArray wordVector(WordVectors wordVectors, INDArray rows, String word) {
+		int index = wordVectors.indexOf(word);
+		if (rows == null || index < 0) {
+			return wordVectors.getWordVectorMatrix(word).ravel();
+		}
+		return rows.getRow(index);
+	}
+
+	/**
+	 * @return a copy of batch outside of the pool and of any workspace, to be kept
+	 *         after batch is released
+	 */
+	public static DataSet detach(DataSet batch) {
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			return batch.copy();
+		}
+	}
+
+	/**
+	 * @see #detach(DataSet)
+	 */
+	public static MultiDataSet detach(MultiDataSet batch) {
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			return batch.copy();
+		}
+	}
+
+	private static long length(long... shape) {
+		long result = 1;
+		for (long size : shape) {
+			result *= size;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,92 @@
+package ch.zhaw.iwi.deeplearning;
+
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.ResetPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Workspace for the temporary arrays of assembling a batch in iterators
+ * (tokenization results, intermediate vectors). The workspace learns its size
+ * from the first batch and is reset whenever it is closed, so steady-state
+ * iteration reuses the same memory for the temporaries. The batch itself must
+ * not stay in the workspace: {@link #detach(MemoryWorkspace, DataSet)} copies
+ * the arrays allocated in it out before it is closed (pooled arrays of a
+ * {@link BatchBufferPool} are not in the workspace and are handed out as they
+ * are). A cyclic workspace would spare that copy, but it overwrites a batch
+ * without any error once its end is reached, however long the consumer still
+ * holds the batch.
+ *
+ * When DL4J prefetches batches (AsyncDataSetIterator and
+ * AsyncMultiDataSetIterator, used by fit and evaluate for iterators that
+ * support async), the prefetch thread has its own cyclic workspace open, sized
+ * for its queue, and batches are assembled in that one; DL4J does not keep
+ * them longer than its queue.
+ *
+ * With layers in workspaces (the default workspace modes) and batches assembled
+ * in workspaces or {@link BatchBufferPool} arrays, no periodic GC is needed to
+ * free off-heap memory, which is why the training mains turn it off.
+ *
+ * Usage: <code>try (MemoryWorkspace ws = BatchWorkspace.activate(ID)) {
+ * return BatchWorkspace.detach(ws, ...); }</code>
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class BatchWorkspace {
+
+	private static final WorkspaceConfiguration CONFIGURATION = WorkspaceConfiguration.builder()
+			.policyAllocation(AllocationPolicy.OVERALLOCATE)
+			.overallocationLimit(0.5)
+			.policyLearning(LearningPolicy.FIRST_LOOP)
+			.policyReset(ResetPolicy.BLOCK_LEFT)
+			.policySpill(SpillPolicy.EXTERNAL)
+			.build();
+
+	private BatchWorkspace() {
+	}
+
+	/**
+	 * @return the activated workspace with the given id, or null (which
+	 *         try-with-resources accepts) if a workspace is already open on this
+	 *         thread
+	 */
+	public static MemoryWorkspace activate(String id) {
+		if (Nd4j.getMemoryManager().getCurrentWorkspace() != null) {
+			return null;
+		}
+		return Nd4j.getWorkspaceManager().getAndActivateWorkspace(CONFIGURATION, id);
+	}
+
+	/**
+	 * @param ws    the result of {@link #activate(String)}, still open
+	 * @param batch the batch assembled within ws
+	 * @return batch, with those of its arrays copied out of ws that are in it
+	 */
+	public static DataSet detach(MemoryWorkspace ws, DataSet batch) {
+		if (ws != null) {
+			batch.detach();
+		}
+		return batch;
+	}
+
+	/**
+	 * @see #detach(MemoryWorkspace, DataSet)
+	 */
+	public static MultiDataSet detach(MemoryWorkspace ws, MultiDataSet batch) {
+		if (ws != null) {
+			batch.detach();
+		}
+		return batch;
+	}
+
+}
@@ -0,0 +1,386 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * A compact binary file format for word vectors, read without parsing text.
+ * All numbers are little endian:
+ * <ul>
+ * <li>header of {@value #HEADER_SIZE} bytes: magic, version, number of words,
+ * vector size (ints), length of the vocab block, CRC32 of the vocab block,
+ * CRC32 of the matrix block and, for a subset, fingerprints of the source
+ * vectors and the corpora it was taken for, else 0 (longs)</li>
+ * <li>vocab block: per word in index order, the length of its UTF-8 bytes
+ * (int) and the bytes</li>
+ * <li>matrix block, starting at the next multiple of 64 bytes: the vectors in
+ * index order as floats</li>
+ * </ul>
+ *
+ * {@link #write(WordVectors, File)} writes through a direct buffer into a
+ * temporary file, which is renamed when complete.
+ * {@link #open(File)} maps the file and reads the vocab only; vectors are
+ * read from the mapped matrix on access ({@link #vector(String)}), so a lookup
+ * of a few words does not touch the rest. {@link #toWordVectors()} and
+ * {@link #load(File)} copy the matrix from the mapped file into a lookup table
+ * for the DL4J WordVectors API (e.g. the embedding layers), without a copy on
+ * the heap. The vocab checksum is verified when the vocab is read; the matrix
+ * checksum takes another pass over the whole file and is only verified by
+ * {@link #verify()}, e.g. before the vectors are written again.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class BinaryWordVectors {
+
+	private static final Logger log = LoggerFactory.getLogger(BinaryWordVectors.class);
+
+	private static final int MAGIC = 0x44424D45; // "EMBD" in little endian
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int BUFFER_SIZE = 1 << 20;
+	// bytes mapped per region of the matrix
+	private static final int REGION_SIZE = 1 << 30;
+
+	private final File file;
+	private final int vectorSize;
+	private final long matrixChecksum;
+	private final String[] words;
+	private final Map<String, Integer> indices;
+	private final MappedByteBuffer[] regions;
+	private final int rowsPerRegion;
+
+	private BinaryWordVectors(File file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("BinaryWordVectors: " + file + " is not a binary word vectors file");
+			}
+			int numberOfWords = header.getInt();
+			this.vectorSize = header.getInt();
+			long vocabLength = header.getLong();
+			long vocabChecksum = header.getLong();
+			this.matrixChecksum = header.getLong();
+
+			long matrixStart = BinaryWordVectors.align(HEADER_SIZE + vocabLength);
+			long rowBytes = 4L * this.vectorSize;
+			if (vocabLength > Integer.MAX_VALUE || channel.size() != matrixStart + numberOfWords * rowBytes) {
+				throw new IOException("BinaryWordVectors: " + file + " is incomplete");
+			}
+
+			ByteBuffer vocab = channel.map(MapMode.READ_ONLY, HEADER_SIZE, vocabLength).order(ByteOrder.LITTLE_ENDIAN);
+			CRC32 crc = new CRC32();
+			crc.update(vocab.duplicate());
+			if (crc.getValue() != vocabChecksum) {
+				throw new IOException("BinaryWordVectors: vocab checksum of " + file + " does not match");
+			}
+			this.words = new String[numberOfWords];
+			this.indices = new HashMap<String, Integer>(numberOfWords * 2);
+			for (int i = 0; i < numberOfWords; i++) {
+				byte[] word = new byte[vocab.getInt()];
+				vocab.get(word);
+				this.words[i] = new String(word, StandardCharsets.UTF_8);
+				this.indices.put(this.words[i], i);
+			}
+
+			this.rowsPerRegion = (int) Math.max(1, REGION_SIZE / rowBytes);
+			this.regions = new MappedByteBuffer[(numberOfWords + this.rowsPerRegion - 1) / this.rowsPerRegion];
+			for (int r = 0; r < this.regions.length; r++) {
+				long firstRow = (long) r * this.rowsPerRegion;
+				long rows = Math.min(this.rowsPerRegion, numberOfWords - firstRow);
+				this.regions[r] = channel.map(MapMode.READ_ONLY, matrixStart + firstRow * rowBytes, rows * rowBytes);
+			}
+		}
+	}
+
+	/**
+	 * Maps file and reads its vocab; vectors are read when accessed.
+	 */
+	public static BinaryWordVectors open(File file) throws IOException {
+		return new BinaryWordVectors(file);
+	}
+
+	/**
+	 * Reads file into a WordVectors instance, see {@link #toWordVectors()}.
+	 */
+	public static WordVectors load(File file) throws IOException {
+		long start = System.currentTimeMillis();
+		WordVectors result = BinaryWordVectors.open(file).toWordVectors();
+		log.info("> Word vectors of {} words loaded from {} in {} ms", result.vocab().numWords(),
+				file.getAbsolutePath(), System.currentTimeMillis() - start);
+		return result;
+	}
+
+	/**
+	 * @return true if file starts like a binary word vectors file
+	 */
+	public static boolean isBinary(File file) throws IOException {
+		if (file.length() < HEADER_SIZE) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(magic, 0);
+			return magic.getInt(0) == MAGIC;
+		}
+	}
+
+	/**
+	 * @return the fingerprints of the source vectors and the corpora of a subset,
+	 *         0 for files that are no subset; read without mapping the file, so
+	 *         it can be replaced afterwards
+	 */
+	static long[] subsetFingerprints(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("BinaryWordVectors: " + file + " is not a binary word vectors file");
+			}
+			// after magic, version, number of words, vector size and three longs
+			return new long[] { header.getLong(40), header.getLong(48) };
+		}
+	}
+
+	/**
+	 * Writes the vectors of all words of wordVectors, in the order of their
+	 * indices.
+	 */
+	public static void write(WordVectors wordVectors, File file) throws IOException {
+		VocabCache<?> vocab = wordVectors.vocab();
+		String[] words = new String[vocab.numWords()];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = vocab.wordAtIndex(i);
+		}
+		BinaryWordVectors.write(words, wordVectors.getWordVectorMatrix(words[0]).columns(),
+				index -> wordVectors.getWordVectorMatrix(words[index]).toFloatVector(), 0, 0, file);
+	}
+
+	/**
+	 * Writes words with the vectors of vectorSize floats returned by vectors for
+	 * their indices, and the fingerprints of a subset (see
+	 * {@link WordVectorsSubset}).
+	 */
+	static void write(String[] words, int vectorSize, IntFunction<float[]> vectors, long sourceFingerprint,
+			long corpusFingerprint, File file) throws IOException {
+		long start = System.currentTimeMillis();
+		int numberOfWords = words.length;
+
+		File temporary = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+			channel.position(HEADER_SIZE);
+			CRC32 vocabCrc = new CRC32();
+			for (int i = 0; i < numberOfWords; i++) {
+				byte[] word = words[i].getBytes(StandardCharsets.UTF_8);
+				if (buffer.remaining() < 4 + word.length) {
+					BinaryWordVectors.flush(channel, buffer, vocabCrc);
+				}
+				buffer.putInt(word.length);
+				buffer.put(word);
+			}
+			BinaryWordVectors.flush(channel, buffer, vocabCrc);
+			long vocabLength = channel.position() - HEADER_SIZE;
+
+			channel.position(BinaryWordVectors.align(channel.position()));
+			CRC32 matrixCrc = new CRC32();
+			for (int i = 0; i < numberOfWords; i++) {
+				float[] vector = vectors.apply(i);
+				if (buffer.remaining() < 4 * vector.length) {
+					BinaryWordVectors.flush(channel, buffer, matrixCrc);
+				}
+				buffer.asFloatBuffer().put(vector);
+				buffer.position(buffer.position() + 4 * vector.length);
+			}
+			BinaryWordVectors.flush(channel, buffer, matrixCrc);
+
+			buffer.putInt(MAGIC)
+					.putInt(VERSION)
+					.putInt(numberOfWords)
+					.putInt(vectorSize)
+					.putLong(vocabLength)
+					.putLong(vocabCrc.getValue())
+					.putLong(matrixCrc.getValue())
+					.putLong(sourceFingerprint)
+					.putLong(corpusFingerprint);
+			buffer.flip();
+			channel.write(buffer, 0);
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		log.info("> Word vectors of {} words written to {} ({} bytes) in {} ms", numberOfWords, file.getAbsolutePath(),
+				file.length(), System.currentTimeMillis() - start);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+		buffer.flip();
+		crc.update(buffer.duplicate());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static long align(long position) {
+		return (position + 63) / 64 * 64;
+	}
+
+	public int numWords() {
+		return this.words.length;
+	}
+
+	public int vectorSize() {
+		return this.vectorSize;
+	}
+
+	public String wordAtIndex(int index) {
+		return this.words[index];
+	}
+
+	/**
+	 * @return the index of word, or -1 if it is not in the vocab
+	 */
+	public int indexOf(String word) {
+		Integer index = this.indices.get(word);
+		return index == null ? -1 : index;
+	}
+
+	public boolean hasWord(String word) {
+		return this.indices.containsKey(word);
+	}
+
+	/**
+	 * @return the vector of word read from the mapped file, or null if it is not
+	 *         in the vocab
+	 */
+	public float[] vector(String word) {
+		int index = this.indexOf(word);
+		return index < 0 ? null : this.vector(index);
+	}
+
+	/**
+	 * @return the vector at index read from the mapped file
+	 */
+	public float[] vector(int index) {
+		float[] vector = new float[this.vectorSize];
+		this.rows(index, 1).get(vector);
+		return vector;
+	}
+
+	/**
+	 * @return the rows [from, from + count) of the matrix, which must lie within
+	 *         one region
+	 */
+	private FloatBuffer rows(int from, int count) {
+		return this.rowBytes(from, count).asFloatBuffer();
+	}
+
+	/**
+	 * @return the bytes of the rows [from, from + count) of the mapped matrix,
+	 *         which must lie within one region
+	 */
+	private ByteBuffer rowBytes(int from, int count) {
+		ByteBuffer region = this.regions[from / this.rowsPerRegion].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		region.position((from % this.rowsPerRegion) * 4 * this.vectorSize);
+		region.limit(region.position() + count * 4 * this.vectorSize);
+		return region.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Checks the matrix against its checksum, which reads the whole file.
+	 */
+	public void verify() throws IOException {
+		CRC32 crc = new CRC32();
+		for (MappedByteBuffer region : this.regions) {
+			crc.update(region.duplicate());
+		}
+		if (crc.getValue() != this.matrixChecksum) {
+			throw new IOException("BinaryWordVectors: matrix checksum of " + this.file + " does not match");
+		}
+	}
+
+	/**
+	 * Copies the vectors from the mapped file into the first numWords() rows of
+	 * target, in chunks of 16 MB that are not copied to the heap.
+	 */
+	public void copyTo(INDArray target) {
+		int chunkRows = Math.max(1, (BUFFER_SIZE * 16) / (4 * this.vectorSize));
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			for (int from = 0; from < this.words.length;) {
+				int regionEnd = (from / this.rowsPerRegion + 1) * this.rowsPerRegion;
+				int count = Math.min(chunkRows, Math.min(regionEnd, this.words.length) - from);
+				INDArray chunk = Nd4j.create(
+						Nd4j.createBuffer(this.rowBytes(from, count), DataType.FLOAT, count * this.vectorSize),
+						new long[] { count, this.vectorSize });
+				target.get(NDArrayIndex.interval(from, from + count), NDArrayIndex.all()).assign(chunk);
+				from += count;
+			}
+		}
+	}
+
+	/**
+	 * Copies the matrix into the lookup table of a new WordVectors instance, with
+	 * the same word indices. The matrix is not verified, see {@link #verify()}.
+	 */
+	public WordVectors toWordVectors() throws IOException {
+
+		AbstractCache<VocabWord> vocab = new AbstractCache.Builder<VocabWord>().build();
+		for (int i = 0; i < this.words.length; i++) {
+			VocabWord word = new VocabWord(1.0, this.words[i]);
+			word.setIndex(i);
+			vocab.addToken(word);
+			vocab.addWordToIndex(i, this.words[i]);
+			vocab.putVocabWord(this.words[i]);
+		}
+
+		INDArray syn0;
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			syn0 = Nd4j.create(DataType.FLOAT, this.words.length, this.vectorSize);
+		}
+		this.copyTo(syn0);
+
+		InMemoryLookupTable<VocabWord> lookupTable = new InMemoryLookupTable.Builder<VocabWord>()
+				.vectorLength(this.vectorSize)
+				.useAdaGrad(false)
+				.cache(vocab)
+				.build();
+		lookupTable.setSyn0(syn0);
+		return WordVectorSerializer.fromTableAndVocab(lookupTable, vocab);
+	}
+
+}
@@ -1,236 +1,424 @@
-package ch.zhaw.iwi.deeplearning;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-
-import org.deeplearning4j.iterator.CnnSentenceDataSetIterator;
-import org.deeplearning4j.iterator.CnnSentenceDataSetIterator.Format;
-import org.deeplearning4j.iterator.LabeledSentenceProvider;
-import org.deeplearning4j.iterator.provider.CollectionLabeledSentenceProvider;
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
-import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.text.sentenceiterator.LineSentenceIterator;
-import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
-
-/**
- * Zurich University of Applied Sciences (ZHAW), Institute for Business
- * Information Systems (IWI), Center for Information Systems and Technologies
- * (CIS)
- * 
- * @author Alexandre de Spindler (desa@zhaw.ch)
- * 
- */
-public class ClassifiedTextIterator4CNN implements DataSetIterator {
-
-	private final CnnSentenceDataSetIterator it;
-
-	/**
-	 * @param pathsToCSVFilePerClass the CSV file for each class containing one line
-	 *                               per text. The length of this list is the number
-	 *                               of classes. The first will be class = 0, the
-	 *                               second class = 1 and the last one class =
-	 *                               (number of classes -1)
-	 * @param labels                 will be matched with pathsToCSVFilesPerClass
-	 *                               along position
-	 */
-	public ClassifiedTextIterator4CNN(String[] pathsToCSVFilePerClass, String[] labels, Builder builder) {
-
-		LabeledSentenceProvider sentenceProvider = ClassifiedTextIterator4CNN
-				.createSentenceProvider(pathsToCSVFilePerClass, labels);
-
-		this.it = new CnnSentenceDataSetIterator.Builder(Format.CNN2D).sentenceProvider(sentenceProvider)
-				.wordVectors(builder.wordVectors)
-				.tokenizerFactory(builder.tokenizerFactory)
-				.minibatchSize(builder.minibatchSize)
-				.maxSentenceLength(builder.maxSentenceLength)
-				.useNormalizedWordVectors(false)
-				.build();
-
-	}
-
-	private static LabeledSentenceProvider createSentenceProvider(String[] pathsToCSVFilePerClass, String[] labels) {
-		List<String> texts = new ArrayList<String>();
-		List<String> textsLabels = new ArrayList<String>();
-
-		SentenceIterator[] sentenceIterators = new SentenceIterator[pathsToCSVFilePerClass.length];
-		for (int i = 0; i < pathsToCSVFilePerClass.length; i++) {
-			sentenceIterators[i] = new LineSentenceIterator(new File(pathsToCSVFilePerClass[i]));
-		}
-
-		while (ClassifiedTextIterator4CNN.allSentenceIteratorsHaveNext(sentenceIterators)) {
-			for (int i = 0; i < pathsToCSVFilePerClass.length; i++) {
-				texts.add(sentenceIterators[i].nextSentence());
-				textsLabels.add(labels[i]);
-			}
-		}
-
-		return new CollectionLabeledSentenceProvider(texts, textsLabels);
-	}
-
-	private static boolean allSentenceIteratorsHaveNext(SentenceIterator[] sentenceIterators) {
-		for (SentenceIterator current : sentenceIterators) {
-			if (!current.hasNext()) {
-				return false;
-			}
-		}
-		return true;
-	}
-
-	/**
-	 * This is for testing purposes only! There is no other use in running this from
-	 * here...
-	 * 
-	 * @param args
-	 * @throws IOException
-	 * @throws InterruptedException
-	 */
-	public static void main(String[] args) throws IOException, InterruptedException {
-
-		Nd4j.getMemoryManager().setAutoGcWindow(5000);
-
-		WordVectors wordVectors = WordVectorSerializer.loadStaticModel(new File(Paths.WORD_VECTORS_PATH));
-		DataSetIterator it = new ClassifiedTextIterator4CNN.Builder(new String[] {
-				"classifiedtextdata/lines-comedy_training.csv", "classifiedtextdata/lines-thriller_training.csv" },
-				new String[] { "comedy", "thriller" }).wordVectors(wordVectors)
-						.minibatchSize(32)
-						.maxSentenceLength(200)
-						.build();
-
-		DataSet current;
-		int count = 0;
-		while (it.hasNext()) {
-			current = it.next();
-			count++;
-			System.out.println("DataSet[" + count + "] " + current.numExamples());
-		}
-	}
-
-	@Override
-	public boolean hasNext() {
-		return this.it.hasNext();
-	}
-
-	@Override
-	public DataSet next() {
-		return this.it.next();
-	}
-
-	@Override
-	public DataSet next(int num) {
-		return this.it.next(num);
-	}
-
-	@Override
-	public int inputColumns() {
-		return this.it.inputColumns();
-	}
-
-	@Override
-	public int totalOutcomes() {
-		return this.it.totalOutcomes();
-	}
-
-	@Override
-	public boolean resetSupported() {
-		return this.it.resetSupported();
-	}
-
-	@Override
-	public boolean asyncSupported() {
-		return this.it.asyncSupported();
-	}
-
-	@Override
-	public void reset() {
-		this.it.reset();
-	}
-
-	@Override
-	public int batch() {
-		return this.it.batch();
-	}
-
-	@Override
-	public void setPreProcessor(DataSetPreProcessor preProcessor) {
-		this.it.setPreProcessor(preProcessor);
-	}
-
-	@Override
-	public DataSetPreProcessor getPreProcessor() {
-		return this.it.getPreProcessor();
-	}
-
-	@Override
-	public List<String> getLabels() {
-		return this.it.getLabels();
-	}
-
-	public static class Builder {
-
-		private WordVectors wordVectors;
-		private TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
-		private int maxSentenceLength = -1;
-		private int minibatchSize = 32;
-
-		private String[] pathsToCSVFilePerClass;
-		private String[] labels;
-
-		public Builder(String[] pathsToCSVFilePerClass, String[] labels) {
-			this.pathsToCSVFilePerClass = pathsToCSVFilePerClass;
-			this.labels = labels;
-		}
-
-		/**
-		 * Provide the WordVectors instance that should be used for training
-		 */
-		public Builder wordVectors(WordVectors wordVectors) {
-			this.wordVectors = wordVectors;
-			return this;
-		}
-
-		/**
-		 * The {@link TokenizerFactory} that should be used. Defaults to
-		 * {@link DefaultTokenizerFactory}
-		 */
-		public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
-			this.tokenizerFactory = tokenizerFactory;
-			return this;
-		}
-
-		/**
-		 * Minibatch size to use for the DataSetIterator
-		 */
-		public Builder minibatchSize(int minibatchSize) {
-			this.minibatchSize = minibatchSize;
-			return this;
-		}
-
-		/**
-		 * Maximum sentence/document length. If sentences exceed this, they will be
-		 * truncated to this length by taking the first 'maxSentenceLength' known words.
-		 */
-		public Builder maxSentenceLength(int maxSentenceLength) {
-			this.maxSentenceLength = maxSentenceLength;
-			return this;
-		}
-
-		public ClassifiedTextIterator4CNN build() throws IOException, InterruptedException {
-			if (wordVectors == null) {
-				throw new IllegalStateException(
-						"Cannot build ClassifiedTextIterator4Rnn without a WordVectors instance");
-			}
-
-			return new ClassifiedTextIterator4CNN(this.pathsToCSVFilePerClass, this.labels, this);
-		}
-
-	}
-
-}
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.deeplearning4j.iterator.CnnSentenceDataSetIterator;
+import org.deeplearning4j.iterator.CnnSentenceDataSetIterator.Format;
+import org.deeplearning4j.iterator.LabeledSentenceProvider;
+import org.deeplearning4j.iterator.provider.CollectionLabeledSentenceProvider;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.text.sentenceiterator.LineSentenceIterator;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.primitives.Pair;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ * 
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ * 
+ */
+public class ClassifiedTextIterator4CNN implements DataSetIterator {
+
+	private static final String WORKSPACE_ID = "ClassifiedTextIterator4CNN";
+
+	private final CnnSentenceDataSetIterator it;
+
+	// with tokenIndices, batches are assembled here as CnnSentenceDataSetIterator
+	// only emits word vectors
+	private final boolean tokenIndices;
+	private final LabeledSentenceProvider sentenceProvider;
+	private final List<String> sortedLabels;
+	private final WordVectors wordVectors;
+	private final TokenizerFactory tokenizerFactory;
+	private final int minibatchSize;
+	private final int maxSentenceLength;
+	// the next sentence with a known word, looked ahead by hasNext()
+	private List<Integer> nextIndices;
+	private int nextClass;
+	private DataSetPreProcessor preProcessor;
+
+	/**
+	 * @param pathsToCSVFilePerClass the CSV file for each class containing one line
+	 *                               per text. The length of this list is the number
+	 *                               of classes. The first will be class = 0, the
+	 *                               second class = 1 and the last one class =
+	 *                               (number of classes -1)
+	 * @param labels                 will be matched with pathsToCSVFilesPerClass
+	 *                               along position
+	 */
+	public ClassifiedTextIterator4CNN(String[] pathsToCSVFilePerClass, String[] labels, Builder builder) {
+
+		this.sentenceProvider = ClassifiedTextIterator4CNN.createSentenceProvider(pathsToCSVFilePerClass, labels,
+				builder.shuffle);
+
+		this.tokenIndices = builder.tokenIndices;
+		this.wordVectors = builder.wordVectors;
+		this.tokenizerFactory = builder.tokenizerFactory;
+		this.minibatchSize = builder.minibatchSize;
+		this.maxSentenceLength = builder.maxSentenceLength;
+
+		// same label order as CnnSentenceDataSetIterator
+		this.sortedLabels = new ArrayList<String>(this.sentenceProvider.allLabels());
+		Collections.sort(this.sortedLabels);
+
+		if (this.tokenIndices) {
+			this.it = null;
+		} else {
+			this.it = new CnnSentenceDataSetIterator.Builder(builder.format).sentenceProvider(this.sentenceProvider)
+					.wordVectors(builder.wordVectors)
+					.tokenizerFactory(builder.tokenizerFactory)
+					.minibatchSize(builder.minibatchSize)
+					.maxSentenceLength(builder.maxSentenceLength)
+					.useNormalizedWordVectors(false)
+					.build();
+		}
+	}
+
+	/**
+	 * Features are [minibatch, length] word vector indices with a [minibatch,
+	 * length] mask, labels are [minibatch, numberOfClasses]. Like
+	 * CnnSentenceDataSetIterator, sentences without any known word are skipped.
+	 */
+	private DataSet nextIndexDataSet(int num) {
+
+		List<List<Integer>> indicesPerSentence = new ArrayList<List<Integer>>(num);
+		List<Integer> classPerSentence = new ArrayList<Integer>(num);
+		int maxLength = 0;
+		while (indicesPerSentence.size() < num && this.hasNextIndices()) {
+			indicesPerSentence.add(this.nextIndices);
+			classPerSentence.add(this.nextClass);
+			maxLength = Math.max(maxLength, this.nextIndices.size());
+			this.nextIndices = null;
+		}
+
+		int numberOfExamples = indicesPerSentence.size();
+		// indices stay FLOAT, HALF and BFLOAT16 cannot represent large indices exactly
+		INDArray features = Nd4j.create(DataType.FLOAT, numberOfExamples, maxLength);
+		INDArray featuresMask = Nd4j.zeros(numberOfExamples, maxLength);
+		INDArray labels = Nd4j.create(numberOfExamples, this.sortedLabels.size());
+		for (int i = 0; i < numberOfExamples; i++) {
+			List<Integer> indices = indicesPerSentence.get(i);
+			for (int j = 0; j < indices.size(); j++) {
+				features.putScalar(i, j, indices.get(j));
+				featuresMask.putScalar(i, j, 1.0);
+			}
+			labels.putScalar(i, classPerSentence.get(i), 1.0);
+		}
+
+		return new DataSet(features, labels, featuresMask, null);
+	}
+
+	/**
+	 * Draws sentences until one has a known word, so a batch is never empty.
+	 *
+	 * @return false if no sentence left has a known word
+	 */
+	private boolean hasNextIndices() {
+		while (this.nextIndices == null && this.sentenceProvider.hasNext()) {
+			Pair<String, String> sentence = this.sentenceProvider.nextSentence();
+
+			List<Integer> indices = new ArrayList<Integer>();
+			Tokenizer t = this.tokenizerFactory.create(sentence.getFirst());
+			while (t.hasMoreTokens() && (this.maxSentenceLength <= 0 || indices.size() < this.maxSentenceLength)) {
+				String token = t.nextToken();
+				if (this.wordVectors.hasWord(token)) {
+					indices.add(this.wordVectors.indexOf(token));
+				}
+			}
+			if (!indices.isEmpty()) {
+				this.nextIndices = indices;
+				this.nextClass = this.sortedLabels.indexOf(sentence.getSecond());
+			}
+		}
+		return this.nextIndices != null;
+	}
+
+	/**
+	 * @param shuffle whether the sentences are shuffled when created and on every
+	 *                reset, otherwise they stay in the order of the files
+	 */
+	private static LabeledSentenceProvider createSentenceProvider(String[] pathsToCSVFilePerClass, String[] labels,
+			boolean shuffle) {
+		List<String> texts = new ArrayList<String>();
+		List<String> textsLabels = new ArrayList<String>();
+
+		SentenceIterator[] sentenceIterators = new SentenceIterator[pathsToCSVFilePerClass.length];
+		for (int i = 0; i < pathsToCSVFilePerClass.length; i++) {
+			sentenceIterators[i] = new LineSentenceIterator(new File(pathsToCSVFilePerClass[i]));
+		}
+
+		while (ClassifiedTextIterator4CNN.allSentenceIteratorsHaveNext(sentenceIterators)) {
+			for (int i = 0; i < pathsToCSVFilePerClass.length; i++) {
+				texts.add(sentenceIterators[i].nextSentence());
+				textsLabels.add(labels[i]);
+			}
+		}
+
+		return new CollectionLabeledSentenceProvider(texts, textsLabels, shuffle ? new Random() : null);
+	}
+
+	private static boolean allSentenceIteratorsHaveNext(SentenceIterator[] sentenceIterators) {
+		for (SentenceIterator current : sentenceIterators) {
+			if (!current.hasNext()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * This is for testing purposes only! There is no other use in running this from
+	 * here...
+	 * 
+	 * @param args
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		Nd4j.getMemoryManager().togglePeriodicGc(false); // batches are assembled in a workspace
+
+		WordVectors wordVectors = WordVectorsSubset.loadWordVectors();
+		DataSetIterator it = new ClassifiedTextIterator4CNN.Builder(new String[] {
+				"classifiedtextdata/lines-comedy_training.csv", "classifiedtextdata/lines-thriller_training.csv" },
+				new String[] { "comedy", "thriller" }).wordVectors(wordVectors)
+						.minibatchSize(32)
+						.maxSentenceLength(200)
+						.build();
+
+		DataSet current;
+		int count = 0;
+		while (it.hasNext()) {
+			current = it.next();
+			count++;
+			System.out.println("DataSet[" + count + "] " + current.numExamples());
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.tokenIndices) {
+			return this.hasNextIndices();
+		}
+		return this.it.hasNext();
+	}
+
+	@Override
+	public DataSet next() {
+		if (this.tokenIndices) {
+			return this.next(this.minibatchSize);
+		}
+		try (MemoryWorkspace ws = BatchWorkspace.activate(WORKSPACE_ID)) {
+			return BatchWorkspace.detach(ws, this.it.next());
+		}
+	}
+
+	@Override
+	public DataSet next(int num) {
+		if (this.tokenIndices && !this.hasNext()) {
+			throw new NoSuchElementException("ClassifiedTextIterator4CNN.next(int) has no more sentences");
+		}
+		if (this.tokenIndices) {
+			DataSet batch;
+			try (MemoryWorkspace ws = BatchWorkspace.activate(WORKSPACE_ID)) {
+				batch = BatchWorkspace.detach(ws, this.nextIndexDataSet(num));
+			}
+			// outside the workspace, the preprocessor may replace arrays of the batch
+			if (this.preProcessor != null) {
+				this.preProcessor.preProcess(batch);
+			}
+			return batch;
+		}
+		try (MemoryWorkspace ws = BatchWorkspace.activate(WORKSPACE_ID)) {
+			return BatchWorkspace.detach(ws, this.it.next(num));
+		}
+	}
+
+	@Override
+	public int inputColumns() {
+		if (this.tokenIndices) {
+			return 1;
+		}
+		return this.it.inputColumns();
+	}
+
+	@Override
+	public int totalOutcomes() {
+		if (this.tokenIndices) {
+			return this.sortedLabels.size();
+		}
+		return this.it.totalOutcomes();
+	}
+
+	@Override
+	public boolean resetSupported() {
+		if (this.tokenIndices) {
+			return true;
+		}
+		return this.it.resetSupported();
+	}
+
+	@Override
+	public boolean asyncSupported() {
+		if (this.tokenIndices) {
+			return true;
+		}
+		return this.it.asyncSupported();
+	}
+
+	@Override
+	public void reset() {
+		if (this.tokenIndices) {
+			this.sentenceProvider.reset();
+			this.nextIndices = null;
+		} else {
+			this.it.reset();
+		}
+	}
+
+	@Override
+	public int batch() {
+		if (this.tokenIndices) {
+			return this.minibatchSize;
+		}
+		return this.it.batch();
+	}
+
+	@Override
+	public void setPreProcessor(DataSetPreProcessor preProcessor) {
+		if (this.tokenIndices) {
+			this.preProcessor = preProcessor;
+		} else {
+			this.it.setPreProcessor(preProcessor);
+		}
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor() {
+		if (this.tokenIndices) {
+			return this.preProcessor;
+		}
+		return this.it.getPreProcessor();
+	}
+
+	@Override
+	public List<String> getLabels() {
+		if (this.tokenIndices) {
+			return this.sortedLabels;
+		}
+		return this.it.getLabels();
+	}
+
+	public static class Builder {
+
+		private WordVectors wordVectors;
+		private TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
+		private int maxSentenceLength = -1;
+		private int minibatchSize = 32;
+		private boolean tokenIndices = false;
+		private boolean shuffle = true;
+		private Format format = Format.CNN2D;
+
+		private String[] pathsToCSVFilePerClass;
+		private String[] labels;
+
+		public Builder(String[] pathsToCSVFilePerClass, String[] labels) {
+			this.pathsToCSVFilePerClass = pathsToCSVFilePerClass;
+			this.labels = labels;
+		}
+
+		/**
+		 * Emit features as [minibatch, length] word vector indices (see
+		 * {@link WordVectorsEmbeddingInitializer}) instead of [minibatch, 1, length,
+		 * vectorSize] word vectors. Defaults to false.
+		 */
+		public Builder tokenIndices(boolean tokenIndices) {
+			this.tokenIndices = tokenIndices;
+			return this;
+		}
+
+		/**
+		 * Shuffle the sentences anew in every epoch. Without shuffling, every epoch
+		 * gives the same batches in the order of the files, e.g. to hold out the first
+		 * batches for validation with {@link EarlyStopping#holdOut(DataSetIterator, int)}
+		 * or to feed two models the same sentences. Defaults to true.
+		 */
+		public Builder shuffle(boolean shuffle) {
+			this.shuffle = shuffle;
+			return this;
+		}
+
+		/**
+		 * Provide the WordVectors instance that should be used for training
+		 */
+		public Builder wordVectors(WordVectors wordVectors) {
+			this.wordVectors = wordVectors;
+			return this;
+		}
+
+		/**
+		 * The {@link TokenizerFactory} that should be used. Defaults to
+		 * {@link DefaultTokenizerFactory}
+		 */
+		public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
+			this.tokenizerFactory = tokenizerFactory;
+			return this;
+		}
+
+		/**
+		 * Minibatch size to use for the DataSetIterator
+		 */
+		public Builder minibatchSize(int minibatchSize) {
+			this.minibatchSize = minibatchSize;
+			return this;
+		}
+
+		/**
+		 * Maximum sentence/document length. If sentences exceed this, they will be
+		 * truncated to this length by taking the first 'maxSentenceLength' known words.
+		 */
+		public Builder maxSentenceLength(int maxSentenceLength) {
+			this.maxSentenceLength = maxSentenceLength;
+			return this;
+		}
+
+		/**
+		 * {@link Format#CNN2D} gives [minibatch, 1, length, vectorSize] features for 2D
+		 * convolutions, {@link Format#CNN1D} gives [minibatch, vectorSize, length]
+		 * features for 1D convolutions. Defaults to {@link Format#CNN2D}.
+		 */
+		public Builder format(Format format) {
+			this.format = format;
+			return this;
+		}
+
+		public ClassifiedTextIterator4CNN build() throws IOException, InterruptedException {
+			if (wordVectors == null) {
+				throw new IllegalStateException(
+						"Cannot build ClassifiedTextIterator4Rnn without a WordVectors instance");
+			}
+
+			return new ClassifiedTextIterator4CNN(this.pathsToCSVFilePerClass, this.labels, this);
+		}
+
+	}
+
+}
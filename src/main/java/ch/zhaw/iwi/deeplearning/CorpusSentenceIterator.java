@@ -0,0 +1,494 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.deeplearning4j.models.word2vec.Huffman;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.sentenceiterator.SentencePreProcessor;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Iterates over the lines of a corpus of many (large) text files, e.g. the
+ * shards of a crawl, for training Word2Vec on more text than a
+ * BasicLineIterator over a single file reads in reasonable time. The files are
+ * split into chunks of about chunkSize bytes at line boundaries. A pool of
+ * worker threads takes the next chunk, reads its lines from the memory-mapped
+ * file (see {@link MappedCsvReader}), pre-processes and tokenizes them and puts
+ * them, in batches, into a bounded queue, blocking while it is full.
+ * nextSentence() hands them to Word2Vec on its own thread; lines thus arrive in
+ * the order the chunks are read, which may change between epochs.
+ *
+ * Sentences are returned tokenized already, their tokens separated by single
+ * spaces, so Word2Vec must split them on white space only, with
+ * {@link #pretokenized()}, instead of tokenizing them once more on its thread.
+ *
+ * {@link #buildVocabulary(int)} counts the words of the corpus in one parallel
+ * pass, each worker counting the chunks it takes, instead of the single thread
+ * Word2Vec builds its vocabulary on. The words handed out per second are
+ * logged while training.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class CorpusSentenceIterator implements SentenceIterator {
+
+	private static final Logger log = LoggerFactory.getLogger(CorpusSentenceIterator.class);
+
+	private static final int SENTENCES_PER_BATCH = 1024;
+	private static final long LOG_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	// tells the training thread that a worker is done with the epoch
+	private static final Batch END = new Batch();
+
+	private final List<File> files;
+	private final List<Chunk> chunks;
+	private final TokenizerFactory tokenizerFactory;
+	private final int workers;
+	private final int queueCapacity;
+	private final ExecutorService executor;
+	private volatile SentencePreProcessor preProcessor;
+	private Epoch epoch;
+	private Batch batch;
+	private int position;
+
+	private CorpusSentenceIterator(Builder builder) throws IOException {
+		this.tokenizerFactory = builder.tokenizerFactory;
+		this.workers = builder.workers;
+		this.queueCapacity = builder.queueCapacity;
+
+		this.files = new ArrayList<File>();
+		for (File file : builder.files) {
+			try (Stream<Path> paths = Files.walk(file.toPath())) {
+				this.files.addAll(paths.filter(Files::isRegularFile)
+						.map(Path::toFile)
+						.sorted()
+						.collect(Collectors.toList()));
+			}
+		}
+		this.chunks = new ArrayList<Chunk>();
+		long bytes = 0;
+		for (File file : this.files) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long size = channel.size();
+				long from = 0;
+				while (from < size) {
+					long to = MappedCsvReader.nextLineStart(channel, Math.min(from + builder.chunkSize, size), size);
+					this.chunks.add(new Chunk(file, from, to));
+					from = to;
+				}
+				bytes += size;
+			}
+		}
+		if (this.chunks.isEmpty()) {
+			throw new IOException("CorpusSentenceIterator: no text in " + builder.files);
+		}
+		log.info("> Corpus of {} files, {} bytes in {} chunks", this.files.size(), bytes, this.chunks.size());
+
+		this.executor = Executors.newFixedThreadPool(this.workers, runnable -> {
+			Thread thread = new Thread(runnable, "CorpusSentenceIterator");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return the tokenizer factory for Word2Vec, splitting the sentences of this
+	 *         iterator on white space without further pre-processing
+	 */
+	public static TokenizerFactory pretokenized() {
+		return new DefaultTokenizerFactory();
+	}
+
+	/**
+	 * Counts the words of the corpus in parallel and builds the vocabulary of the
+	 * words occurring at least minWordFrequency times, ordered by frequency and
+	 * with the Huffman codes for hierarchic softmax. Pass it to Word2Vec together
+	 * with a lookup table on it and resetModel(false), so Word2Vec does not count
+	 * the words once more. Cancels the current epoch.
+	 */
+	public VocabCache<VocabWord> buildVocabulary(int minWordFrequency) throws IOException, InterruptedException {
+		this.finish();
+		long start = System.nanoTime();
+		AtomicInteger next = new AtomicInteger();
+		List<Callable<Map<String, long[]>>> counters = new ArrayList<Callable<Map<String, long[]>>>();
+		for (int i = 0; i < this.workers; i++) {
+			counters.add(() -> {
+				Map<String, long[]> counts = new HashMap<String, long[]>();
+				int chunk;
+				while ((chunk = next.getAndIncrement()) < this.chunks.size()) {
+					this.forEachSentence(this.chunks.get(chunk), tokens -> {
+						for (String token : tokens) {
+							counts.computeIfAbsent(token, word -> new long[1])[0]++;
+						}
+						return true;
+					});
+				}
+				return counts;
+			});
+		}
+		Map<String, long[]> counts = new HashMap<String, long[]>();
+		for (Future<Map<String, long[]>> future : this.executor.invokeAll(counters)) {
+			for (Map.Entry<String, long[]> entry : CorpusSentenceIterator.get(future).entrySet()) {
+				counts.computeIfAbsent(entry.getKey(), word -> new long[1])[0] += entry.getValue()[0];
+			}
+		}
+		long words = counts.values().stream().mapToLong(count -> count[0]).sum();
+
+		List<Map.Entry<String, long[]>> kept = counts.entrySet()
+				.stream()
+				.filter(entry -> entry.getValue()[0] >= minWordFrequency)
+				.sorted(Comparator.comparing((Map.Entry<String, long[]> entry) -> -entry.getValue()[0])
+						.thenComparing(Map.Entry::getKey))
+				.collect(Collectors.toList());
+		AbstractCache<VocabWord> vocab = new AbstractCache.Builder<VocabWord>().build();
+		for (Map.Entry<String, long[]> entry : kept) {
+			VocabWord word = new VocabWord(entry.getValue()[0], entry.getKey());
+			word.setIndex(vocab.numWords());
+			vocab.addToken(word);
+			vocab.addWordToIndex(word.getIndex(), entry.getKey());
+			vocab.putVocabWord(entry.getKey());
+		}
+		vocab.updateWordsOccurrences();
+		Huffman huffman = new Huffman(vocab.vocabWords());
+		huffman.build();
+		huffman.applyIndexes(vocab);
+
+		long nanos = System.nanoTime() - start;
+		log.info("> Counted {} words ({} distinct, {} kept) in {} ms ({} words/s) on {} workers", words,
+				counts.size(), vocab.numWords(), nanos / 1000000, (long) (words * 1e9 / Math.max(nanos, 1)),
+				this.workers);
+		return vocab;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.epoch == null) {
+			this.epoch = this.start();
+		}
+		while (this.batch == null || this.position == this.batch.sentences.size()) {
+			if (this.epoch.finishedWorkers == this.workers) {
+				if (!this.epoch.logged) {
+					this.epoch.logProgress("> Epoch of");
+					this.epoch.logged = true;
+				}
+				return false;
+			}
+			Batch batch;
+			try {
+				batch = this.epoch.queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("CorpusSentenceIterator: interrupted", e);
+			}
+			if (batch == END) {
+				this.epoch.finishedWorkers++;
+			} else if (batch.failure != null) {
+				throw new RuntimeException("CorpusSentenceIterator: reading the corpus failed", batch.failure);
+			} else {
+				this.batch = batch;
+				this.position = 0;
+				this.epoch.words += batch.words;
+				if (System.nanoTime() - this.epoch.lastLog > LOG_INTERVAL) {
+					this.epoch.logProgress(">");
+					this.epoch.lastLog = System.nanoTime();
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String nextSentence() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException("CorpusSentenceIterator: no more sentences");
+		}
+		return this.batch.sentences.get(this.position++);
+	}
+
+	private Epoch start() {
+		Epoch epoch = new Epoch(new ArrayBlockingQueue<Batch>(this.queueCapacity));
+		for (int i = 0; i < this.workers; i++) {
+			this.executor.submit(() -> this.read(epoch));
+		}
+		return epoch;
+	}
+
+	/**
+	 * Reads the chunks of the epoch until there are no more or the epoch is
+	 * cancelled.
+	 */
+	private void read(Epoch epoch) {
+		int i;
+		while ((i = epoch.next.getAndIncrement()) < this.chunks.size() && !epoch.cancelled) {
+			Batch[] batch = { new Batch() };
+			try {
+				this.forEachSentence(this.chunks.get(i), tokens -> {
+					batch[0].sentences.add(String.join(" ", tokens));
+					batch[0].words += tokens.size();
+					if (batch[0].sentences.size() < SENTENCES_PER_BATCH) {
+						return true;
+					}
+					boolean put = this.put(epoch, batch[0]);
+					batch[0] = new Batch();
+					return put;
+				});
+			} catch (IOException | RuntimeException e) {
+				Batch failed = new Batch();
+				failed.failure = new IOException(this.chunks.get(i).toString(), e);
+				this.put(epoch, failed);
+				break;
+			}
+			if (!batch[0].sentences.isEmpty() && !this.put(epoch, batch[0])) {
+				break;
+			}
+		}
+		this.put(epoch, END);
+	}
+
+	/**
+	 * Pre-processes and tokenizes the lines of chunk and passes the tokens of each
+	 * line with any to visitor, until it returns false.
+	 */
+	private void forEachSentence(Chunk chunk, Predicate<List<String>> visitor) throws IOException {
+		try (FileChannel channel = FileChannel.open(chunk.file.toPath(), StandardOpenOption.READ)) {
+			MappedCsvReader.forEachLine(channel, chunk.from, chunk.to, (window, from, to) -> {
+				byte[] bytes = new byte[to - from];
+				ByteBuffer line = window.duplicate();
+				line.position(from);
+				line.get(bytes);
+				String sentence = new String(bytes, StandardCharsets.UTF_8);
+				SentencePreProcessor preProcessor = this.preProcessor;
+				if (preProcessor != null) {
+					sentence = preProcessor.preProcess(sentence);
+				}
+				List<String> tokens = new ArrayList<String>();
+				for (String token : this.tokenizerFactory.create(sentence).getTokens()) {
+					if (!token.isEmpty()) {
+						tokens.add(token);
+					}
+				}
+				return tokens.isEmpty() || visitor.test(tokens);
+			});
+		}
+	}
+
+	/**
+	 * Waits for space in the queue of the epoch.
+	 *
+	 * @return false if the epoch was cancelled
+	 */
+	private boolean put(Epoch epoch, Batch batch) {
+		try {
+			while (!epoch.cancelled) {
+				if (epoch.queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("CorpusSentenceIterator: interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("CorpusSentenceIterator: counting the words failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Cancels the reading of the current epoch; the next call to hasNext() starts
+	 * reading the corpus again.
+	 */
+	@Override
+	public void reset() {
+		this.finish();
+	}
+
+	/**
+	 * Cancels the reading of the current epoch.
+	 */
+	@Override
+	public void finish() {
+		if (this.epoch != null) {
+			this.epoch.cancelled = true;
+		}
+		this.epoch = null;
+		this.batch = null;
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		this.finish();
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public SentencePreProcessor getPreProcessor() {
+		return this.preProcessor;
+	}
+
+	/**
+	 * Applied to every line before tokenizing it, by the workers, from the next
+	 * epoch on. Must be thread-safe.
+	 */
+	@Override
+	public void setPreProcessor(SentencePreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	private static class Chunk {
+
+		private final File file;
+		private final long from;
+		private final long to;
+
+		private Chunk(File file, long from, long to) {
+			this.file = file;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public String toString() {
+			return this.file.getPath() + " [" + this.from + ", " + this.to + ")";
+		}
+	}
+
+	private static class Batch {
+
+		private final List<String> sentences = new ArrayList<String>();
+		private long words;
+		private IOException failure;
+	}
+
+	private class Epoch {
+
+		private final BlockingQueue<Batch> queue;
+		private final AtomicInteger next;
+		private final long start;
+		private volatile boolean cancelled;
+		private int finishedWorkers;
+		private long words;
+		private long lastLog;
+		private boolean logged;
+
+		private Epoch(BlockingQueue<Batch> queue) {
+			this.queue = queue;
+			this.next = new AtomicInteger();
+			this.start = System.nanoTime();
+			this.lastLog = this.start;
+		}
+
+		private void logProgress(String prefix) {
+			long nanos = System.nanoTime() - this.start;
+			log.info("{} {} words in {} s ({} words/s) on {} workers", prefix, this.words, nanos / 1000000000,
+					(long) (this.words * 1e9 / Math.max(nanos, 1)), CorpusSentenceIterator.this.workers);
+		}
+	}
+
+	public static class Builder {
+
+		private final List<File> files;
+		private TokenizerFactory tokenizerFactory;
+		private int workers = Runtime.getRuntime().availableProcessors();
+		private int queueCapacity = 64;
+		private long chunkSize = 64 << 20;
+
+		/**
+		 * @param files the text files of the corpus, one sentence per line, or folders
+		 *              whose files (also in sub-folders) are all read
+		 */
+		public Builder(File... files) {
+			this.files = Arrays.asList(files);
+			this.tokenizerFactory = new DefaultTokenizerFactory();
+			this.tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+		}
+
+		/**
+		 * Tokenizes the lines on the workers, must be thread-safe. Defaults to a
+		 * DefaultTokenizerFactory with a CommonPreprocessor.
+		 */
+		public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
+			this.tokenizerFactory = tokenizerFactory;
+			return this;
+		}
+
+		/**
+		 * Number of reading threads. Defaults to the number of available processors.
+		 */
+		public Builder workers(int workers) {
+			this.workers = workers;
+			return this;
+		}
+
+		/**
+		 * Number of batches of 1024 sentences waiting for Word2Vec at most; workers
+		 * block when it is reached. Defaults to 64.
+		 */
+		public Builder queueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		/**
+		 * Number of bytes a worker reads at once, the chunks end at the next line
+		 * break after it. Defaults to 64 MB.
+		 */
+		public Builder chunkSize(long chunkSize) {
+			this.chunkSize = chunkSize;
+			return this;
+		}
+
+		public CorpusSentenceIterator build() throws IOException {
+			return new CorpusSentenceIterator(this);
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * k-fold cross-validation of a MultiLayerNetwork configuration on a DataSet
+ * that is loaded and normalized once. The examples are shuffled once in place;
+ * fold i tests on the i-th of k contiguous row ranges and trains on the rows
+ * before and after it, copied into one DataSet so that every fold trains on
+ * batches of the same size: up to batchSize rows, split evenly. The k networks
+ * are trained concurrently on a pool of workers threads, each fold evaluated on
+ * its test rows; the fold evaluations are logged and merged into one.
+ *
+ * Each network uses the ND4J (OpenMP) threads as well, so fewer workers than
+ * processors usually give the best throughput. With compareSequential, the
+ * folds are run again one after another to log the speedup.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class CrossValidator {
+
+	private static final Logger log = LoggerFactory.getLogger(CrossValidator.class);
+
+	private final MultiLayerConfiguration conf;
+	private final DataSet data;
+	private final int folds;
+	private final int workers;
+	private final int epochs;
+	private final int batchSize;
+	private final boolean compareSequential;
+
+	private CrossValidator(Builder builder) {
+		this.conf = builder.conf;
+		this.data = new DataSet(builder.data.getFeatures(), builder.data.getLabels());
+		this.folds = builder.folds;
+		this.workers = builder.workers;
+		this.epochs = builder.epochs;
+		this.batchSize = builder.batchSize;
+		this.compareSequential = builder.compareSequential;
+
+		this.data.shuffle(builder.seed);
+	}
+
+	/**
+	 * Trains and evaluates the k folds.
+	 *
+	 * @return the evaluations of all folds merged
+	 */
+	public Evaluation run() throws InterruptedException {
+		long start = System.nanoTime();
+		List<Evaluation> evaluations = this.runFolds(this.workers);
+		double parallelSeconds = (System.nanoTime() - start) / 1e9;
+
+		double[] accuracies = new double[this.folds];
+		Evaluation merged = new Evaluation(this.data.numOutcomes());
+		for (int i = 0; i < this.folds; i++) {
+			Evaluation evaluation = evaluations.get(i);
+			accuracies[i] = evaluation.accuracy();
+			log.info("> Fold {} of {}: accuracy {}, F1 {}", i + 1, this.folds, evaluation.accuracy(),
+					evaluation.f1());
+			merged.merge(evaluation);
+		}
+		double mean = 0;
+		for (double accuracy : accuracies) {
+			mean += accuracy / this.folds;
+		}
+		double variance = 0;
+		for (double accuracy : accuracies) {
+			variance += (accuracy - mean) * (accuracy - mean) / this.folds;
+		}
+		log.info("> {}-fold cross-validation: accuracy {} +/- {}, {} s on {} workers", this.folds, mean,
+				Math.sqrt(variance), parallelSeconds, this.workers);
+
+		if (this.compareSequential) {
+			start = System.nanoTime();
+			this.runFolds(1);
+			double sequentialSeconds = (System.nanoTime() - start) / 1e9;
+			log.info("> Sequential folds: {} s, speedup {}", sequentialSeconds, sequentialSeconds / parallelSeconds);
+		}
+		return merged;
+	}
+
+	private List<Evaluation> runFolds(int threads) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Evaluation>> futures = new ArrayList<Future<Evaluation>>();
+			for (int i = 0; i < this.folds; i++) {
+				int fold = i;
+				futures.add(executor.submit(() -> this.runFold(fold)));
+			}
+			List<Evaluation> evaluations = new ArrayList<Evaluation>();
+			for (Future<Evaluation> future : futures) {
+				try {
+					evaluations.add(future.get());
+				} catch (ExecutionException e) {
+					throw new RuntimeException("CrossValidator: a fold failed", e.getCause());
+				}
+			}
+			return evaluations;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Evaluation runFold(int fold) {
+		int examples = this.data.numExamples();
+		int testStart = (int) ((long) examples * fold / this.folds);
+		int testEnd = (int) ((long) examples * (fold + 1) / this.folds);
+
+		List<DataSet> trainBatches = this.batches(this.trainingRows(testStart, testEnd));
+		DataSet test = this.view(this.data, testStart, testEnd);
+
+		MultiLayerNetwork model = new MultiLayerNetwork(this.conf.clone());
+		model.init();
+		model.fit(new ExistingDataSetIterator(trainBatches), this.epochs);
+
+		Evaluation evaluation = new Evaluation(this.data.numOutcomes());
+		evaluation.eval(test.getLabels(), model.output(test.getFeatures()));
+		return evaluation;
+	}
+
+	/**
+	 * @return the rows before and after the test rows [testStart, testEnd), copied
+	 *         unless they are contiguous
+	 */
+	private DataSet trainingRows(int testStart, int testEnd) {
+		int examples = this.data.numExamples();
+		if (testStart == 0) {
+			return this.view(this.data, testEnd, examples);
+		}
+		if (testEnd == examples) {
+			return this.view(this.data, 0, testStart);
+		}
+		DataSet before = this.view(this.data, 0, testStart);
+		DataSet after = this.view(this.data, testEnd, examples);
+		return new DataSet(Nd4j.vstack(before.getFeatures(), after.getFeatures()),
+				Nd4j.vstack(before.getLabels(), after.getLabels()));
+	}
+
+	/**
+	 * @return the rows of data in as few batches of up to batchSize rows as
+	 *         possible, their sizes differing by at most one row
+	 */
+	private List<DataSet> batches(DataSet data) {
+		int rows = data.numExamples();
+		int count = (int) ((rows + (long) this.batchSize - 1) / this.batchSize);
+		List<DataSet> batches = new ArrayList<DataSet>();
+		for (int i = 0; i < count; i++) {
+			batches.add(this.view(data, (int) ((long) rows * i / count), (int) ((long) rows * (i + 1) / count)));
+		}
+		return batches;
+	}
+
+	/**
+	 * @return the rows [from, to) of data, without copying
+	 */
+	private DataSet view(DataSet data, int from, int to) {
+		return new DataSet(data.getFeatures().get(NDArrayIndex.interval(from, to), NDArrayIndex.all()),
+				data.getLabels().get(NDArrayIndex.interval(from, to), NDArrayIndex.all()));
+	}
+
+	public static class Builder {
+
+		private final MultiLayerConfiguration conf;
+		private final org.nd4j.linalg.dataset.api.DataSet data;
+		private int folds = 5;
+		private int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		private int epochs = 1;
+		private int batchSize = Integer.MAX_VALUE;
+		private boolean compareSequential = false;
+		private long seed = 123;
+
+		/**
+		 * @param conf configuration of the network trained on each fold
+		 * @param data the examples, loaded and normalized, with features and labels
+		 *             of rank 2; they are shuffled in place
+		 */
+		public Builder(MultiLayerConfiguration conf, org.nd4j.linalg.dataset.api.DataSet data) {
+			this.conf = conf;
+			this.data = data;
+		}
+
+		/**
+		 * Number of folds k. Defaults to 5.
+		 */
+		public Builder folds(int folds) {
+			this.folds = folds;
+			return this;
+		}
+
+		/**
+		 * Number of folds trained at the same time. Defaults to half the number of
+		 * available processors.
+		 */
+		public Builder workers(int workers) {
+			this.workers = workers;
+			return this;
+		}
+
+		/**
+		 * Number of training epochs per fold. Defaults to 1.
+		 */
+		public Builder epochs(int epochs) {
+			this.epochs = epochs;
+			return this;
+		}
+
+		/**
+		 * Maximum number of rows per training batch. Defaults to all rows, i.e. one
+		 * batch per fold.
+		 */
+		public Builder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * Run the folds sequentially afterwards and log the speedup. Defaults to
+		 * false.
+		 */
+		public Builder compareSequential(boolean compareSequential) {
+			this.compareSequential = compareSequential;
+			return this;
+		}
+
+		/**
+		 * Seed for shuffling the examples. Defaults to 123.
+		 */
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public CrossValidator build() {
+			if (this.folds < 2 || this.folds > this.data.numExamples()) {
+				throw new IllegalStateException("CrossValidator: " + this.folds + " folds for "
+						+ this.data.numExamples() + " examples");
+			}
+			return new CrossValidator(this);
+		}
+	}
+
+}
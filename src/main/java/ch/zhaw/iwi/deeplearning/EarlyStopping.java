@@ -0,0 +1,357 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingModelSaver;
+import org.deeplearning4j.earlystopping.EarlyStoppingResult;
+import org.deeplearning4j.earlystopping.saver.LocalFileGraphSaver;
+import org.deeplearning4j.earlystopping.saver.LocalFileModelSaver;
+import org.deeplearning4j.earlystopping.scorecalc.ScoreCalculator;
+import org.deeplearning4j.earlystopping.termination.IterationTerminationCondition;
+import org.deeplearning4j.earlystopping.termination.MaxEpochsTerminationCondition;
+import org.deeplearning4j.earlystopping.termination.MaxTimeIterationTerminationCondition;
+import org.deeplearning4j.earlystopping.termination.ScoreImprovementEpochTerminationCondition;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Helpers for training with DL4J's early stopping (EarlyStoppingTrainer for
+ * MultiLayerNetwork, EarlyStoppingGraphTrainer for ComputationGraph): the
+ * configuration, the held-out validation batches and the savers.
+ *
+ * Training stops after maxEpochs, after patience epochs without the validation
+ * loss improving by at least minImprovement, or when the wall-clock budget is
+ * spent. Only the best model is kept on disk.
+ *
+ * The validation batches are held out from the start of the training iterator:
+ * {@link #holdOut(DataSetIterator, int)} copies them and
+ * {@link #skip(DataSetIterator, int)} leaves them out of every training epoch.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class EarlyStopping {
+
+	private static final Logger log = LoggerFactory.getLogger(EarlyStopping.class);
+
+	private EarlyStopping() {
+	}
+
+	/**
+	 * @param validation     validation score calculator, e.g. a
+	 *                       DataSetLossCalculator on held-out batches
+	 * @param saver          keeps the best model, see {@link #modelSaver(File)} and
+	 *                       {@link #graphSaver(File)}
+	 * @param maxEpochs      epochs to train at most
+	 * @param patience       epochs without improvement before stopping
+	 * @param minImprovement smallest decrease of the validation loss counted as
+	 *                       improvement
+	 * @param maxMinutes     wall-clock budget, 0 for no limit
+	 */
+	public static <T extends Model> EarlyStoppingConfiguration<T> configuration(
+			ScoreCalculator<? super T> validation, EarlyStoppingModelSaver<T> saver, int maxEpochs, int patience,
+			double minImprovement, long maxMinutes) {
+		List<IterationTerminationCondition> iterationConditions = new ArrayList<IterationTerminationCondition>();
+		if (maxMinutes > 0) {
+			iterationConditions.add(new MaxTimeIterationTerminationCondition(maxMinutes, TimeUnit.MINUTES));
+		}
+		return new EarlyStoppingConfiguration.Builder<T>()
+				.epochTerminationConditions(new MaxEpochsTerminationCondition(maxEpochs),
+						new ScoreImprovementEpochTerminationCondition(patience, minImprovement))
+				.iterationTerminationConditions(
+						iterationConditions.toArray(new IterationTerminationCondition[iterationConditions.size()]))
+				.scoreCalculator(validation)
+				.modelSaver(saver)
+				.saveLastModel(false)
+				.build();
+	}
+
+	/**
+	 * Saves the best MultiLayerNetwork to directory/bestModel.bin.
+	 */
+	public static EarlyStoppingModelSaver<MultiLayerNetwork> modelSaver(File directory) {
+		directory.mkdirs();
+		return new LocalFileModelSaver(directory);
+	}
+
+	/**
+	 * Saves the best ComputationGraph to directory/bestGraph.bin.
+	 */
+	public static EarlyStoppingModelSaver<ComputationGraph> graphSaver(File directory) {
+		directory.mkdirs();
+		return new LocalFileGraphSaver(directory.getPath());
+	}
+
+	/**
+	 * Logs why training stopped and which epoch was best.
+	 */
+	public static void logResult(EarlyStoppingResult<?> result) {
+		log.info("> Early stopping: {} ({}) after {} epochs, best epoch {} with validation loss {}",
+				result.getTerminationReason(), result.getTerminationDetails(), result.getTotalEpochs(),
+				result.getBestModelEpoch(), result.getBestModelScore());
+	}
+
+	/**
+	 * @return an iterator over copies of the first batches of data, which is reset
+	 *         afterwards
+	 */
+	public static DataSetIterator holdOut(DataSetIterator data, int batches) {
+		List<DataSet> heldOut = new ArrayList<DataSet>();
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			while (heldOut.size() < batches && data.hasNext()) {
+				heldOut.add(data.next().copy());
+			}
+		}
+		data.reset();
+		return new ExistingDataSetIterator(heldOut, data.getLabels());
+	}
+
+	/**
+	 * @return an iterator over copies of the first batches of data, which is reset
+	 *         afterwards
+	 */
+	public static MultiDataSetIterator holdOut(MultiDataSetIterator data, int batches) {
+		List<MultiDataSet> heldOut = new ArrayList<MultiDataSet>();
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			while (heldOut.size() < batches && data.hasNext()) {
+				heldOut.add(data.next().copy());
+			}
+		}
+		data.reset();
+		return new HeldOutMultiIterator(heldOut);
+	}
+
+	/**
+	 * @return data without its first batches, in every epoch
+	 */
+	public static DataSetIterator skip(DataSetIterator data, int batches) {
+		return new SkippingIterator(data, batches);
+	}
+
+	/**
+	 * @return data without its first batches, in every epoch
+	 */
+	public static MultiDataSetIterator skip(MultiDataSetIterator data, int batches) {
+		return new SkippingMultiIterator(data, batches);
+	}
+
+	private static class SkippingIterator implements DataSetIterator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final DataSetIterator data;
+		private final int batches;
+		private boolean skipped;
+
+		private SkippingIterator(DataSetIterator data, int batches) {
+			this.data = data;
+			this.batches = batches;
+			this.skipped = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!this.skipped) {
+				for (int i = 0; i < this.batches && this.data.hasNext(); i++) {
+					this.data.next();
+				}
+				this.skipped = true;
+			}
+			return this.data.hasNext();
+		}
+
+		@Override
+		public DataSet next() {
+			this.hasNext();
+			return this.data.next();
+		}
+
+		@Override
+		public DataSet next(int num) {
+			throw new UnsupportedOperationException("Not implemented");
+		}
+
+		@Override
+		public void reset() {
+			this.data.reset();
+			this.skipped = false;
+		}
+
+		@Override
+		public boolean resetSupported() {
+			return this.data.resetSupported();
+		}
+
+		@Override
+		public boolean asyncSupported() {
+			return this.data.asyncSupported();
+		}
+
+		@Override
+		public int inputColumns() {
+			return this.data.inputColumns();
+		}
+
+		@Override
+		public int totalOutcomes() {
+			return this.data.totalOutcomes();
+		}
+
+		@Override
+		public int batch() {
+			return this.data.batch();
+		}
+
+		@Override
+		public void setPreProcessor(DataSetPreProcessor preProcessor) {
+			this.data.setPreProcessor(preProcessor);
+		}
+
+		@Override
+		public DataSetPreProcessor getPreProcessor() {
+			return this.data.getPreProcessor();
+		}
+
+		@Override
+		public List<String> getLabels() {
+			return this.data.getLabels();
+		}
+	}
+
+	private static class HeldOutMultiIterator implements MultiDataSetIterator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<MultiDataSet> batches;
+		private int cursor;
+
+		private HeldOutMultiIterator(List<MultiDataSet> batches) {
+			this.batches = batches;
+			this.cursor = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.cursor < this.batches.size();
+		}
+
+		@Override
+		public MultiDataSet next() {
+			return this.batches.get(this.cursor++);
+		}
+
+		@Override
+		public MultiDataSet next(int num) {
+			throw new UnsupportedOperationException("Not implemented");
+		}
+
+		@Override
+		public void reset() {
+			this.cursor = 0;
+		}
+
+		@Override
+		public boolean resetSupported() {
+			return true;
+		}
+
+		@Override
+		public boolean asyncSupported() {
+			return false;
+		}
+
+		@Override
+		public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public MultiDataSetPreProcessor getPreProcessor() {
+			return null;
+		}
+	}
+
+	private static class SkippingMultiIterator implements MultiDataSetIterator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MultiDataSetIterator data;
+		private final int batches;
+		private boolean skipped;
+
+		private SkippingMultiIterator(MultiDataSetIterator data, int batches) {
+			this.data = data;
+			this.batches = batches;
+			this.skipped = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!this.skipped) {
+				for (int i = 0; i < this.batches && this.data.hasNext(); i++) {
+					this.data.next();
+				}
+				this.skipped = true;
+			}
+			return this.data.hasNext();
+		}
+
+		@Override
+		public MultiDataSet next() {
+			this.hasNext();
+			return this.data.next();
+		}
+
+		@Override
+		public MultiDataSet next(int num) {
+			throw new UnsupportedOperationException("Not implemented");
+		}
+
+		@Override
+		public void reset() {
+			this.data.reset();
+			this.skipped = false;
+		}
+
+		@Override
+		public boolean resetSupported() {
+			return this.data.resetSupported();
+		}
+
+		@Override
+		public boolean asyncSupported() {
+			return this.data.asyncSupported();
+		}
+
+		@Override
+		public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+			this.data.setPreProcessor(preProcessor);
+		}
+
+		@Override
+		public MultiDataSetPreProcessor getPreProcessor() {
+			return this.data.getPreProcessor();
+		}
+	}
+
+}
@@ -1,114 +1,272 @@
-package ch.zhaw.iwi.deeplearning;
-
-import java.io.File;
-import java.io.IOException;
-
-import org.datavec.api.records.reader.RecordReader;
-import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
-import org.datavec.api.split.FileSplit;
-import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
-import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
-import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
-import org.deeplearning4j.nn.conf.layers.DenseLayer;
-import org.deeplearning4j.nn.conf.layers.OutputLayer;
-import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.deeplearning4j.nn.weights.WeightInit;
-import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
-import org.nd4j.evaluation.classification.Evaluation;
-import org.nd4j.linalg.activations.Activation;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.DataSet;
-import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
-import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
-import org.nd4j.linalg.learning.config.Adam;
-import org.nd4j.linalg.lossfunctions.LossFunctions;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Zurich University of Applied Sciences (ZHAW), Institute for Business
- * Information Systems (IWI), Center for Information Systems and Technologies
- * (CIS)
- * 
- * @author Alexandre de Spindler (desa@zhaw.ch)
- * 
- */
-public class Main {
-
-	private static final Logger log = LoggerFactory.getLogger(Main.class);
-
-	public static void main(String[] args) throws IOException, InterruptedException {
-
-		log.info("> Hello Deeplearning4j :-)");
-
-		int vectorSize = 5;
-		int numberOfClasses = 5; // The number of possible outcomes
-		int indexOfLabelColumn = vectorSize; // if vector has n features, then label is at column n
-
-		int neuronsPerHidenLayer = 10; // Number of feature maps / channels / depth for each CNN layer
-		int nEpochs = 1000; // Number of training epochs
-		int seed = 123;
-
-		log.info("> Preparing Data ...");
-
-		DataSet trainData = Main.getDataSetFromCSV("randomdataTraining.csv", 0, 50000, indexOfLabelColumn,
-				numberOfClasses);
-		DataSet testData = Main.getDataSetFromCSV("randomdataTesting.csv", 0, 5000, indexOfLabelColumn,
-				numberOfClasses);
-
-		// We need to normalize our data. We'll use NormalizeStandardize (which gives us
-		// mean 0, unit variance):
-		DataNormalization normalizer = new NormalizerStandardize();
-		normalizer.fit(trainData); // Collect the statistics (mean/stdev) from the training data. This does not
-									// modify the input data
-		normalizer.transform(trainData); // Apply normalization to the training data
-		normalizer.transform(testData); // Apply normalization to the test data. This is using statistics
-										// calculated from the *training* set
-
-		log.info("> Building Model ...");
-
-		MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder().seed(seed)
-				.activation(Activation.SOFTMAX)
-				.weightInit(WeightInit.XAVIER)
-				.updater(new Adam(0.01))
-				.l2(0.0005)
-				.list()
-				.layer(new DenseLayer.Builder().nIn(vectorSize).nOut(neuronsPerHidenLayer).build())
-				.layer(new DenseLayer.Builder().nIn(neuronsPerHidenLayer).nOut(neuronsPerHidenLayer).build())
-				.layer(new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
-						.activation(Activation.SOFTMAX)
-						.nIn(neuronsPerHidenLayer)
-						.nOut(numberOfClasses)
-						.build())
-				.build();
-
-		MultiLayerNetwork model = new MultiLayerNetwork(conf);
-		model.init();
-
-		log.info("> Training Model ...");
-		model.setListeners(new ScoreIterationListener(100)); // Print score every 10 iterations
-		for (int i = 0; i < nEpochs; i++) {
-			model.fit(trainData);
-			// log.info("*** Completed epoch {} ***", i);
-		}
-
-		log.info("> Testing Model ...");
-
-		Evaluation eval = new Evaluation(numberOfClasses);
-		INDArray output = model.output(testData.getFeatures());
-
-		eval.eval(testData.getLabels(), output);
-		log.info(eval.stats());
-
-		log.info("> Good Bye ;-(");
-
-	}
-
-	public static DataSet getDataSetFromCSV(String pathToFile, int rowOffset, int batchSize, int indexLabel,
-			int numOfClasses) throws IOException, InterruptedException {
-		RecordReader rr = new CSVRecordReader(rowOffset);
-		rr.initialize(new FileSplit(new File(pathToFile)));
-		RecordReaderDataSetIterator iterator = new RecordReaderDataSetIterator(rr, batchSize, indexLabel, numOfClasses);
-		return iterator.next();
-	}
-}
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.datavec.api.records.reader.RecordReader;
+import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
+import org.datavec.api.split.FileSplit;
+import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingResult;
+import org.deeplearning4j.earlystopping.scorecalc.DataSetLossCalculator;
+import org.deeplearning4j.earlystopping.trainer.EarlyStoppingTrainer;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.AsyncDataSetIterator;
+import org.nd4j.linalg.dataset.SplitTestAndTrain;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ * 
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ * 
+ */
+public class Main {
+
+	private static final Logger log = LoggerFactory.getLogger(Main.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		log.info("> Hello Deeplearning4j :-)");
+
+		int vectorSize = 5;
+		int numberOfClasses = 5; // The number of possible outcomes
+		int indexOfLabelColumn = vectorSize; // if vector has n features, then label is at column n
+
+		int neuronsPerHidenLayer = 10; // Number of feature maps / channels / depth for each CNN layer
+		int nEpochs = 1000; // Number of training epochs
+		boolean earlyStopping = false; // Train until the validation loss stops improving, nEpochs is the maximum
+		int patience = 20; // Epochs without improvement before early stopping
+		double minImprovement = 1e-4; // Smallest decrease of the validation loss counted as improvement
+		long maxMinutes = 0; // Wall-clock budget for early stopping, 0 for no limit
+		int seed = 123;
+		int evaluationWorkers = 1; // Test set shards evaluated in parallel on model replicas, 1 is sequential
+		boolean compareParallelEvaluation = false; // Evaluate sequentially as well and log whether the results match
+		int folds = 0; // k-fold cross-validation on the training data instead of a single training run, 0 for none
+		int foldWorkers = 4; // Folds trained concurrently in cross-validation
+		boolean compareSequentialFolds = false; // Run the folds again one after another to log the speedup
+		boolean mappedCsv = false; // Parse the CSV files with the multithreaded MappedCsvReader (not CSVRecordReader)
+		boolean streamingStatistics = false; // Fit the normalizer in one parallel pass over the training data
+		File normalizerFile = new File("main.normalizer"); // Streaming mode statistics, reused until the data changes
+
+		boolean streaming = false; // Stream shuffled mini-batches from the CSV files instead of one DataSet in memory
+		int streamingBatchSize = 500; // Mini-batch size in streaming mode
+		int shuffleBufferBatches = 100; // Batches shuffled together in streaming mode
+		int prefetchBatches = 8; // Batches read, shuffled and normalized ahead of training in streaming mode
+		int nStreamingEpochs = 10; // Number of passes over the CSV files in streaming mode
+
+		if (streaming) {
+			Main.trainAndTestStreaming(Main.getConfiguration(seed, vectorSize, neuronsPerHidenLayer, numberOfClasses),
+					streamingBatchSize, shuffleBufferBatches, prefetchBatches, nStreamingEpochs, indexOfLabelColumn,
+					numberOfClasses, seed, normalizerFile);
+			log.info("> Good Bye ;-(");
+			return;
+		}
+
+		log.info("> Preparing Data ...");
+
+		DataSet trainData;
+		DataSet testData;
+		if (mappedCsv) {
+			trainData = Main.getDataSetFromMappedCSV("randomdataTraining.csv", 0, 50000, indexOfLabelColumn,
+					numberOfClasses);
+			testData = Main.getDataSetFromMappedCSV("randomdataTesting.csv", 0, 5000, indexOfLabelColumn,
+					numberOfClasses);
+		} else {
+			trainData = Main.getDataSetFromCSV("randomdataTraining.csv", 0, 50000, indexOfLabelColumn,
+					numberOfClasses);
+			testData = Main.getDataSetFromCSV("randomdataTesting.csv", 0, 5000, indexOfLabelColumn,
+					numberOfClasses);
+		}
+
+		DataSet validationData = null;
+		if (earlyStopping && folds <= 1) {
+			// 90% of the training data are trained on, the rest is for validation and not
+			// seen by the normalizer either
+			SplitTestAndTrain split = trainData.splitTestAndTrain(0.9);
+			trainData = split.getTrain();
+			validationData = split.getTest();
+		}
+
+		// We need to normalize our data. We'll use NormalizeStandardize (which gives us
+		// mean 0, unit variance):
+		DataNormalization normalizer;
+		if (streamingStatistics) {
+			// fitted on the rows trained on, not taken from normalizerFile (the whole file)
+			normalizer = new StreamingStandardizer.Builder().build()
+					.fit(new ExistingDataSetIterator(trainData.batchBy(5000)));
+		} else {
+			normalizer = new NormalizerStandardize();
+			normalizer.fit(trainData); // Collect the statistics (mean/stdev) from the training data. This does not
+										// modify the input data
+		}
+		normalizer.transform(trainData); // Apply normalization to the training data
+		if (validationData != null) {
+			normalizer.transform(validationData);
+		}
+		normalizer.transform(testData); // Apply normalization to the test data. This is using statistics
+										// calculated from the *training* set
+
+		log.info("> Building Model ...");
+
+		MultiLayerConfiguration conf = Main.getConfiguration(seed, vectorSize, neuronsPerHidenLayer, numberOfClasses);
+
+		if (folds > 1) {
+			log.info("> Cross-validating Model ...");
+			Evaluation crossValidationEval = new CrossValidator.Builder(conf, trainData).folds(folds)
+					.workers(foldWorkers)
+					.epochs(nEpochs)
+					.seed(seed)
+					.compareSequential(compareSequentialFolds)
+					.build()
+					.run();
+			log.info(crossValidationEval.stats());
+			log.info("> Good Bye ;-(");
+			return;
+		}
+
+		MultiLayerNetwork model = new MultiLayerNetwork(conf);
+		model.init();
+
+		log.info("> Training Model ...");
+		model.setListeners(new ScoreIterationListener(100)); // Print score every 10 iterations
+		if (earlyStopping) {
+			// full batch epochs on the training part of the split above
+			EarlyStoppingConfiguration<MultiLayerNetwork> earlyStoppingConf = EarlyStopping.configuration(
+					new DataSetLossCalculator(new ExistingDataSetIterator(validationData.batchBy(5000)), true),
+					EarlyStopping.modelSaver(new File("main.earlystopping")), nEpochs, patience, minImprovement,
+					maxMinutes);
+			EarlyStoppingResult<MultiLayerNetwork> result = new EarlyStoppingTrainer(earlyStoppingConf, model,
+					new ExistingDataSetIterator(trainData.batchBy(trainData.numExamples()))).fit();
+			EarlyStopping.logResult(result);
+			model = result.getBestModel();
+		} else {
+			for (int i = 0; i < nEpochs; i++) {
+				model.fit(trainData);
+				// log.info("*** Completed epoch {} ***", i);
+			}
+		}
+
+		log.info("> Testing Model ...");
+
+		Evaluation eval;
+		if (evaluationWorkers > 1) {
+			DataSetIterator testShards = new ExistingDataSetIterator(testData.batchBy(500));
+			eval = new ParallelEvaluator.Builder(model).workers(evaluationWorkers).build().evaluate(testShards);
+			if (compareParallelEvaluation) {
+				log.info("> Parallel evaluation on {} workers matches the sequential one: {}", evaluationWorkers,
+						eval.stats().equals(model.evaluate(testShards).stats()));
+			}
+		} else {
+			eval = new Evaluation(numberOfClasses);
+			INDArray output = model.output(testData.getFeatures());
+
+			eval.eval(testData.getLabels(), output);
+		}
+		log.info(eval.stats());
+
+		log.info("> Good Bye ;-(");
+
+	}
+
+	private static MultiLayerConfiguration getConfiguration(int seed, int vectorSize, int neuronsPerHidenLayer,
+			int numberOfClasses) {
+		return new NeuralNetConfiguration.Builder().seed(seed)
+				.activation(Activation.SOFTMAX)
+				.weightInit(WeightInit.XAVIER)
+				.updater(new Adam(0.01))
+				.l2(0.0005)
+				.list()
+				.layer(new DenseLayer.Builder().nIn(vectorSize).nOut(neuronsPerHidenLayer).build())
+				.layer(new DenseLayer.Builder().nIn(neuronsPerHidenLayer).nOut(neuronsPerHidenLayer).build())
+				.layer(new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+						.activation(Activation.SOFTMAX)
+						.nIn(neuronsPerHidenLayer)
+						.nOut(numberOfClasses)
+						.build())
+				.build();
+	}
+
+	/**
+	 * Streams the CSV files in mini-batches: the training batches are shuffled
+	 * within a buffer of shuffleBufferBatches batches, normalized as they arrive
+	 * and prefetched on a separate thread, so memory does not grow with the file
+	 * size. The normalizer statistics take one extra pass over the training file
+	 * unless they are in normalizerFile already.
+	 */
+	private static void trainAndTestStreaming(MultiLayerConfiguration conf, int batchSize, int shuffleBufferBatches,
+			int prefetchBatches, int nEpochs, int indexOfLabelColumn, int numberOfClasses, int seed,
+			File normalizerFile) throws IOException, InterruptedException {
+
+		log.info("> Preparing Data (streaming) ...");
+
+		File trainFile = new File("randomdataTraining.csv");
+		DataSetIterator trainData = Main.getDataSetIteratorFromCSV(trainFile.getPath(), 0, batchSize,
+				indexOfLabelColumn, numberOfClasses);
+		DataSetIterator testData = Main.getDataSetIteratorFromCSV("randomdataTesting.csv", 0, batchSize,
+				indexOfLabelColumn, numberOfClasses);
+
+		// One parallel pass over the training data for mean and standard deviation, or none if already written
+		DataNormalization normalizer = new StreamingStandardizer.Builder().build()
+				.loadOrFit(normalizerFile, trainFile, trainData);
+		trainData.reset();
+		DataSetIterator shuffledTrainData = new ShuffleBufferIterator(trainData, shuffleBufferBatches, seed);
+		shuffledTrainData.setPreProcessor(normalizer); // Applied to each batch as it arrives
+		testData.setPreProcessor(normalizer);
+
+		log.info("> Building Model ...");
+
+		MultiLayerNetwork model = new MultiLayerNetwork(conf);
+		model.init();
+
+		log.info("> Training Model ...");
+		model.setListeners(new ScoreIterationListener(100));
+		model.fit(new AsyncDataSetIterator(shuffledTrainData, prefetchBatches), nEpochs);
+
+		log.info("> Testing Model ...");
+		Evaluation eval = model.evaluate(testData);
+		log.info(eval.stats());
+	}
+
+	public static DataSetIterator getDataSetIteratorFromCSV(String pathToFile, int rowOffset, int batchSize,
+			int indexLabel, int numOfClasses) throws IOException, InterruptedException {
+		RecordReader rr = new CSVRecordReader(rowOffset);
+		rr.initialize(new FileSplit(new File(pathToFile)));
+		return new RecordReaderDataSetIterator(rr, batchSize, indexLabel, numOfClasses);
+	}
+
+	public static DataSet getDataSetFromCSV(String pathToFile, int rowOffset, int batchSize, int indexLabel,
+			int numOfClasses) throws IOException, InterruptedException {
+		return Main.getDataSetIteratorFromCSV(pathToFile, rowOffset, batchSize, indexLabel, numOfClasses).next();
+	}
+
+	public static DataSet getDataSetFromMappedCSV(String pathToFile, int rowOffset, int batchSize, int indexLabel,
+			int numOfClasses) throws IOException, InterruptedException {
+		return new MappedCsvReader.Builder(new File(pathToFile)).skipLines(rowOffset)
+				.maxRows(batchSize)
+				.labelIndex(indexLabel)
+				.numberOfClasses(numOfClasses)
+				.build()
+				.read();
+	}
+}
@@ -1,146 +1,309 @@
-package ch.zhaw.iwi.deeplearning;
-
-import java.io.File;
-import java.io.IOException;
-
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
-import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
-import org.deeplearning4j.nn.conf.ConvolutionMode;
-import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
-import org.deeplearning4j.nn.conf.graph.MergeVertex;
-import org.deeplearning4j.nn.conf.inputs.InputType;
-import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
-import org.deeplearning4j.nn.conf.layers.GlobalPoolingLayer;
-import org.deeplearning4j.nn.conf.layers.OutputLayer;
-import org.deeplearning4j.nn.conf.layers.PoolingType;
-import org.deeplearning4j.nn.graph.ComputationGraph;
-import org.deeplearning4j.nn.weights.WeightInit;
-import org.deeplearning4j.optimize.api.InvocationType;
-import org.deeplearning4j.optimize.listeners.EvaluativeListener;
-import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
-import org.nd4j.evaluation.classification.Evaluation;
-import org.nd4j.linalg.activations.Activation;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.learning.config.Adam;
-import org.nd4j.linalg.lossfunctions.LossFunctions;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Zurich University of Applied Sciences (ZHAW), Institute for Business
- * Information Systems (IWI), Center for Information Systems and Technologies
- * (CIS)
- * 
- * @author Alexandre de Spindler (desa@zhaw.ch)
- * 
- */
-public class MainCNN {
-
-	private static final Logger log = LoggerFactory.getLogger(MainCNN.class);
-
-	public static void main(String[] args) throws IOException, InterruptedException {
-
-		log.info("> Hello CNN :-)");
-
-		int vectorSize = 300;
-		int truncateTextToLength = 256; // Truncate reviews with length (# words) greater than this
-		int cnnLayerFeatureMaps = 100; // Number of feature maps / channels / depth for each CNN layer
-		int numberOfClasses = 2; // The number of possible outcomes
-		PoolingType globalPoolingType = PoolingType.MAX;
-
-		int nEpochs = 1; // Number of training epochs
-
-		Nd4j.getMemoryManager().setAutoGcWindow(10000); // https://deeplearning4j.org/workspaces
-
-		log.info("> Preparing Data ...");
-
-		int batchSize = 32;
-
-		// Load word vectors and get the DataSetIterators for training and testing
-		WordVectors wordVectors = WordVectorSerializer.loadStaticModel(new File(Paths.WORD_VECTORS_PATH));
-		DataSetIterator trainDataIterator = getDataSetIterator(true, wordVectors, batchSize, truncateTextToLength);
-		DataSetIterator testDataIterator = getDataSetIterator(false, wordVectors, batchSize, truncateTextToLength);
-
-		log.info("> Building Model ...");
-
-		ComputationGraphConfiguration config = new NeuralNetConfiguration.Builder().weightInit(WeightInit.RELU)
-				.activation(Activation.LEAKYRELU)
-				.updater(new Adam(0.01))
-				.convolutionMode(ConvolutionMode.Same) // This is important so we can 'stack' the results later
-				.l2(0.0001)
-				.graphBuilder()
-				.addInputs("input")
-				.addLayer("cnn3",
-						new ConvolutionLayer.Builder().kernelSize(3, vectorSize)
-								.stride(1, vectorSize)
-								.nOut(cnnLayerFeatureMaps)
-								.build(),
-						"input")
-				.addLayer("cnn4",
-						new ConvolutionLayer.Builder().kernelSize(4, vectorSize)
-								.stride(1, vectorSize)
-								.nOut(cnnLayerFeatureMaps)
-								.build(),
-						"input")
-				.addLayer("cnn5",
-						new ConvolutionLayer.Builder().kernelSize(5, vectorSize)
-								.stride(1, vectorSize)
-								.nOut(cnnLayerFeatureMaps)
-								.build(),
-						"input")
-				// MergeVertex performs depth concatenation on activations:
-				// 3x[minibatch,100,length,300] to 1x[minibatch,300,length,300]
-				.addVertex("merge", new MergeVertex(), "cnn3", "cnn4", "cnn5")
-				// Global pooling: pool over x/y locations (dimensions 2 and 3): Activations
-				// [minibatch,300,length,300] to [minibatch, 300]
-				.addLayer("globalPool",
-						new GlobalPoolingLayer.Builder().poolingType(globalPoolingType).dropOut(0.5).build(), "merge")
-				.addLayer("out",
-						new OutputLayer.Builder().lossFunction(LossFunctions.LossFunction.MCXENT)
-								.activation(Activation.SOFTMAX)
-								.nOut(numberOfClasses)
-								.build(),
-						"globalPool")
-				.setOutputs("out")
-				// Input has shape [minibatch, channels=1, length=1 to 256, 300]
-				.setInputTypes(InputType.convolutional(truncateTextToLength, vectorSize, 1))
-				.build();
-
-		ComputationGraph model = new ComputationGraph(config);
-		model.init();
-
-		log.info("> Training Model ...");
-		model.setListeners(new ScoreIterationListener(100),
-				new EvaluativeListener(testDataIterator, 1, InvocationType.EPOCH_END));
-		model.fit(trainDataIterator, nEpochs);
-
-		log.info("> Testing Model ...");
-		Evaluation eval = model.evaluate(testDataIterator);
-		log.info(eval.stats());
-
-		log.info("> Good Bye ;-(");
-
-	}
-
-	private static DataSetIterator getDataSetIterator(boolean isTraining, WordVectors wordVectors, int minibatchSize,
-			int maxSentenceLength) throws IOException, InterruptedException {
-
-		if (isTraining) {
-			return new ClassifiedTextIterator4CNN.Builder(new String[] { "classifiedtextdata/lines-comedy_training.csv",
-					"classifiedtextdata/lines-thriller_training.csv" }, new String[] { "comedy", "thriller" })
-							.wordVectors(wordVectors)
-							.minibatchSize(minibatchSize)
-							.maxSentenceLength(maxSentenceLength)
-							.build();
-		} else {
-			return new ClassifiedTextIterator4CNN.Builder(new String[] { "classifiedtextdata/lines-comedy_testing.csv",
-					"classifiedtextdata/lines-thriller_testing.csv" }, new String[] { "comedy", "thriller" })
-							.wordVectors(wordVectors)
-							.minibatchSize(minibatchSize)
-							.maxSentenceLength(maxSentenceLength)
-							.build();
-		}
-	}
-}
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingResult;
+import org.deeplearning4j.earlystopping.scorecalc.DataSetLossCalculator;
+import org.deeplearning4j.earlystopping.trainer.EarlyStoppingGraphTrainer;
+import org.deeplearning4j.iterator.CnnSentenceDataSetIterator.Format;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration.GraphBuilder;
+import org.deeplearning4j.nn.conf.ConvolutionMode;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.graph.MergeVertex;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.Convolution1DLayer;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.GlobalPoolingLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.PoolingType;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.api.InvocationType;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.optimize.listeners.EvaluativeListener;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ * 
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ * 
+ */
+public class MainCNN {
+
+	private static final Logger log = LoggerFactory.getLogger(MainCNN.class);
+
+	public static void main(String[] args) throws Exception {
+
+		log.info("> Hello CNN :-)");
+
+		int vectorSize = 300;
+		int truncateTextToLength = 256; // Truncate reviews with length (# words) greater than this
+		int cnnLayerFeatureMaps = 100; // Number of feature maps / channels / depth for each CNN layer
+		int numberOfClasses = 2; // The number of possible outcomes
+		PoolingType globalPoolingType = PoolingType.MAX;
+		boolean tokenIndices = false; // Feed word indices through a frozen embedding layer instead of word vectors
+		boolean conv1d = false; // Convolution1DLayer over [minibatch, 300, length] instead of 2D over [.., length, 300]
+		DataType dataType = DataType.FLOAT; // FLOAT, HALF or BFLOAT16 for word vectors and batches
+		DataType networkDataType = DataType.FLOAT; // Parameters and updater state, FLOAT keeps FP32 master weights
+
+		int nEpochs = 1; // Number of training epochs
+		boolean earlyStopping = false; // Train until the validation loss stops improving, nEpochs is the maximum
+		int patience = 3; // Epochs without improvement before early stopping
+		double minImprovement = 1e-3; // Smallest decrease of the validation loss counted as improvement
+		long maxMinutes = 0; // Wall-clock budget for early stopping, 0 for no limit
+		int validationBatches = 10; // Training batches held out to compute the validation loss
+
+		Nd4j.getMemoryManager().togglePeriodicGc(false); // https://deeplearning4j.org/workspaces
+		Nd4j.setDefaultDataTypes(dataType, dataType); // Word vector storage and batch assembly
+
+		log.info("> Preparing Data ...");
+
+		int batchSize = 32;
+		long memoryBudget = 0; // Off-heap bytes for training: if > 0, the largest batchSize that fits is used
+		boolean autotune = false; // Time batch sizes and thread counts, the fastest is saved to maincnn.autotune
+		boolean replayCache = false; // Replay vectorized batches from a compressed spill file after the first pass
+		long replayMemoryBudget = 0; // Off-heap bytes of replayed batches kept decoded between passes
+		boolean asyncEvaluation = false; // Evaluate parameter snapshots on a separate thread while training continues
+		int sampleEvaluationFrequency = 0; // With asyncEvaluation, evaluate a test sample every this many iterations
+		int evaluationWorkers = 1; // Test set shards evaluated in parallel on model replicas, 1 is sequential
+
+		// Load word vectors
+		WordVectors wordVectors = WordVectorsSubset.loadWordVectors();
+		MemoryPlanner.logOffHeap("loading word vectors");
+
+		log.info("> Building Model ...");
+
+		ComputationGraphConfiguration config = MainCNN.getConfiguration(wordVectors, vectorSize, truncateTextToLength,
+				cnnLayerFeatureMaps, numberOfClasses, globalPoolingType, tokenIndices, conv1d, networkDataType);
+
+		// features, features mask and labels of one example
+		InputType inputType = tokenIndices || conv1d
+				? InputType.recurrent(tokenIndices ? 1 : vectorSize, truncateTextToLength)
+				: InputType.convolutional(truncateTextToLength, vectorSize, 1);
+		long elementsPerExample = (tokenIndices ? 1 : vectorSize) * truncateTextToLength + truncateTextToLength
+				+ numberOfClasses;
+		MemoryPlanner planner = new MemoryPlanner(config.getMemoryReport(inputType), networkDataType, dataType,
+				elementsPerExample);
+		if (memoryBudget > 0) {
+			batchSize = planner.getLargestBatchSize(memoryBudget);
+			log.info("> Batch size {} fits into {} bytes", batchSize, memoryBudget);
+		}
+
+		Autotuner autotuner = new Autotuner(new File("maincnn.autotune"), planner, memoryBudget)
+				.setting("truncateTextToLength", truncateTextToLength)
+				.setting("tokenIndices", tokenIndices)
+				.setting("conv1d", conv1d)
+				.setting("dataType", dataType)
+				.setting("networkDataType", networkDataType);
+		if (autotune) {
+			ComputationGraph trialModel = new ComputationGraph(config.clone());
+			trialModel.init();
+			autotuner.tune(new int[] { 16, 32, 64, 128 }, Autotuner.threadCounts(), 20,
+					(size, count) -> Autotuner.take(getDataSetIterator(true, wordVectors, size, truncateTextToLength,
+							tokenIndices, conv1d, true), count, DataSet::copy),
+					batch -> {
+						trialModel.fit(batch);
+						return batch.numExamples();
+					});
+		}
+		batchSize = autotuner.apply(batchSize);
+		planner.logEstimate(batchSize);
+
+		ComputationGraph model = new ComputationGraph(config);
+		model.init();
+		MemoryPlanner.logOffHeap("building the model");
+
+		// Get the DataSetIterators for training and testing. Early stopping holds out
+		// the first training batches, which are the same in every epoch only unshuffled
+		DataSetIterator trainDataIterator = getDataSetIterator(true, wordVectors, batchSize, truncateTextToLength,
+				tokenIndices, conv1d, !earlyStopping);
+		DataSetIterator testDataIterator = getDataSetIterator(false, wordVectors, batchSize, truncateTextToLength,
+				tokenIndices, conv1d, true);
+		if (replayCache) {
+			trainDataIterator = new ReplayCacheIterator.Builder(trainDataIterator).memoryBudget(replayMemoryBudget)
+					.build();
+			testDataIterator = new ReplayCacheIterator.Builder(testDataIterator).memoryBudget(replayMemoryBudget)
+					.build();
+		}
+
+		log.info("> Training Model ...");
+		ThroughputListener throughput = new ThroughputListener();
+		TrainingListener evaluation = new EvaluativeListener(testDataIterator, 1, InvocationType.EPOCH_END);
+		AsyncEvaluationListener asyncEvaluator = null;
+		if (asyncEvaluation) {
+			asyncEvaluator = new AsyncEvaluationListener.Builder(testDataIterator).sampleFrequency(sampleEvaluationFrequency)
+					.build();
+			evaluation = asyncEvaluator;
+		}
+		// throughput first, its epoch timer stops before the evaluation at the end of an epoch
+		model.setListeners(throughput, new ScoreIterationListener(100), evaluation);
+		if (earlyStopping) {
+			EarlyStoppingConfiguration<ComputationGraph> earlyStoppingConf = EarlyStopping.configuration(
+					new DataSetLossCalculator(EarlyStopping.holdOut(trainDataIterator, validationBatches), true),
+					EarlyStopping.graphSaver(new File("maincnn.earlystopping")), nEpochs, patience, minImprovement,
+					maxMinutes);
+			EarlyStoppingResult<ComputationGraph> result = new EarlyStoppingGraphTrainer(earlyStoppingConf, model,
+					throughput.count(EarlyStopping.skip(trainDataIterator, validationBatches))).fit();
+			EarlyStopping.logResult(result);
+			model = result.getBestModel();
+		} else {
+			model.fit(throughput.count(trainDataIterator), nEpochs);
+		}
+		if (asyncEvaluator != null) {
+			asyncEvaluator.finish(); // Wait for the last snapshot evaluation
+		}
+		MemoryPlanner.logOffHeap("training");
+
+		log.info("> Testing Model ...");
+		Evaluation eval = evaluationWorkers > 1
+				? new ParallelEvaluator.Builder(model).workers(evaluationWorkers).build().evaluate(testDataIterator)
+				: model.evaluate(testDataIterator);
+		log.info(eval.stats());
+		MemoryPlanner.logOffHeap("testing");
+
+		log.info("> {} data, {} network: {} examples/s, accuracy {}, estimated training memory {} bytes, "
+				+ "off-heap bytes {} (physical {})", dataType, networkDataType, throughput.getExamplesPerSecond(),
+				eval.accuracy(), planner.getTotalBytes(batchSize), Pointer.totalBytes(), Pointer.physicalBytes());
+
+		log.info("> Good Bye ;-(");
+
+	}
+
+	/**
+	 * A 2D convolution with kernel (k, vectorSize) and stride (1, vectorSize) over
+	 * [minibatch, 1, length, vectorSize] computes the same as a 1D convolution of
+	 * width k over [minibatch, vectorSize, length], with the 2D weights [out, 1, k,
+	 * vectorSize] permuted to the 1D weights [out, vectorSize, k, 1]. With conv1d
+	 * (or token indices, where the embedding layer gives [minibatch, vectorSize,
+	 * length]) the 1D formulation is used.
+	 */
+	static ComputationGraphConfiguration getConfiguration(WordVectors wordVectors, int vectorSize,
+			int truncateTextToLength, int cnnLayerFeatureMaps, int numberOfClasses, PoolingType globalPoolingType,
+			boolean tokenIndices, boolean conv1d, DataType dataType) {
+
+		GraphBuilder graphBuilder = new NeuralNetConfiguration.Builder().dataType(dataType)
+				.weightInit(WeightInit.RELU)
+				.activation(Activation.LEAKYRELU)
+				.updater(new Adam(0.01))
+				.convolutionMode(ConvolutionMode.Same) // This is important so we can 'stack' the results later
+				.l2(0.0001)
+				.graphBuilder()
+				.addInputs("input");
+		if (tokenIndices || conv1d) {
+			String convolutionInput = "input";
+			if (tokenIndices) {
+				graphBuilder.addLayer("embedding", WordVectorsEmbeddingInitializer.frozenEmbeddingLayer(wordVectors),
+						"input");
+				convolutionInput = "embedding";
+			}
+			graphBuilder
+					.addLayer("cnn3",
+							new Convolution1DLayer.Builder().kernelSize(3)
+									.stride(1)
+									.nIn(vectorSize)
+									.nOut(cnnLayerFeatureMaps)
+									.build(),
+							convolutionInput)
+					.addLayer("cnn4",
+							new Convolution1DLayer.Builder().kernelSize(4)
+									.stride(1)
+									.nIn(vectorSize)
+									.nOut(cnnLayerFeatureMaps)
+									.build(),
+							convolutionInput)
+					.addLayer("cnn5",
+							new Convolution1DLayer.Builder().kernelSize(5)
+									.stride(1)
+									.nIn(vectorSize)
+									.nOut(cnnLayerFeatureMaps)
+									.build(),
+							convolutionInput);
+		} else {
+			graphBuilder
+					.addLayer("cnn3",
+							new ConvolutionLayer.Builder().kernelSize(3, vectorSize)
+									.stride(1, vectorSize)
+									.nOut(cnnLayerFeatureMaps)
+									.build(),
+							"input")
+					.addLayer("cnn4",
+							new ConvolutionLayer.Builder().kernelSize(4, vectorSize)
+									.stride(1, vectorSize)
+									.nOut(cnnLayerFeatureMaps)
+									.build(),
+							"input")
+					.addLayer("cnn5",
+							new ConvolutionLayer.Builder().kernelSize(5, vectorSize)
+									.stride(1, vectorSize)
+									.nOut(cnnLayerFeatureMaps)
+									.build(),
+							"input")
+					// Input has shape [minibatch, channels=1, length=1 to 256, 300]
+					.setInputTypes(InputType.convolutional(truncateTextToLength, vectorSize, 1));
+		}
+		return graphBuilder
+				// MergeVertex performs depth concatenation on activations:
+				// 3x[minibatch,100,length,300] to 1x[minibatch,300,length,300]
+				.addVertex("merge", new MergeVertex(), "cnn3", "cnn4", "cnn5")
+				// Global pooling: pool over x/y locations (dimensions 2 and 3): Activations
+				// [minibatch,300,length,300] to [minibatch, 300]
+				.addLayer("globalPool",
+						new GlobalPoolingLayer.Builder().poolingType(globalPoolingType).dropOut(0.5).build(), "merge")
+				.addLayer("out",
+						new OutputLayer.Builder().lossFunction(LossFunctions.LossFunction.MCXENT)
+								.activation(Activation.SOFTMAX)
+								.nIn(3 * cnnLayerFeatureMaps)
+								.nOut(numberOfClasses)
+								.build(),
+						"globalPool")
+				.setOutputs("out")
+				.build();
+	}
+
+	static DataSetIterator getDataSetIterator(boolean isTraining, WordVectors wordVectors, int minibatchSize,
+			int maxSentenceLength, boolean tokenIndices, boolean conv1d, boolean shuffle)
+			throws IOException, InterruptedException {
+
+		Format format = conv1d ? Format.CNN1D : Format.CNN2D;
+
+		if (isTraining) {
+			return new ClassifiedTextIterator4CNN.Builder(new String[] { "classifiedtextdata/lines-comedy_training.csv",
+					"classifiedtextdata/lines-thriller_training.csv" }, new String[] { "comedy", "thriller" })
+							.wordVectors(wordVectors)
+							.minibatchSize(minibatchSize)
+							.maxSentenceLength(maxSentenceLength)
+							.tokenIndices(tokenIndices)
+							.format(format)
+							.shuffle(shuffle)
+							.build();
+		} else {
+			return new ClassifiedTextIterator4CNN.Builder(new String[] { "classifiedtextdata/lines-comedy_testing.csv",
+					"classifiedtextdata/lines-thriller_testing.csv" }, new String[] { "comedy", "thriller" })
+							.wordVectors(wordVectors)
+							.minibatchSize(minibatchSize)
+							.maxSentenceLength(maxSentenceLength)
+							.tokenIndices(tokenIndices)
+							.format(format)
+							.shuffle(shuffle)
+							.build();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.IOException;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.nn.conf.CacheMode;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.PoolingType;
+import org.deeplearning4j.nn.conf.memory.MemoryUseMode;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Compares the 2D and the 1D convolution formulation of {@link MainCNN}: the 1D
+ * model gets the (permuted) weights of the 2D model, both classify the same
+ * unshuffled test sentences (checked per batch), and the maximal difference of
+ * their outputs, their inference throughput and their estimated memory are
+ * reported.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class MainCNNBenchmark {
+
+	private static final Logger log = LoggerFactory.getLogger(MainCNNBenchmark.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		log.info("> Hello CNN Benchmark :-)");
+
+		int vectorSize = 300;
+		int truncateTextToLength = 256; // Truncate reviews with length (# words) greater than this
+		int cnnLayerFeatureMaps = 100; // Number of feature maps / channels / depth for each CNN layer
+		int numberOfClasses = 2; // The number of possible outcomes
+		PoolingType globalPoolingType = PoolingType.MAX;
+		int batchSize = 32;
+		int batches = 50; // Number of test batches to classify with each model
+
+		log.info("> Building Models ...");
+
+		WordVectors wordVectors = WordVectorsSubset.loadWordVectors();
+
+		ComputationGraphConfiguration config2d = MainCNN.getConfiguration(wordVectors, vectorSize,
+				truncateTextToLength, cnnLayerFeatureMaps, numberOfClasses, globalPoolingType, false, false,
+				DataType.FLOAT);
+		ComputationGraphConfiguration config1d = MainCNN.getConfiguration(wordVectors, vectorSize,
+				truncateTextToLength, cnnLayerFeatureMaps, numberOfClasses, globalPoolingType, false, true,
+				DataType.FLOAT);
+		ComputationGraph model2d = new ComputationGraph(config2d);
+		model2d.init();
+		ComputationGraph model1d = new ComputationGraph(config1d);
+		model1d.init();
+
+		// 2D weights [out, 1, k, vectorSize] become 1D weights [out, vectorSize, k, 1]
+		for (String layer : new String[] { "cnn3", "cnn4", "cnn5" }) {
+			model1d.getLayer(layer).setParam("W", model2d.getLayer(layer).getParam("W").permute(0, 3, 2, 1).dup());
+			model1d.getLayer(layer).setParam("b", model2d.getLayer(layer).getParam("b"));
+		}
+		model1d.getLayer("out").setParams(model2d.getLayer("out").params());
+
+		log.info("> Estimating Memory ...");
+
+		long memory2d = config2d.getMemoryReport(InputType.convolutional(truncateTextToLength, vectorSize, 1))
+				.getTotalMemoryBytes(batchSize, MemoryUseMode.INFERENCE, CacheMode.NONE);
+		long memory1d = config1d.getMemoryReport(InputType.recurrent(vectorSize, truncateTextToLength))
+				.getTotalMemoryBytes(batchSize, MemoryUseMode.INFERENCE, CacheMode.NONE);
+		log.info("> Estimated inference memory per batch of {}: 2D {} bytes, 1D {} bytes", batchSize, memory2d,
+				memory1d);
+
+		log.info("> Classifying ...");
+
+		// unshuffled, so both iterators give the same sentences in the same batches
+		DataSetIterator iterator2d = MainCNN.getDataSetIterator(false, wordVectors, batchSize, truncateTextToLength,
+				false, false, false);
+		DataSetIterator iterator1d = MainCNN.getDataSetIterator(false, wordVectors, batchSize, truncateTextToLength,
+				false, true, false);
+
+		long nanos2d = 0;
+		long nanos1d = 0;
+		long examples = 0;
+		double maxDifference = 0;
+		for (int i = 0; i < batches && iterator2d.hasNext() && iterator1d.hasNext(); i++) {
+			DataSet batch2d = iterator2d.next();
+			DataSet batch1d = iterator1d.next();
+			long[] shape2d = batch2d.getFeatures().shape();
+			if (!batch2d.getFeatures().reshape(shape2d[0], shape2d[2], shape2d[3]).permute(0, 2, 1)
+					.equals(batch1d.getFeatures())) {
+				throw new IllegalStateException("MainCNNBenchmark: batch " + i + " differs between the 2D and 1D data");
+			}
+
+			long start = System.nanoTime();
+			INDArray output2d = model2d.output(false, new INDArray[] { batch2d.getFeatures() },
+					new INDArray[] { batch2d.getFeaturesMaskArray() })[0];
+			nanos2d += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			INDArray output1d = model1d.output(false, new INDArray[] { batch1d.getFeatures() },
+					new INDArray[] { batch1d.getFeaturesMaskArray() })[0];
+			nanos1d += System.nanoTime() - start;
+
+			examples += output2d.rows();
+			maxDifference = Math.max(maxDifference, output2d.sub(output1d).amaxNumber().doubleValue());
+		}
+
+		log.info("> Classified {} examples, maximal output difference {}", examples, maxDifference);
+		log.info("> 2D: {} ms, {} examples/s", nanos2d / 1000000, examples * 1e9 / nanos2d);
+		log.info("> 1D: {} ms, {} examples/s", nanos1d / 1000000, examples * 1e9 / nanos1d);
+		log.info("> Off-heap bytes {} (physical {})", Pointer.totalBytes(), Pointer.physicalBytes());
+
+		log.info("> Good Bye ;-(");
+
+	}
+
+}
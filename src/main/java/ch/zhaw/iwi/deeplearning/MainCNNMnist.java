@@ -22,11 +22,14 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 
+import org.bytedeco.javacpp.Pointer;
 import org.datavec.api.io.labels.ParentPathLabelGenerator;
 import org.datavec.api.split.FileSplit;
 import org.datavec.image.loader.NativeImageLoader;
 import org.datavec.image.recordreader.ImageRecordReader;
+import org.datavec.image.transform.RotateImageTransform;
 import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.inputs.InputType;
@@ -34,14 +37,18 @@ import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
 import org.deeplearning4j.nn.conf.layers.DenseLayer;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.conf.memory.MemoryUseMode;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.nd4j.evaluation.classification.Evaluation;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.dataset.api.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.learning.config.Nesterovs;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.nd4j.linalg.schedule.MapSchedule;
@@ -74,21 +81,19 @@ public class MainCNNMnist {
 		int batchSize = 54; // number of samples that will be propagated through the network in each
 							// iteration
 		int nEpochs = 1; // number of training epochs
+		boolean autotune = false; // time batch sizes and thread counts, the fastest is saved to maincnnmnist.autotune
+		boolean asyncEvaluation = false; // evaluate parameter snapshots on a separate thread while training continues
+		int sampleEvaluationFrequency = 0; // with asyncEvaluation, evaluate a test sample every this many iterations
+		int evaluationWorkers = 1; // test set shards evaluated in parallel on model replicas, 1 is sequential
+		boolean packedCache = false; // decode the png folders once into mnist/*.packed, then read the mapped bytes
+		int decodeWorkers = 0; // without packedCache, decode images on this many threads, 0 on the training thread
+		boolean augment = false; // with decodeWorkers, rotate the training images randomly by up to 10 degrees
 
 		int seed = 1234; // number used to initialize a pseudorandom number generator.
+		DataType dataType = DataType.FLOAT; // FLOAT, HALF or BFLOAT16 for pixels and batches
+		DataType networkDataType = DataType.FLOAT; // parameters and updater state, FLOAT keeps FP32 master weights
 
-		log.info("> Preparing Data ...");
-
-		DataSetIterator trainIter = MainCNNMnist.getDataSetFromFolders(BASE_PATH + "/mnist_png/training", height, width,
-				channels, batchSize, outputNum, seed);
-		DataSetIterator testIter = MainCNNMnist.getDataSetFromFolders(BASE_PATH + "/mnist_png/testing", height, width,
-				channels, batchSize, outputNum, seed);
-
-		// pixel values from 0-255 to 0-1 (min-max scaling)
-		DataNormalization imageScaler = new ImagePreProcessingScaler();
-		imageScaler.fit(trainIter);
-		trainIter.setPreProcessor(imageScaler);
-		testIter.setPreProcessor(imageScaler);
+		Nd4j.setDefaultDataTypes(dataType, dataType); // batch assembly
 
 		log.info("> Building Model ...");
 
@@ -102,6 +107,7 @@ public class MainCNNMnist {
 		learningRateSchedule.put(1000, 0.001);
 
 		MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder().seed(seed)
+				.dataType(networkDataType)
 				.l2(0.0005) // ridge regression value
 				.updater(new Nesterovs(new MapSchedule(ScheduleType.ITERATION, learningRateSchedule)))
 				.weightInit(WeightInit.XAVIER)
@@ -129,24 +135,118 @@ public class MainCNNMnist {
 																					// normal image
 				.build();
 
+		Autotuner autotuner = new Autotuner(new File("maincnnmnist.autotune"), null, 0)
+				.setting("dataType", dataType)
+				.setting("networkDataType", networkDataType);
+		if (autotune) {
+			MultiLayerNetwork trialNet = new MultiLayerNetwork(conf.clone());
+			trialNet.init();
+			autotuner.tune(new int[] { 27, 54, 108, 216 }, Autotuner.threadCounts(), 20, (size, count) -> {
+				DataSetIterator trialIter = MainCNNMnist.getDataSetFromFolders(BASE_PATH + "/mnist_png/training",
+						height, width, channels, size, outputNum, seed);
+				trialIter.setPreProcessor(new ImagePreProcessingScaler());
+				return Autotuner.take(trialIter, count, DataSet::copy);
+			}, batch -> {
+				trialNet.fit(batch);
+				return batch.numExamples();
+			});
+		}
+		batchSize = autotuner.apply(batchSize);
+
+		log.info("> Preparing Data ...");
+
+		DataSetIterator trainIter;
+		DataSetIterator testIter;
+		if (packedCache) {
+			// pixel values scaled from 0-255 to 0-1 by the iterator
+			trainIter = MainCNNMnist.getDataSetFromPackedFolders(BASE_PATH + "/mnist_png/training",
+					new File(BASE_PATH + "/training.packed"), height, width, channels, batchSize, outputNum, seed,
+					dataType, true);
+			testIter = MainCNNMnist.getDataSetFromPackedFolders(BASE_PATH + "/mnist_png/testing",
+					new File(BASE_PATH + "/testing.packed"), height, width, channels, batchSize, outputNum, seed,
+					dataType, false);
+		} else if (decodeWorkers > 0) {
+			File trainFolder = new File(BASE_PATH + "/mnist_png/training");
+			File testFolder = new File(BASE_PATH + "/mnist_png/testing");
+			trainIter = new ParallelImageIterator.Builder(trainFolder, height, width, channels).batchSize(batchSize)
+					.workers(decodeWorkers)
+					.augmentation(augment ? () -> new RotateImageTransform(10) : null)
+					.seed(seed)
+					.dataType(dataType)
+					.build();
+			testIter = new ParallelImageIterator.Builder(testFolder, height, width, channels).batchSize(batchSize)
+					.workers(decodeWorkers)
+					.seed(seed)
+					.dataType(dataType)
+					.build();
+
+			// pixel values from 0-255 to 0-1 (min-max scaling), no statistics to fit
+			DataNormalization imageScaler = new ImagePreProcessingScaler();
+			trainIter.setPreProcessor(imageScaler);
+			testIter.setPreProcessor(imageScaler);
+		} else {
+			trainIter = MainCNNMnist.getDataSetFromFolders(BASE_PATH + "/mnist_png/training", height, width,
+					channels, batchSize, outputNum, seed);
+			testIter = MainCNNMnist.getDataSetFromFolders(BASE_PATH + "/mnist_png/testing", height, width, channels,
+					batchSize, outputNum, seed);
+
+			// pixel values from 0-255 to 0-1 (min-max scaling)
+			DataNormalization imageScaler = new ImagePreProcessingScaler();
+			imageScaler.fit(trainIter);
+			trainIter.setPreProcessor(imageScaler);
+			testIter.setPreProcessor(imageScaler);
+		}
+
 		MultiLayerNetwork net = new MultiLayerNetwork(conf);
 		net.init();
 
 		log.info("> Training & Testing Model ...");
 
-		net.setListeners(new ScoreIterationListener(10));
+		ThroughputListener throughput = new ThroughputListener();
+		net.setListeners(new ScoreIterationListener(10), throughput);
+		AsyncEvaluationListener asyncEvaluator = null;
+		if (asyncEvaluation) {
+			asyncEvaluator = new AsyncEvaluationListener.Builder(testIter).sampleFrequency(sampleEvaluationFrequency)
+					.samplePerClass(20)
+					.build();
+			net.addListeners(asyncEvaluator);
+		}
+		long estimatedBytes = conf.getMemoryReport(InputType.convolutionalFlat(height, width, channels))
+				.getTotalMemoryBytes(batchSize, MemoryUseMode.TRAINING, CacheMode.NONE, networkDataType);
 		log.info("Total num of params: {}", net.numParams());
 
+		ParallelEvaluator parallelEvaluator = evaluationWorkers > 1
+				? new ParallelEvaluator.Builder(net).workers(evaluationWorkers).build()
+				: null;
+
 		// evaluation while training (the score should go down)
+		DataSetIterator countedTrainIter = throughput.count(trainIter);
 		for (int i = 0; i < nEpochs; i++) {
-			net.fit(trainIter);
+			net.fit(countedTrainIter);
 			log.info("Completed epoch {}", i);
-			Evaluation eval = net.evaluate(testIter);
+			trainIter.reset();
+			if (asyncEvaluator != null) {
+				continue; // evaluated and logged by the evaluation thread
+			}
+			Evaluation eval = parallelEvaluator != null ? parallelEvaluator.evaluate(testIter) : net.evaluate(testIter);
 			log.info(eval.stats());
+			log.info("{} data, {} network: {} examples/s, accuracy {}, estimated training memory {} bytes, "
+					+ "off-heap bytes {} (physical {})", dataType, networkDataType, throughput.getExamplesPerSecond(),
+					eval.accuracy(), estimatedBytes, Pointer.totalBytes(), Pointer.physicalBytes());
 
-			trainIter.reset();
 			testIter.reset();
 		}
+		Evaluation eval = asyncEvaluator != null ? asyncEvaluator.finish() : null; // wait for the last snapshot
+		if (eval != null) {
+			log.info("{} data, {} network: {} examples/s, accuracy {}, estimated training memory {} bytes, "
+					+ "off-heap bytes {} (physical {})", dataType, networkDataType, throughput.getExamplesPerSecond(),
+					eval.accuracy(), estimatedBytes, Pointer.totalBytes(), Pointer.physicalBytes());
+		}
+
+		if (trainIter instanceof ParallelImageIterator) {
+			((ParallelImageIterator) trainIter).shutdown(); // stop the decoding threads
+			((ParallelImageIterator) testIter).shutdown();
+		}
 
 		log.info("> Good Bye ;-(");
 	}
@@ -166,4 +266,28 @@ public class MainCNNMnist {
 
 		return result;
 	}
+
+	/**
+	 * Decodes the images of the folder into the packed file on first use, or when
+	 * it holds images of another shape, then iterates over the memory-mapped packed
+	 * file.
+	 */
+	private static DataSetIterator getDataSetFromPackedFolders(String pathToRootFolder, File packedFile, int height,
+			int width, int channels, int batchSize, int outputNum, int seed, DataType dataType, boolean shuffle)
+			throws IOException {
+
+		if (!PackedImageIterator.hasShape(packedFile, height, width, channels)) {
+			if (packedFile.exists()) {
+				log.warn("{} does not hold {}x{}x{} images, packing it again", packedFile.getAbsolutePath(), channels,
+						height, width);
+			}
+			PackedImageIterator.pack(MainCNNMnist.getDataSetFromFolders(pathToRootFolder, height, width, channels,
+					1000, outputNum, seed), packedFile);
+		}
+		return new PackedImageIterator.Builder(packedFile).batchSize(batchSize)
+				.shuffle(shuffle)
+				.seed(seed)
+				.dataType(dataType)
+				.build();
+	}
 }
@@ -1,112 +1,230 @@
-package ch.zhaw.iwi.deeplearning;
-
-import java.io.File;
-import java.io.IOException;
-
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
-import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.nn.conf.GradientNormalization;
-import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
-import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
-import org.deeplearning4j.nn.conf.layers.LSTM;
-import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
-import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.deeplearning4j.nn.weights.WeightInit;
-import org.deeplearning4j.optimize.api.InvocationType;
-import org.deeplearning4j.optimize.listeners.EvaluativeListener;
-import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
-import org.nd4j.evaluation.classification.Evaluation;
-import org.nd4j.linalg.activations.Activation;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.learning.config.Adam;
-import org.nd4j.linalg.lossfunctions.LossFunctions;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Zurich University of Applied Sciences (ZHAW), Institute for Business
- * Information Systems (IWI), Center for Information Systems and Technologies
- * (CIS)
- * 
- * @author Alexandre de Spindler (desa@zhaw.ch)
- * 
- */
-public class MainRNN {
-
-	private static final Logger log = LoggerFactory.getLogger(MainRNN.class);
-
-	public static void main(String[] args) throws IOException, InterruptedException {
-
-		log.info("> Hello RNN :-)");
-
-		int vectorSize = 300;
-		int truncateTextToLength = 256; // Truncate reviews with length (# words) greater than this
-		int numberOfClasses = 2; // The number of possible outcomes
-
-		int nEpochs = 1; // Number of training epochs
-		int seed = 123;
-
-		Nd4j.getMemoryManager().setAutoGcWindow(10000); // https://deeplearning4j.org/workspaces
-
-		log.info("> Preparing Data ...");
-
-		int batchSize = 32;
-
-		WordVectors wordVectors = WordVectorSerializer.loadStaticModel(new File(Paths.WORD_VECTORS_PATH));
-		DataSetIterator trainData = getDataSetIterator(true, wordVectors, batchSize, truncateTextToLength);
-		DataSetIterator testData = getDataSetIterator(false, wordVectors, batchSize, truncateTextToLength);
-
-		log.info("> Building Model ...");
-
-		MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder().seed(seed)
-				.updater(new Adam(5e-3))
-				.l2(1e-5)
-				.weightInit(WeightInit.XAVIER)
-				.gradientNormalization(GradientNormalization.ClipElementWiseAbsoluteValue)
-				.gradientNormalizationThreshold(1.0)
-				.list()
-				.layer(new LSTM.Builder().nIn(vectorSize).nOut(256).activation(Activation.TANH).build())
-				.layer(new RnnOutputLayer.Builder().activation(Activation.SOFTMAX)
-						.lossFunction(LossFunctions.LossFunction.MCXENT)
-						.nIn(256)
-						.nOut(numberOfClasses)
-						.build())
-				.build();
-
-		MultiLayerNetwork model = new MultiLayerNetwork(conf);
-		model.init();
-
-		log.info("> Training Model ...");
-		model.setListeners(new ScoreIterationListener(100),
-				new EvaluativeListener(testData, 1, InvocationType.EPOCH_END));
-		model.fit(trainData, nEpochs);
-
-		log.info("> Testing Model ...");
-		Evaluation eval = model.evaluate(testData);
-		log.info(eval.stats());
-
-		log.info("> Good Bye ;-(");
-
-	}
-
-	private static DataSetIterator getDataSetIterator(boolean isTraining, WordVectors wordVectors, int minibatchSize,
-			int maxSentenceLength) throws IOException, InterruptedException {
-
-		if (isTraining) {
-			return new ClassifiedTextIterator4RNN.Builder(new String[] { "classifiedtextdata/lines-comedy_training.csv",
-					"classifiedtextdata/lines-thriller_training.csv" }, new String[] { "comedy", "thriller" })
-							.wordVectors(wordVectors)
-							.minibatchSize(minibatchSize)
-							.maxSentenceLength(maxSentenceLength)
-							.build();
-		} else {
-			return new ClassifiedTextIterator4RNN.Builder(new String[] { "classifiedtextdata/lines-comedy_testing.csv",
-					"classifiedtextdata/lines-thriller_testing.csv" }, new String[] { "comedy", "thriller" })
-							.wordVectors(wordVectors)
-							.minibatchSize(minibatchSize)
-							.maxSentenceLength(maxSentenceLength)
-							.build();
-		}
-	}
-}
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingResult;
+import org.deeplearning4j.earlystopping.scorecalc.DataSetLossCalculator;
+import org.deeplearning4j.earlystopping.trainer.EarlyStoppingTrainer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.nn.conf.GradientNormalization;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration.ListBuilder;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.conf.layers.recurrent.LastTimeStep;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.api.InvocationType;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.optimize.listeners.EvaluativeListener;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ * 
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ * 
+ */
+public class MainRNN {
+
+	private static final Logger log = LoggerFactory.getLogger(MainRNN.class);
+
+	public static void main(String[] args) throws Exception {
+
+		log.info("> Hello RNN :-)");
+
+		int vectorSize = 300;
+		int truncateTextToLength = 256; // Truncate reviews with length (# words) greater than this
+		int numberOfClasses = 2; // The number of possible outcomes
+		boolean tokenIndices = false; // Feed word indices through a frozen embedding layer instead of word vectors
+		boolean lastTimeStepLabels = false; // Classify the last step only instead of every step
+		DataType dataType = DataType.FLOAT; // FLOAT, HALF or BFLOAT16 for word vectors and batches
+		DataType networkDataType = DataType.FLOAT; // Parameters and updater state, FLOAT keeps FP32 master weights
+
+		int nEpochs = 1; // Number of training epochs
+		boolean earlyStopping = false; // Train until the validation loss stops improving, nEpochs is the maximum
+		int patience = 3; // Epochs without improvement before early stopping
+		double minImprovement = 1e-3; // Smallest decrease of the validation loss counted as improvement
+		long maxMinutes = 0; // Wall-clock budget for early stopping, 0 for no limit
+		int validationBatches = 10; // Training batches held out to compute the validation loss
+		int seed = 123;
+
+		Nd4j.getMemoryManager().togglePeriodicGc(false); // https://deeplearning4j.org/workspaces
+		Nd4j.setDefaultDataTypes(dataType, dataType); // Word vector storage and batch assembly
+
+		log.info("> Preparing Data ...");
+
+		int batchSize = 32;
+		long memoryBudget = 0; // Off-heap bytes for training: if > 0, the largest batchSize that fits is used
+		boolean autotune = false; // Time batch sizes and thread counts, the fastest is saved to mainrnn.autotune
+		boolean replayCache = false; // Replay vectorized batches from a compressed spill file after the first pass
+		long replayMemoryBudget = 0; // Off-heap bytes of replayed batches kept decoded between passes
+		boolean asyncEvaluation = false; // Evaluate parameter snapshots on a separate thread while training continues
+		int sampleEvaluationFrequency = 0; // With asyncEvaluation, evaluate a test sample every this many iterations
+		int evaluationWorkers = 1; // Test set shards evaluated in parallel on model replicas, 1 is sequential
+
+		WordVectors wordVectors = WordVectorsSubset.loadWordVectors();
+		MemoryPlanner.logOffHeap("loading word vectors");
+
+		log.info("> Building Model ...");
+
+		ListBuilder listBuilder = new NeuralNetConfiguration.Builder().seed(seed)
+				.dataType(networkDataType)
+				.updater(new Adam(5e-3))
+				.l2(1e-5)
+				.weightInit(WeightInit.XAVIER)
+				.gradientNormalization(GradientNormalization.ClipElementWiseAbsoluteValue)
+				.gradientNormalizationThreshold(1.0)
+				.list();
+		if (tokenIndices) {
+			listBuilder.layer(WordVectorsEmbeddingInitializer.frozenEmbeddingLayer(wordVectors));
+		}
+		LSTM lstm = new LSTM.Builder().nIn(vectorSize).nOut(256).activation(Activation.TANH).build();
+		if (lastTimeStepLabels) {
+			// LastTimeStep uses the features mask to pick the last step of each sequence
+			listBuilder.layer(new LastTimeStep(lstm))
+					.layer(new OutputLayer.Builder().activation(Activation.SOFTMAX)
+							.lossFunction(LossFunctions.LossFunction.MCXENT)
+							.nIn(256)
+							.nOut(numberOfClasses)
+							.build());
+		} else {
+			listBuilder.layer(lstm)
+					.layer(new RnnOutputLayer.Builder().activation(Activation.SOFTMAX)
+							.lossFunction(LossFunctions.LossFunction.MCXENT)
+							.nIn(256)
+							.nOut(numberOfClasses)
+							.build());
+		}
+		MultiLayerConfiguration conf = listBuilder.build();
+
+		// features, features mask and labels (plus labels mask) of one example
+		InputType inputType = InputType.recurrent(tokenIndices ? 1 : vectorSize, truncateTextToLength);
+		long elementsPerExample = (tokenIndices ? 1 : vectorSize) * truncateTextToLength + truncateTextToLength
+				+ (lastTimeStepLabels ? numberOfClasses : (numberOfClasses + 1) * truncateTextToLength);
+		MemoryPlanner planner = new MemoryPlanner(conf.getMemoryReport(inputType), networkDataType, dataType,
+				elementsPerExample);
+		if (memoryBudget > 0) {
+			batchSize = planner.getLargestBatchSize(memoryBudget);
+			log.info("> Batch size {} fits into {} bytes", batchSize, memoryBudget);
+		}
+
+		Autotuner autotuner = new Autotuner(new File("mainrnn.autotune"), planner, memoryBudget)
+				.setting("truncateTextToLength", truncateTextToLength)
+				.setting("tokenIndices", tokenIndices)
+				.setting("lastTimeStepLabels", lastTimeStepLabels)
+				.setting("dataType", dataType)
+				.setting("networkDataType", networkDataType);
+		if (autotune) {
+			MultiLayerNetwork trialModel = new MultiLayerNetwork(conf.clone());
+			trialModel.init();
+			autotuner.tune(new int[] { 16, 32, 64, 128 }, Autotuner.threadCounts(), 20,
+					(size, count) -> Autotuner.take(getDataSetIterator(true, wordVectors, size, truncateTextToLength,
+							tokenIndices, lastTimeStepLabels), count, DataSet::copy),
+					batch -> {
+						trialModel.fit(batch);
+						return batch.numExamples();
+					});
+		}
+		batchSize = autotuner.apply(batchSize);
+		planner.logEstimate(batchSize);
+
+		MultiLayerNetwork model = new MultiLayerNetwork(conf);
+		model.init();
+		MemoryPlanner.logOffHeap("building the model");
+
+		DataSetIterator trainData = getDataSetIterator(true, wordVectors, batchSize, truncateTextToLength,
+				tokenIndices, lastTimeStepLabels);
+		DataSetIterator testData = getDataSetIterator(false, wordVectors, batchSize, truncateTextToLength,
+				tokenIndices, lastTimeStepLabels);
+		if (replayCache) {
+			trainData = new ReplayCacheIterator.Builder(trainData).memoryBudget(replayMemoryBudget).build();
+			testData = new ReplayCacheIterator.Builder(testData).memoryBudget(replayMemoryBudget).build();
+		}
+
+		log.info("> Training Model ...");
+		ThroughputListener throughput = new ThroughputListener();
+		TrainingListener evaluation = new EvaluativeListener(testData, 1, InvocationType.EPOCH_END);
+		AsyncEvaluationListener asyncEvaluator = null;
+		if (asyncEvaluation) {
+			asyncEvaluator = new AsyncEvaluationListener.Builder(testData).sampleFrequency(sampleEvaluationFrequency)
+					.build();
+			evaluation = asyncEvaluator;
+		}
+		// throughput first, its epoch timer stops before the evaluation at the end of an epoch
+		model.setListeners(throughput, new ScoreIterationListener(100), evaluation);
+		if (earlyStopping) {
+			EarlyStoppingConfiguration<MultiLayerNetwork> earlyStoppingConf = EarlyStopping.configuration(
+					new DataSetLossCalculator(EarlyStopping.holdOut(trainData, validationBatches), true),
+					EarlyStopping.modelSaver(new File("mainrnn.earlystopping")), nEpochs, patience, minImprovement,
+					maxMinutes);
+			EarlyStoppingResult<MultiLayerNetwork> result = new EarlyStoppingTrainer(earlyStoppingConf, model,
+					throughput.count(EarlyStopping.skip(trainData, validationBatches))).fit();
+			EarlyStopping.logResult(result);
+			model = result.getBestModel();
+		} else {
+			model.fit(throughput.count(trainData), nEpochs);
+		}
+		if (asyncEvaluator != null) {
+			asyncEvaluator.finish(); // Wait for the last snapshot evaluation
+		}
+		MemoryPlanner.logOffHeap("training");
+
+		log.info("> Testing Model ...");
+		Evaluation eval = evaluationWorkers > 1
+				? new ParallelEvaluator.Builder(model).workers(evaluationWorkers).build().evaluate(testData)
+				: model.evaluate(testData);
+		log.info(eval.stats());
+		MemoryPlanner.logOffHeap("testing");
+
+		log.info("> {} data, {} network: {} examples/s, accuracy {}, estimated training memory {} bytes, "
+				+ "off-heap bytes {} (physical {})", dataType, networkDataType, throughput.getExamplesPerSecond(),
+				eval.accuracy(), planner.getTotalBytes(batchSize), Pointer.totalBytes(), Pointer.physicalBytes());
+
+		log.info("> Good Bye ;-(");
+
+	}
+
+	private static DataSetIterator getDataSetIterator(boolean isTraining, WordVectors wordVectors, int minibatchSize,
+			int maxSentenceLength, boolean tokenIndices, boolean lastTimeStepLabels)
+			throws IOException, InterruptedException {
+
+		if (isTraining) {
+			return new ClassifiedTextIterator4RNN.Builder(new String[] { "classifiedtextdata/lines-comedy_training.csv",
+					"classifiedtextdata/lines-thriller_training.csv" }, new String[] { "comedy", "thriller" })
+							.wordVectors(wordVectors)
+							.minibatchSize(minibatchSize)
+							.maxSentenceLength(maxSentenceLength)
+							.tokenIndices(tokenIndices)
+							.lastTimeStepLabels(lastTimeStepLabels)
+							.build();
+		} else {
+			return new ClassifiedTextIterator4RNN.Builder(new String[] { "classifiedtextdata/lines-comedy_testing.csv",
+					"classifiedtextdata/lines-thriller_testing.csv" }, new String[] { "comedy", "thriller" })
+							.wordVectors(wordVectors)
+							.minibatchSize(minibatchSize)
+							.maxSentenceLength(maxSentenceLength)
+							.tokenIndices(tokenIndices)
+							.lastTimeStepLabels(lastTimeStepLabels)
+							.build();
+		}
+	}
+}
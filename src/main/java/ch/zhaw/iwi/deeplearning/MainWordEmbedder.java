@@ -1,61 +1,111 @@
-package ch.zhaw.iwi.deeplearning;
-
-import java.io.File;
-import java.io.IOException;
-import java.util.Collection;
-
-import org.deeplearning4j.models.word2vec.Word2Vec;
-import org.deeplearning4j.text.sentenceiterator.BasicLineIterator;
-import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
-import org.deeplearning4j.text.sentenceiterator.SentencePreProcessor;
-import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-public class MainWordEmbedder {
-
-	private static final Logger log = LoggerFactory.getLogger(MainWordEmbedder.class);
-
-	public static void main(String[] args) throws IOException {
-
-		MainWordEmbedder.log.info("Accessing file line by line");
-		String filePath = new File("bible-luke.txt").getAbsolutePath();
-		SentenceIterator iterator = new BasicLineIterator(filePath);
-		iterator.setPreProcessor(new SentencePreProcessor() {
-			@Override
-			public String preProcess(String sentence) {
-				return sentence.toLowerCase();
-			}
-		});
-
-		MainWordEmbedder.log.info("Tokenising");
-		TokenizerFactory t = new DefaultTokenizerFactory();
-		t.setTokenPreProcessor(new CommonPreprocessor());
-
-		MainWordEmbedder.log.info("Building model");
-		Word2Vec vec = new Word2Vec.Builder().minWordFrequency(3)
-				.layerSize(100)
-				.seed(42)
-				.windowSize(5)
-				.iterate(iterator)
-				.tokenizerFactory(t)
-				.build();
-
-		MainWordEmbedder.log.info("Training model");
-		vec.fit();
-
-		// TODO SAVE
-		// WordVectorSerializer.writeWordVectors(vec, "PATHTOFILE.txt");
-
-		MainWordEmbedder.log.info("Testing");
-
-		Collection<String> neighbours = vec.wordsNearest("heart", 7);
-		System.out.println(neighbours);
-
-		Collection<String> neighboursSum = vec.wordsNearestSum("heart", 7);
-		System.out.println(neighboursSum);
-	}
-
-}
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.text.sentenceiterator.BasicLineIterator;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.sentenceiterator.SentencePreProcessor;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MainWordEmbedder {
+
+	private static final Logger log = LoggerFactory.getLogger(MainWordEmbedder.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		boolean corpus = false; // Train on all files of corpusFolder instead of bible-luke.txt
+		File corpusFolder = new File("corpus"); // Text files or shards, one sentence per line
+		int corpusWorkers = Runtime.getRuntime().availableProcessors(); // Threads reading and tokenizing the corpus
+
+		Word2Vec vec;
+		File vectorsFile;
+		if (corpus) {
+			vec = MainWordEmbedder.buildCorpusModel(corpusFolder, corpusWorkers);
+			vectorsFile = new File("corpus.vectors.bin");
+		} else {
+			vec = MainWordEmbedder.buildModel();
+			vectorsFile = new File("bible-luke.vectors.bin");
+		}
+
+		MainWordEmbedder.log.info("Training model");
+		vec.fit();
+
+		MainWordEmbedder.log.info("Saving model");
+		BinaryWordVectors.write(vec, vectorsFile);
+
+		MainWordEmbedder.log.info("Testing");
+
+		Collection<String> neighbours = vec.wordsNearest("heart", 7);
+		System.out.println(neighbours);
+
+		Collection<String> neighboursSum = vec.wordsNearestSum("heart", 7);
+		System.out.println(neighboursSum);
+	}
+
+	private static Word2Vec buildModel() throws IOException {
+		MainWordEmbedder.log.info("Accessing file line by line");
+		String filePath = new File("bible-luke.txt").getAbsolutePath();
+		SentenceIterator iterator = new BasicLineIterator(filePath);
+		iterator.setPreProcessor(new SentencePreProcessor() {
+			@Override
+			public String preProcess(String sentence) {
+				return sentence.toLowerCase();
+			}
+		});
+
+		MainWordEmbedder.log.info("Tokenising");
+		TokenizerFactory t = new DefaultTokenizerFactory();
+		t.setTokenPreProcessor(new CommonPreprocessor());
+
+		MainWordEmbedder.log.info("Building model");
+		return new Word2Vec.Builder().minWordFrequency(3)
+				.layerSize(100)
+				.seed(42)
+				.windowSize(5)
+				.iterate(iterator)
+				.tokenizerFactory(t)
+				.build();
+	}
+
+	/**
+	 * Reads and tokenizes the corpus on a pool of workers and counts its words in
+	 * parallel, so Word2Vec only trains.
+	 */
+	private static Word2Vec buildCorpusModel(File corpusFolder, int workers) throws IOException, InterruptedException {
+		MainWordEmbedder.log.info("Accessing corpus " + corpusFolder.getAbsolutePath());
+		CorpusSentenceIterator iterator = new CorpusSentenceIterator.Builder(corpusFolder).workers(workers).build();
+
+		MainWordEmbedder.log.info("Building vocabulary");
+		VocabCache<VocabWord> vocab = iterator.buildVocabulary(3);
+		InMemoryLookupTable<VocabWord> lookupTable = new InMemoryLookupTable.Builder<VocabWord>().vectorLength(100)
+				.useAdaGrad(false)
+				.cache(vocab)
+				.seed(42)
+				.build();
+		lookupTable.resetWeights(true);
+
+		MainWordEmbedder.log.info("Building model");
+		return new Word2Vec.Builder().minWordFrequency(3)
+				.layerSize(100)
+				.seed(42)
+				.windowSize(5)
+				.workers(workers)
+				.vocabCache(vocab)
+				.lookupTable(lookupTable)
+				.resetModel(false)
+				.iterate(iterator)
+				.tokenizerFactory(CorpusSentenceIterator.pretokenized())
+				.build();
+	}
+
+}
@@ -0,0 +1,613 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.datavec.api.records.reader.RecordReader;
+import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
+import org.datavec.api.split.FileSplit;
+import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Reads a numeric CSV file (one example per line, one column holding the class
+ * index) into a single DataSet, without the per-cell Writables of
+ * CSVRecordReader. The file is memory-mapped and split into one range per
+ * thread at line boundaries. A first parallel pass counts the lines of each
+ * range, so the feature and one-hot label arrays can be allocated once with
+ * their final size; a second pass parses the numbers directly from the mapped
+ * bytes into the memory of these arrays, each thread writing the rows of its
+ * range.
+ *
+ * Files larger than 2 GB are mapped in windows. The memory of an array is
+ * written through a single buffer of at most 2 GB, so {@link #read()} fails if
+ * the features or labels of all rows take more; {@link #readDataSets()} reads
+ * them into as many DataSets as needed instead. Numbers are parsed as decimal
+ * with an optional sign, fraction and exponent; anything else (e.g. NaN) falls
+ * back to Float.parseFloat. Empty lines are skipped.
+ *
+ * {@link #main(String[])} compares the rows per second with
+ * CSVRecordReader/RecordReaderDataSetIterator and can generate large files of
+ * the shape of randomdataTraining.csv for this.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class MappedCsvReader {
+
+	private static final Logger log = LoggerFactory.getLogger(MappedCsvReader.class);
+
+	// bytes mapped at once, lines must be shorter
+	private static final int WINDOW = 1 << 30;
+	// bytes of one array, written through a single ByteBuffer
+	private static final long MAX_ARRAY_BYTES = Integer.MAX_VALUE;
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final File file;
+	private final int labelIndex;
+	private final int numberOfClasses;
+	private final byte delimiter;
+	private final int skipLines;
+	private final long maxRows;
+	private final int threads;
+
+	private MappedCsvReader(Builder builder) {
+		this.file = builder.file;
+		this.labelIndex = builder.labelIndex;
+		this.numberOfClasses = builder.numberOfClasses;
+		this.delimiter = (byte) builder.delimiter;
+		this.skipLines = builder.skipLines;
+		this.maxRows = builder.maxRows;
+		this.threads = builder.threads;
+	}
+
+	/**
+	 * @return all rows (up to maxRows) as one DataSet with float features and
+	 *         one-hot labels
+	 * @throws IOException if the features or labels take more than 2 GB, see
+	 *                     {@link #readDataSets()}
+	 */
+	public DataSet read() throws IOException, InterruptedException {
+		return this.read(true).get(0);
+	}
+
+	/**
+	 * @return all rows (up to maxRows) in order, split into the fewest DataSets
+	 *         whose features and labels take at most 2 GB each
+	 */
+	public List<DataSet> readDataSets() throws IOException, InterruptedException {
+		return this.read(false);
+	}
+
+	private List<DataSet> read(boolean single) throws IOException, InterruptedException {
+		try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long[] bounds = this.split(channel, size);
+			int ranges = bounds.length - 1;
+			int columns = this.countColumns(channel, bounds[0], size);
+			int featureColumns = columns - 1;
+
+			ExecutorService executor = Executors.newFixedThreadPool(ranges);
+			try {
+				List<Callable<Long>> counters = new ArrayList<Callable<Long>>();
+				for (int i = 0; i < ranges; i++) {
+					long from = bounds[i];
+					long to = bounds[i + 1];
+					counters.add(() -> MappedCsvReader.countLines(channel, from, to));
+				}
+				long[] firstRows = new long[ranges + 1];
+				List<Future<Long>> counts = executor.invokeAll(counters);
+				for (int i = 0; i < ranges; i++) {
+					firstRows[i + 1] = firstRows[i] + MappedCsvReader.get(counts.get(i));
+				}
+				long rows = Math.min(firstRows[ranges], this.maxRows);
+				long rowsPerDataSet = Math.max(1,
+						MAX_ARRAY_BYTES / Float.BYTES / Math.max(featureColumns, this.numberOfClasses));
+				if (single && rows > rowsPerDataSet) {
+					throw new IOException("MappedCsvReader: " + rows + " rows take more than " + MAX_ARRAY_BYTES
+							+ " bytes per array, use readDataSets()");
+				}
+
+				int numberOfDataSets = (int) Math.max(1, (rows + rowsPerDataSet - 1) / rowsPerDataSet);
+				List<DataSet> dataSets = new ArrayList<DataSet>(numberOfDataSets);
+				FloatBuffer[] featureBuffers = new FloatBuffer[numberOfDataSets];
+				FloatBuffer[] labelBuffers = new FloatBuffer[numberOfDataSets];
+				for (int i = 0; i < numberOfDataSets; i++) {
+					long dataSetRows = Math.min(rowsPerDataSet, rows - i * rowsPerDataSet);
+					INDArray features;
+					INDArray labels;
+					try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+						features = Nd4j.create(DataType.FLOAT, dataSetRows, featureColumns);
+						labels = Nd4j.create(DataType.FLOAT, dataSetRows, this.numberOfClasses);
+					}
+					featureBuffers[i] = MappedCsvReader.floats(features);
+					labelBuffers[i] = MappedCsvReader.floats(labels);
+					dataSets.add(new DataSet(features, labels));
+				}
+
+				List<Callable<Long>> parsers = new ArrayList<Callable<Long>>();
+				for (int i = 0; i < ranges && firstRows[i] < rows; i++) {
+					long from = bounds[i];
+					long to = bounds[i + 1];
+					RowParser parser = new RowParser(featureBuffers, labelBuffers, rowsPerDataSet, columns,
+							firstRows[i], Math.min(firstRows[i + 1], rows));
+					parsers.add(() -> MappedCsvReader.forEachLine(channel, from, to, parser));
+				}
+				for (Future<Long> parsed : executor.invokeAll(parsers)) {
+					MappedCsvReader.get(parsed);
+				}
+				return dataSets;
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * @return the start of the first row, the starts of the following ranges at
+	 *         line boundaries and the file size
+	 */
+	private long[] split(FileChannel channel, long size) throws IOException {
+		long start = 0;
+		for (int i = 0; i < this.skipLines && start < size; i++) {
+			start = MappedCsvReader.nextLineStart(channel, start + 1, size);
+		}
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(start);
+		for (int i = 1; i < this.threads; i++) {
+			long bound = MappedCsvReader.nextLineStart(channel, start + (size - start) * i / this.threads, size);
+			if (bound > bounds.get(bounds.size() - 1) && bound < size) {
+				bounds.add(bound);
+			}
+		}
+		bounds.add(size);
+		return bounds.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * @return the position after the first line break at or after position - 1,
+	 *         i.e. position itself if a line starts there
+	 */
+	static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+		if (position <= 0) {
+			return 0;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		long offset = position - 1;
+		while (offset < size) {
+			buffer.clear();
+			int read = channel.read(buffer, offset);
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return offset + i + 1;
+				}
+			}
+			offset += Math.max(read, 1);
+		}
+		return size;
+	}
+
+	private int countColumns(FileChannel channel, long start, long size) throws IOException {
+		int[] columns = new int[1];
+		MappedCsvReader.forEachLine(channel, start, size, (window, from, to) -> {
+			columns[0] = 1;
+			for (int i = from; i < to; i++) {
+				if (window.get(i) == this.delimiter) {
+					columns[0]++;
+				}
+			}
+			return false;
+		});
+		if (columns[0] == 0) {
+			throw new IOException("MappedCsvReader: no rows in " + this.file);
+		}
+		if (this.labelIndex < 0 || this.labelIndex >= columns[0]) {
+			throw new IllegalArgumentException(
+					"MappedCsvReader: label column " + this.labelIndex + " of " + columns[0] + " columns");
+		}
+		return columns[0];
+	}
+
+	private static long countLines(FileChannel channel, long from, long to) throws IOException {
+		return MappedCsvReader.forEachLine(channel, from, to, (window, start, end) -> true);
+	}
+
+	/**
+	 * Visits the non-empty lines starting within [from, to), without line break.
+	 * The file is mapped in windows of up to {@link #WINDOW} bytes; a line crossing
+	 * the end of a window is visited in the next one.
+	 *
+	 * @return the number of lines visited
+	 */
+	static long forEachLine(FileChannel channel, long from, long to, LineVisitor visitor)
+			throws IOException {
+		long size = channel.size();
+		long lines = 0;
+		long position = from;
+		while (position < to) {
+			int length = (int) Math.min(WINDOW, size - position);
+			MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, length);
+			boolean endOfFile = position + length == size;
+			int lineStart = 0;
+			while (lineStart < length && position + lineStart < to) {
+				int lineEnd = lineStart;
+				while (lineEnd < length && window.get(lineEnd) != '\n') {
+					lineEnd++;
+				}
+				if (lineEnd == length && !endOfFile) {
+					break;
+				}
+				int contentEnd = lineEnd > lineStart && window.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+				if (contentEnd > lineStart) {
+					lines++;
+					if (!visitor.visit(window, lineStart, contentEnd)) {
+						return lines;
+					}
+				}
+				lineStart = lineEnd + 1;
+			}
+			if (lineStart == 0) {
+				throw new IOException("MappedCsvReader: line at byte " + position + " longer than " + WINDOW);
+			}
+			position += lineStart;
+		}
+		return lines;
+	}
+
+	/**
+	 * Parses a decimal number of the bytes [from, to) of buffer.
+	 */
+	static float parseFloat(ByteBuffer buffer, int from, int to) {
+		int i = from;
+		while (i < to && buffer.get(i) == ' ') {
+			i++;
+		}
+		int end = to;
+		while (end > i && buffer.get(end - 1) == ' ') {
+			end--;
+		}
+		boolean negative = false;
+		if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean fraction = false;
+		boolean anyDigit = false;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				anyDigit = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (mantissa > 0) {
+						digits++;
+					}
+					if (fraction) {
+						exponent--;
+					}
+				} else if (!fraction) {
+					exponent++;
+				}
+			} else if (b == '.' && !fraction) {
+				fraction = true;
+			} else {
+				break;
+			}
+		}
+		if (i < end && anyDigit && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+			int j = i + 1;
+			boolean negativeExponent = false;
+			if (j < end && (buffer.get(j) == '-' || buffer.get(j) == '+')) {
+				negativeExponent = buffer.get(j) == '-';
+				j++;
+			}
+			int value = 0;
+			int start = j;
+			for (; j < end && buffer.get(j) >= '0' && buffer.get(j) <= '9' && value < 1000; j++) {
+				value = value * 10 + (buffer.get(j) - '0');
+			}
+			if (j > start) {
+				exponent += negativeExponent ? -value : value;
+				i = j;
+			}
+		}
+		if (!anyDigit || i < end || Math.abs(exponent) >= POWERS_OF_TEN.length) {
+			return MappedCsvReader.slowParseFloat(buffer, from, to);
+		}
+		double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		return (float) (negative ? -value : value);
+	}
+
+	private static float slowParseFloat(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(from + i);
+		}
+		return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII).trim());
+	}
+
+	/**
+	 * @return a view on the memory of a freshly created array
+	 */
+	private static FloatBuffer floats(INDArray array) {
+		return array.data().asNio().order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	private static long get(Future<Long> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("MappedCsvReader: interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException("MappedCsvReader: parsing failed", e.getCause());
+		}
+	}
+
+	interface LineVisitor {
+
+		/**
+		 * @return false to stop visiting
+		 */
+		boolean visit(ByteBuffer window, int from, int to) throws IOException;
+	}
+
+	/**
+	 * Writes the lines of one range into the rows [row, lastRow) of the feature
+	 * and label buffers, rowsPerDataSet rows per buffer.
+	 */
+	private class RowParser implements LineVisitor {
+
+		private final FloatBuffer[] features;
+		private final FloatBuffer[] labels;
+		private final long rowsPerDataSet;
+		private final int columns;
+		private final long lastRow;
+		private long row;
+
+		private RowParser(FloatBuffer[] features, FloatBuffer[] labels, long rowsPerDataSet, int columns, long row,
+				long lastRow) {
+			this.features = new FloatBuffer[features.length];
+			this.labels = new FloatBuffer[labels.length];
+			for (int i = 0; i < features.length; i++) {
+				this.features[i] = features[i].duplicate();
+				this.labels[i] = labels[i].duplicate();
+			}
+			this.rowsPerDataSet = rowsPerDataSet;
+			this.columns = columns;
+			this.row = row;
+			this.lastRow = lastRow;
+		}
+
+		@Override
+		public boolean visit(ByteBuffer window, int from, int to) throws IOException {
+			if (this.row >= this.lastRow) {
+				return false;
+			}
+			FloatBuffer features = this.features[(int) (this.row / this.rowsPerDataSet)];
+			FloatBuffer labels = this.labels[(int) (this.row / this.rowsPerDataSet)];
+			int dataSetRow = (int) (this.row % this.rowsPerDataSet);
+			int featureIndex = dataSetRow * (this.columns - 1);
+			int column = 0;
+			int fieldStart = from;
+			for (int i = from; i <= to; i++) {
+				if (i < to && window.get(i) != MappedCsvReader.this.delimiter) {
+					continue;
+				}
+				if (column >= this.columns) {
+					column++;
+					break;
+				}
+				float value = MappedCsvReader.parseFloat(window, fieldStart, i);
+				if (column == MappedCsvReader.this.labelIndex) {
+					int label = (int) value;
+					if (label < 0 || label >= MappedCsvReader.this.numberOfClasses) {
+						throw new IOException("MappedCsvReader: label " + label + " in row " + this.row
+								+ " is not within 0 and " + (MappedCsvReader.this.numberOfClasses - 1));
+					}
+					labels.put(dataSetRow * MappedCsvReader.this.numberOfClasses + label, 1f);
+				} else {
+					features.put(featureIndex++, value);
+				}
+				column++;
+				fieldStart = i + 1;
+			}
+			if (column != this.columns) {
+				throw new IOException("MappedCsvReader: row " + this.row + " does not have " + this.columns
+						+ " columns");
+			}
+			this.row++;
+			return true;
+		}
+	}
+
+	/**
+	 * Compares the rows per second of MappedCsvReader and
+	 * CSVRecordReader/RecordReaderDataSetIterator.
+	 *
+	 * Arguments: [file [rows to generate first]], defaults to
+	 * randomdataTraining.csv. With a number of rows, a file of random rows of the
+	 * shape of randomdataTraining.csv (5 integer features, class 0-4 last) is
+	 * written first, e.g. 200000000 rows for about 3 GB.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		File file = new File(args.length > 0 ? args[0] : "randomdataTraining.csv");
+		if (args.length > 1) {
+			MappedCsvReader.generate(file, Long.parseLong(args[1]));
+		}
+		int labelIndex = 5;
+		int numberOfClasses = 5;
+		int repetitions = 3;
+
+		MappedCsvReader reader = new MappedCsvReader.Builder(file).labelIndex(labelIndex)
+				.numberOfClasses(numberOfClasses)
+				.build();
+		List<DataSet> mappedDataSets = null;
+		long rows = 0;
+		double mappedRowsPerSecond = 0;
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			mappedDataSets = reader.readDataSets();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			rows = mappedDataSets.stream().mapToLong(DataSet::numExamples).sum();
+			mappedRowsPerSecond = Math.max(mappedRowsPerSecond, rows / seconds);
+		}
+		log.info("> MappedCsvReader: {} rows in {} DataSets, {} rows/s", rows, mappedDataSets.size(),
+				(long) mappedRowsPerSecond);
+
+		if (mappedDataSets.size() > 1 || rows * (labelIndex + numberOfClasses) > Integer.MAX_VALUE / 4) {
+			log.info("> File too large to compare with CSVRecordReader in one DataSet");
+			return;
+		}
+		DataSet mapped = mappedDataSets.get(0);
+		DataSet recordReader = null;
+		double recordReaderRowsPerSecond = 0;
+		for (int i = 0; i < repetitions; i++) {
+			long start = System.nanoTime();
+			RecordReader rr = new CSVRecordReader(0);
+			rr.initialize(new FileSplit(file));
+			recordReader = new RecordReaderDataSetIterator(rr, (int) rows, labelIndex, numberOfClasses).next();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			recordReaderRowsPerSecond = Math.max(recordReaderRowsPerSecond, recordReader.numExamples() / seconds);
+		}
+		log.info("> CSVRecordReader: {} rows, {} rows/s", recordReader.numExamples(),
+				(long) recordReaderRowsPerSecond);
+		log.info("> Speedup {}, same DataSet: {}", mappedRowsPerSecond / recordReaderRowsPerSecond,
+				mapped.getFeatures().equalsWithEps(recordReader.getFeatures().castTo(DataType.FLOAT), 1e-5)
+						&& mapped.getLabels().equalsWithEps(recordReader.getLabels().castTo(DataType.FLOAT), 1e-5));
+	}
+
+	private static void generate(File file, long rows) throws IOException {
+		log.info("> Writing {} random rows to {}", rows, file.getAbsolutePath());
+		Random random = new Random(123);
+		try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+			StringBuilder line = new StringBuilder();
+			for (long i = 0; i < rows; i++) {
+				line.setLength(0);
+				for (int j = 0; j < 5; j++) {
+					line.append(random.nextInt(30)).append(',');
+				}
+				line.append(random.nextInt(5)).append('\n');
+				writer.write(line.toString());
+			}
+		}
+	}
+
+	public static class Builder {
+
+		private final File file;
+		private int labelIndex = -1;
+		private int numberOfClasses = -1;
+		private char delimiter = ',';
+		private int skipLines = 0;
+		private long maxRows = Long.MAX_VALUE;
+		private int threads = Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * @param file the CSV file to read
+		 */
+		public Builder(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Index of the column holding the class index, the other columns are the
+		 * features.
+		 */
+		public Builder labelIndex(int labelIndex) {
+			this.labelIndex = labelIndex;
+			return this;
+		}
+
+		/**
+		 * Number of classes, i.e. the width of the one-hot labels.
+		 */
+		public Builder numberOfClasses(int numberOfClasses) {
+			this.numberOfClasses = numberOfClasses;
+			return this;
+		}
+
+		/**
+		 * Column delimiter. Defaults to ','.
+		 */
+		public Builder delimiter(char delimiter) {
+			this.delimiter = delimiter;
+			return this;
+		}
+
+		/**
+		 * Number of lines to skip at the start of the file, e.g. a header. Defaults
+		 * to 0.
+		 */
+		public Builder skipLines(int skipLines) {
+			this.skipLines = skipLines;
+			return this;
+		}
+
+		/**
+		 * Maximum number of rows to read. Defaults to all rows.
+		 */
+		public Builder maxRows(long maxRows) {
+			this.maxRows = maxRows;
+			return this;
+		}
+
+		/**
+		 * Number of threads parsing ranges of the file. Defaults to the number of
+		 * available processors.
+		 */
+		public Builder threads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		public MappedCsvReader build() {
+			if (this.labelIndex < 0 || this.numberOfClasses <= 0) {
+				throw new IllegalStateException("MappedCsvReader: labelIndex and numberOfClasses are required");
+			}
+			return new MappedCsvReader(this);
+		}
+	}
+
+}
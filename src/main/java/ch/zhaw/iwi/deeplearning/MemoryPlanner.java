@@ -0,0 +1,118 @@
+package ch.zhaw.iwi.deeplearning;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.conf.CacheMode;
+import org.deeplearning4j.nn.conf.memory.MemoryReport;
+import org.deeplearning4j.nn.conf.memory.MemoryType;
+import org.deeplearning4j.nn.conf.memory.MemoryUseMode;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Estimates the off-heap memory for training a network: parameters, gradients,
+ * updater state, activations and working memory as given by the memory report
+ * of the network configuration, plus the batches held by the iterator (the
+ * {@link BatchBufferPool#DEFAULT_SLOTS} pooled or prefetched batches). Given a
+ * budget, it chooses the largest batch size that fits.
+ *
+ * Usage: <code>new MemoryPlanner(config.getMemoryReport(inputType),
+ * networkDataType, dataType, elementsPerExample)</code>, where
+ * elementsPerExample is the number of features, labels and mask values of one
+ * example.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class MemoryPlanner {
+
+	private static final Logger log = LoggerFactory.getLogger(MemoryPlanner.class);
+
+	public static final int MAX_BATCH_SIZE = 1 << 16;
+
+	private final MemoryReport report;
+	private final DataType networkDataType;
+	private final DataType batchDataType;
+	private final long batchElementsPerExample;
+
+	public MemoryPlanner(MemoryReport report, DataType networkDataType, DataType batchDataType,
+			long batchElementsPerExample) {
+		this.report = report;
+		this.networkDataType = networkDataType;
+		this.batchDataType = batchDataType;
+		this.batchElementsPerExample = batchElementsPerExample;
+	}
+
+	/**
+	 * @return the estimated bytes of the pooled or prefetched batches
+	 */
+	public long getBatchBytes(int batchSize) {
+		return BatchBufferPool.DEFAULT_SLOTS * batchSize * this.batchElementsPerExample * this.batchDataType.width();
+	}
+
+	/**
+	 * @return the estimated bytes for training with the given batch size
+	 */
+	public long getTotalBytes(int batchSize) {
+		return this.report.getTotalMemoryBytes(batchSize, MemoryUseMode.TRAINING, CacheMode.NONE,
+				this.networkDataType) + this.getBatchBytes(batchSize);
+	}
+
+	/**
+	 * @return the largest batch size whose estimated training memory fits into
+	 *         budget bytes
+	 * @throws IllegalStateException if not even a batch of one example fits
+	 */
+	public int getLargestBatchSize(long budget) {
+		if (this.getTotalBytes(1) > budget) {
+			throw new IllegalStateException("MemoryPlanner: " + this.getTotalBytes(1)
+					+ " bytes are needed for a batch of one example, the budget is " + budget + " bytes");
+		}
+		// the estimate grows with the batch size: double, then bisect
+		int fits = 1;
+		int exceeds = 2;
+		while (exceeds <= MAX_BATCH_SIZE && this.getTotalBytes(exceeds) <= budget) {
+			fits = exceeds;
+			exceeds *= 2;
+		}
+		if (exceeds > MAX_BATCH_SIZE) {
+			return fits;
+		}
+		while (exceeds - fits > 1) {
+			int middle = (fits + exceeds) / 2;
+			if (this.getTotalBytes(middle) <= budget) {
+				fits = middle;
+			} else {
+				exceeds = middle;
+			}
+		}
+		return fits;
+	}
+
+	/**
+	 * Logs the estimate per memory type for the given batch size.
+	 */
+	public void logEstimate(int batchSize) {
+		log.info("> Estimated training memory for batches of {} ({} network, {} data):", batchSize,
+				this.networkDataType, this.batchDataType);
+		for (MemoryType type : MemoryType.values()) {
+			log.info("  {}: {} bytes", type, this.report.getMemoryBytes(type, batchSize, MemoryUseMode.TRAINING,
+					CacheMode.NONE, this.networkDataType));
+		}
+		log.info("  BATCHES: {} bytes", this.getBatchBytes(batchSize));
+		log.info("  TOTAL: {} bytes", this.getTotalBytes(batchSize));
+	}
+
+	/**
+	 * Logs the actual ND4J off-heap usage after the given phase.
+	 */
+	public static void logOffHeap(String phase) {
+		log.info("> Off-heap after {}: {} bytes (physical {}, max {})", phase, Pointer.totalBytes(),
+				Pointer.physicalBytes(), Pointer.maxBytes());
+	}
+
+}
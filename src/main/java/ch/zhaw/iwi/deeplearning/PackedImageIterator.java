@@ -0,0 +1,399 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Iterates over images that were decoded once into a packed file of 8-bit
+ * pixels, instead of decoding image files in every epoch.
+ * {@link #pack(DataSetIterator, File)} writes the file from any iterator of
+ * unscaled images (e.g. an ImageRecordReader): a header with the image shape,
+ * the number of images and the label names, followed by one record per image,
+ * the class index in one byte and the pixels in one byte each (channels x
+ * height x width). Pixels thus take a quarter of the memory of floats.
+ *
+ * The iterator memory-maps the file and builds each batch straight from the
+ * bytes, scaling the pixels to 0-1 like ImagePreProcessingScaler. The order of
+ * the images is shuffled in every epoch unless shuffling is turned off. The
+ * file must be smaller than 2 GB.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class PackedImageIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggerFactory.getLogger(PackedImageIterator.class);
+
+	private static final int MAGIC = 0x50494D47; // "PIMG"
+	private static final int VERSION = 1;
+	private static final int COUNT_OFFSET = 8;
+	private static final float[] SCALED = new float[256];
+
+	static {
+		for (int i = 0; i < SCALED.length; i++) {
+			SCALED[i] = i / 255f;
+		}
+	}
+
+	private final int batchSize;
+	private final boolean shuffle;
+	private final Random random;
+	private final DataType dataType;
+
+	private final MappedByteBuffer buffer;
+	private final int count;
+	private final int channels;
+	private final int height;
+	private final int width;
+	private final int numberOfClasses;
+	private final List<String> labels;
+	private final int dataStart;
+	private final int[] order;
+	private final byte[] record;
+	private int cursor;
+	private DataSetPreProcessor preProcessor;
+
+	private PackedImageIterator(Builder builder) throws IOException {
+		this.batchSize = builder.batchSize;
+		this.shuffle = builder.shuffle;
+		this.random = new Random(builder.seed);
+		this.dataType = builder.dataType;
+
+		try (FileChannel channel = FileChannel.open(builder.file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("PackedImageIterator: " + builder.file + " is larger than 2 GB");
+			}
+			this.buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (this.buffer.getInt() != MAGIC || this.buffer.getInt() != VERSION) {
+			throw new IOException("PackedImageIterator: " + builder.file + " is not a packed image file");
+		}
+		this.count = this.buffer.getInt();
+		this.channels = this.buffer.getInt();
+		this.height = this.buffer.getInt();
+		this.width = this.buffer.getInt();
+		this.numberOfClasses = this.buffer.getInt();
+		int numberOfLabels = this.buffer.getInt();
+		this.labels = new ArrayList<String>();
+		for (int i = 0; i < numberOfLabels; i++) {
+			byte[] label = new byte[this.buffer.getShort() & 0xFFFF];
+			this.buffer.get(label);
+			this.labels.add(new String(label, StandardCharsets.UTF_8));
+		}
+		this.dataStart = this.buffer.position();
+		this.record = new byte[1 + this.channels * this.height * this.width];
+		if (this.dataStart + (long) this.count * this.record.length != this.buffer.capacity()) {
+			throw new IOException("PackedImageIterator: " + builder.file + " is incomplete");
+		}
+
+		this.order = new int[this.count];
+		for (int i = 0; i < this.count; i++) {
+			this.order[i] = i;
+		}
+		this.reset();
+	}
+
+	/**
+	 * Writes the images of source to a packed file, see {@link PackedImageIterator}.
+	 * The pixels must be unscaled 8-bit values (0-255) and the labels one-hot. The
+	 * file is written to a temporary file first and then renamed, the temporary
+	 * file is deleted if packing fails.
+	 */
+	public static void pack(DataSetIterator source, File file) throws IOException {
+		long start = System.currentTimeMillis();
+		File temporary = new File(file.getPath() + ".tmp");
+		int count = 0;
+		try {
+			count = PackedImageIterator.packTo(source, temporary);
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary.toPath());
+		}
+		log.info("> Packed {} images into {} ({} bytes) in {} ms", count, file.getAbsolutePath(), file.length(),
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return the number of images written
+	 */
+	private static int packTo(DataSetIterator source, File temporary) throws IOException {
+		int count = 0;
+		try (RandomAccessFile packed = new RandomAccessFile(temporary, "rw")) {
+			packed.setLength(0);
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(packed.getFD()), 1 << 16));
+			while (source.hasNext()) {
+				DataSet batch = source.next();
+				INDArray features = batch.getFeatures();
+				if (features.rank() != 4) {
+					throw new IllegalArgumentException(
+							"PackedImageIterator: images of rank 4 expected, not " + features.rank());
+				}
+				int examples = (int) features.size(0);
+				int pixels = (int) (features.length() / examples);
+				if (count == 0) {
+					PackedImageIterator.writeHeader(out, features.shape(), (int) batch.getLabels().size(1),
+							source.getLabels());
+				}
+				float[][] values = features.reshape('c', examples, pixels).toFloatMatrix();
+				int[] classes = Nd4j.argMax(batch.getLabels(), 1).toIntVector();
+				byte[] record = new byte[1 + pixels];
+				for (int i = 0; i < examples; i++) {
+					record[0] = (byte) classes[i];
+					for (int p = 0; p < pixels; p++) {
+						float value = values[i][p];
+						if (value < 0 || value > 255) {
+							throw new IllegalArgumentException(
+									"PackedImageIterator: pixel value " + value + " is not within 0 and 255");
+						}
+						record[1 + p] = (byte) Math.round(value);
+					}
+					out.write(record);
+				}
+				count += examples;
+			}
+			if (count == 0) {
+				throw new IOException("PackedImageIterator: no images to pack");
+			}
+			out.flush();
+			packed.seek(COUNT_OFFSET);
+			packed.writeInt(count);
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if file is a packed image file of images with the given shape,
+	 *         false if it does not exist or holds other images
+	 */
+	public static boolean hasShape(File file, int height, int width, int channels) throws IOException {
+		if (!file.exists()) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return false;
+			}
+			in.readInt(); // count
+			return in.readInt() == channels && in.readInt() == height && in.readInt() == width;
+		}
+	}
+
+	private static void writeHeader(DataOutputStream out, long[] shape, int numberOfClasses, List<String> labels)
+			throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(0); // count, written at the end
+		out.writeInt((int) shape[1]);
+		out.writeInt((int) shape[2]);
+		out.writeInt((int) shape[3]);
+		out.writeInt(numberOfClasses);
+		out.writeInt(labels == null ? 0 : labels.size());
+		if (labels != null) {
+			for (String label : labels) {
+				byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+				out.writeShort(bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.cursor < this.count;
+	}
+
+	@Override
+	public DataSet next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException("PackedImageIterator: no more batches");
+		}
+		int examples = Math.min(this.batchSize, this.count - this.cursor);
+		int pixels = this.record.length - 1;
+
+		DataSet batch;
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			INDArray features = Nd4j.create(DataType.FLOAT, examples, this.channels, this.height, this.width);
+			INDArray labels = Nd4j.create(DataType.FLOAT, examples, this.numberOfClasses);
+			FloatBuffer featureBuffer = PackedImageIterator.floats(features);
+			FloatBuffer labelBuffer = PackedImageIterator.floats(labels);
+			ByteBuffer records = this.buffer.duplicate();
+			for (int i = 0; i < examples; i++) {
+				records.position(this.dataStart + this.order[this.cursor + i] * this.record.length);
+				records.get(this.record);
+				labelBuffer.put(i * this.numberOfClasses + (this.record[0] & 0xFF), 1f);
+				int offset = i * pixels;
+				for (int p = 0; p < pixels; p++) {
+					featureBuffer.put(offset + p, SCALED[this.record[1 + p] & 0xFF]);
+				}
+			}
+			if (this.dataType != DataType.FLOAT) {
+				features = features.castTo(this.dataType);
+				labels = labels.castTo(this.dataType);
+			}
+			batch = new DataSet(features, labels);
+		}
+		this.cursor += examples;
+
+		if (this.preProcessor != null) {
+			this.preProcessor.preProcess(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * @return a view on the memory of a freshly created array
+	 */
+	private static FloatBuffer floats(INDArray array) {
+		return array.data().asNio().order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+
+	@Override
+	public DataSet next(int num) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	@Override
+	public void reset() {
+		this.cursor = 0;
+		if (this.shuffle) {
+			for (int i = this.order.length - 1; i > 0; i--) {
+				int j = this.random.nextInt(i + 1);
+				int swap = this.order[i];
+				this.order[i] = this.order[j];
+				this.order[j] = swap;
+			}
+		}
+	}
+
+	@Override
+	public boolean resetSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported() {
+		return true;
+	}
+
+	@Override
+	public int inputColumns() {
+		return this.channels * this.height * this.width;
+	}
+
+	@Override
+	public int totalOutcomes() {
+		return this.numberOfClasses;
+	}
+
+	@Override
+	public int batch() {
+		return this.batchSize;
+	}
+
+	@Override
+	public void setPreProcessor(DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor() {
+		return this.preProcessor;
+	}
+
+	@Override
+	public List<String> getLabels() {
+		return this.labels.isEmpty() ? null : this.labels;
+	}
+
+	public static class Builder {
+
+		private final File file;
+		private int batchSize = 54;
+		private boolean shuffle = true;
+		private long seed = 1234;
+		private DataType dataType = DataType.FLOAT;
+
+		/**
+		 * @param file a file written by {@link PackedImageIterator#pack(DataSetIterator, File)}
+		 */
+		public Builder(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Number of images per batch. Defaults to 54.
+		 */
+		public Builder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * Shuffle the images in every epoch. Defaults to true.
+		 */
+		public Builder shuffle(boolean shuffle) {
+			this.shuffle = shuffle;
+			return this;
+		}
+
+		/**
+		 * Seed for shuffling. Defaults to 1234.
+		 */
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Data type of the batches. Defaults to FLOAT.
+		 */
+		public Builder dataType(DataType dataType) {
+			this.dataType = dataType;
+			return this;
+		}
+
+		public PackedImageIterator build() throws IOException {
+			return new PackedImageIterator(this);
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.evaluation.classification.Evaluation;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Evaluates a MultiLayerNetwork or ComputationGraph on several threads. The
+ * calling thread reads the test iterator and deals its batches out to workers,
+ * each running inference on its own replica of the network and collecting its
+ * shard into its own Evaluation. The shard evaluations are merged into one.
+ * Since batches are evaluated unchanged and an Evaluation only counts
+ * predictions, the result is the same as of model.evaluate(iterator).
+ *
+ * Each replica uses the ND4J (OpenMP) threads as well, so fewer workers than
+ * processors usually give the best throughput.
+ *
+ * Usage: <code>new ParallelEvaluator.Builder(model).workers(4).build().evaluate(testData)</code>
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class ParallelEvaluator {
+
+	// tells a worker that there are no more batches
+	private static final DataSet END = new DataSet();
+
+	private final Model model;
+	private final List<Model> replicas;
+
+	private ParallelEvaluator(Builder builder) {
+		this.model = builder.model;
+		this.replicas = new ArrayList<Model>();
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			for (int i = 0; i < builder.workers; i++) {
+				this.replicas.add(ParallelEvaluator.cloneModel(this.model));
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the current parameters of the model on all batches of data, like
+	 * model.evaluate(data).
+	 */
+	public Evaluation evaluate(DataSetIterator data) throws InterruptedException {
+		for (Model replica : this.replicas) {
+			replica.setParams(this.model.params());
+		}
+		if (!data.hasNext() && data.resetSupported()) {
+			data.reset();
+		}
+		List<String> labels = data.getLabels();
+
+		BlockingQueue<DataSet> queue = new ArrayBlockingQueue<DataSet>(2 * this.replicas.size());
+		ExecutorService executor = Executors.newFixedThreadPool(this.replicas.size());
+		List<Future<Evaluation>> shards = new ArrayList<Future<Evaluation>>();
+		for (Model replica : this.replicas) {
+			shards.add(executor.submit(() -> ParallelEvaluator.evaluateShard(replica, queue, labels)));
+		}
+		executor.shutdown();
+
+		try {
+			while (data.hasNext()) {
+				DataSet batch = data.next();
+				// iterators reuse their batch memory, the workers get copies
+				try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+					queue.put(new DataSet(ParallelEvaluator.dup(batch.getFeatures()),
+							ParallelEvaluator.dup(batch.getLabels()),
+							ParallelEvaluator.dup(batch.getFeaturesMaskArray()),
+							ParallelEvaluator.dup(batch.getLabelsMaskArray())));
+				}
+			}
+		} finally {
+			for (int i = 0; i < this.replicas.size(); i++) {
+				queue.put(END);
+			}
+		}
+
+		Evaluation result = new Evaluation(labels, 1);
+		for (Future<Evaluation> shard : shards) {
+			try {
+				result.merge(shard.get());
+			} catch (ExecutionException e) {
+				throw new RuntimeException("ParallelEvaluator: evaluating a shard failed", e.getCause());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates batches from the queue until {@link #END}. After a failure the
+	 * remaining batches are taken but not evaluated, so the reader never blocks.
+	 */
+	private static Evaluation evaluateShard(Model replica, BlockingQueue<DataSet> queue, List<String> labels)
+			throws InterruptedException {
+		Evaluation eval = new Evaluation(labels, 1);
+		RuntimeException failure = null;
+		for (DataSet batch = queue.take(); batch != END; batch = queue.take()) {
+			if (failure != null) {
+				continue;
+			}
+			try {
+				eval.eval(batch.getLabels(), ParallelEvaluator.output(replica, batch), batch.getLabelsMaskArray(),
+						null);
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return eval;
+	}
+
+	private static INDArray output(Model replica, DataSet batch) {
+		if (replica instanceof MultiLayerNetwork) {
+			return ((MultiLayerNetwork) replica).output(batch.getFeatures(), false, batch.getFeaturesMaskArray(),
+					batch.getLabelsMaskArray());
+		}
+		INDArray featuresMask = batch.getFeaturesMaskArray();
+		INDArray labelsMask = batch.getLabelsMaskArray();
+		return ((ComputationGraph) replica).output(false, new INDArray[] { batch.getFeatures() },
+				featuresMask == null ? null : new INDArray[] { featuresMask },
+				labelsMask == null ? null : new INDArray[] { labelsMask })[0];
+	}
+
+	private static INDArray dup(INDArray array) {
+		return array == null ? null : array.dup();
+	}
+
+	private static Model cloneModel(Model model) {
+		if (model instanceof MultiLayerNetwork) {
+			return ((MultiLayerNetwork) model).clone();
+		}
+		if (model instanceof ComputationGraph) {
+			return ((ComputationGraph) model).clone();
+		}
+		throw new IllegalArgumentException(
+				"ParallelEvaluator supports MultiLayerNetwork and ComputationGraph, not " + model.getClass());
+	}
+
+	public static class Builder {
+
+		private final Model model;
+		private int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+		/**
+		 * @param model the MultiLayerNetwork or ComputationGraph to evaluate, its
+		 *              current parameters are used on every evaluate
+		 */
+		public Builder(Model model) {
+			this.model = model;
+		}
+
+		/**
+		 * Number of threads, each with its own replica of the model. Defaults to half
+		 * the number of available processors.
+		 */
+		public Builder workers(int workers) {
+			this.workers = workers;
+			return this;
+		}
+
+		public ParallelEvaluator build() {
+			return new ParallelEvaluator(this);
+		}
+	}
+
+}
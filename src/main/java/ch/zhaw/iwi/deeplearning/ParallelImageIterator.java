@@ -0,0 +1,440 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.datavec.image.loader.NativeImageLoader;
+import org.datavec.image.transform.ImageTransform;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Iterates over the images of a folder with one sub-folder per class, like an
+ * ImageRecordReader with a ParentPathLabelGenerator, but decodes them on a pool
+ * of worker threads. In every epoch the files are shuffled; each worker takes
+ * the next file, decodes, resizes and optionally augments it with its own
+ * NativeImageLoader and puts the pixels into a bounded queue, blocking while
+ * the queue is full. next() assembles the batches from the queue on the
+ * training thread. Images thus arrive in the order they are decoded, which
+ * differs from the shuffled order but not in which images make up an epoch.
+ * The workers start decoding an epoch with the first hasNext() after reset(),
+ * so resetting after the last epoch decodes nothing; call shutdown() when done.
+ *
+ * Pixels are not scaled, use e.g. an ImagePreProcessingScaler as the
+ * pre-processor.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class ParallelImageIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggerFactory.getLogger(ParallelImageIterator.class);
+
+	// tells the training thread that a worker is done with the epoch
+	private static final Decoded END = new Decoded(null, -1, null);
+
+	private final int height;
+	private final int width;
+	private final int channels;
+	private final int batchSize;
+	private final int workers;
+	private final int queueCapacity;
+	private final DataType dataType;
+	private final Supplier<ImageTransform> augmentation;
+	private final Random random;
+
+	private final List<File> files;
+	private final int[] classes;
+	private final List<String> labels;
+	private final ExecutorService executor;
+	private final ThreadLocal<NativeImageLoader> loaders;
+	private Epoch epoch;
+	private DataSet nextBatch;
+	private DataSetPreProcessor preProcessor;
+
+	private ParallelImageIterator(Builder builder) throws IOException {
+		this.height = builder.height;
+		this.width = builder.width;
+		this.channels = builder.channels;
+		this.batchSize = builder.batchSize;
+		this.workers = builder.workers;
+		this.queueCapacity = builder.queueCapacity;
+		this.dataType = builder.dataType;
+		this.augmentation = builder.augmentation;
+		this.random = new Random(builder.seed);
+
+		List<String> extensions = Arrays.asList(NativeImageLoader.ALLOWED_FORMATS);
+		try (Stream<Path> paths = Files.walk(builder.folder.toPath())) {
+			this.files = paths.filter(Files::isRegularFile)
+					.map(Path::toFile)
+					.filter(file -> extensions.contains(ParallelImageIterator.extensionOf(file)))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+		if (this.files.isEmpty()) {
+			throw new IOException("ParallelImageIterator: no images in " + builder.folder);
+		}
+		this.labels = new ArrayList<String>(this.files.stream()
+				.map(file -> file.getParentFile().getName())
+				.collect(Collectors.toCollection(TreeSet::new)));
+		this.classes = new int[this.files.size()];
+		for (int i = 0; i < this.classes.length; i++) {
+			this.classes[i] = this.labels.indexOf(this.files.get(i).getParentFile().getName());
+		}
+
+		this.executor = Executors.newFixedThreadPool(this.workers, runnable -> {
+			Thread thread = new Thread(runnable, "ParallelImageIterator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.loaders = ThreadLocal.withInitial(() -> this.augmentation == null
+				? new NativeImageLoader(this.height, this.width, this.channels)
+				: new NativeImageLoader(this.height, this.width, this.channels, this.augmentation.get()));
+		this.reset();
+	}
+
+	private static String extensionOf(File file) {
+		String name = file.getName();
+		return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.nextBatch == null) {
+			this.nextBatch = this.assemble();
+		}
+		return this.nextBatch != null;
+	}
+
+	@Override
+	public DataSet next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException("ParallelImageIterator: no more batches");
+		}
+		DataSet batch = this.nextBatch;
+		this.nextBatch = null;
+		if (this.preProcessor != null) {
+			this.preProcessor.preProcess(batch);
+		}
+		return batch;
+	}
+
+	/**
+	 * @return the next batch of decoded images, or null at the end of the epoch
+	 */
+	private DataSet assemble() {
+		if (!this.epoch.started) {
+			Epoch epoch = this.epoch;
+			epoch.started = true;
+			epoch.start = System.currentTimeMillis();
+			for (int i = 0; i < this.workers; i++) {
+				this.executor.submit(() -> this.decode(epoch));
+			}
+		}
+		List<Decoded> images = new ArrayList<Decoded>();
+		try {
+			while (images.size() < this.batchSize && this.epoch.finishedWorkers < this.workers) {
+				Decoded image = this.epoch.queue.take();
+				if (image == END) {
+					this.epoch.finishedWorkers++;
+				} else if (image.failure != null) {
+					throw new RuntimeException("ParallelImageIterator: decoding an image failed", image.failure);
+				} else {
+					images.add(image);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("ParallelImageIterator: interrupted", e);
+		}
+		if (images.isEmpty()) {
+			if (!this.epoch.logged) {
+				long millis = System.currentTimeMillis() - this.epoch.start;
+				log.info("> {} images decoded in {} ms ({} images/s) on {} workers", this.files.size(), millis,
+						this.files.size() * 1000L / Math.max(millis, 1), this.workers);
+				this.epoch.logged = true;
+			}
+			return null;
+		}
+
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			INDArray features = Nd4j.create(DataType.FLOAT, images.size(), this.channels, this.height, this.width);
+			INDArray labels = Nd4j.create(DataType.FLOAT, images.size(), this.labels.size());
+			FloatBuffer featureBuffer = features.data().asNio().order(ByteOrder.nativeOrder()).asFloatBuffer();
+			for (int i = 0; i < images.size(); i++) {
+				featureBuffer.position(i * images.get(i).pixels.length);
+				featureBuffer.put(images.get(i).pixels);
+				labels.putScalar(i, images.get(i).label, 1);
+			}
+			if (this.dataType != DataType.FLOAT) {
+				features = features.castTo(this.dataType);
+				labels = labels.castTo(this.dataType);
+			}
+			return new DataSet(features, labels);
+		}
+	}
+
+	/**
+	 * Decodes the files of the epoch until there are no more or the epoch is
+	 * cancelled.
+	 */
+	private void decode(Epoch epoch) {
+		NativeImageLoader loader = this.loaders.get();
+		try {
+			int i;
+			while ((i = epoch.next.getAndIncrement()) < epoch.order.length && !epoch.cancelled) {
+				int index = epoch.order[i];
+				Decoded image;
+				try {
+					INDArray pixels = loader.asMatrix(this.files.get(index));
+					image = new Decoded(pixels.castTo(DataType.FLOAT).reshape(pixels.length()).toFloatVector(),
+							this.classes[index], null);
+				} catch (IOException | RuntimeException e) {
+					image = new Decoded(null, -1, new IOException(this.files.get(index).getPath(), e));
+				}
+				if (!this.put(epoch, image) || image.failure != null) {
+					break;
+				}
+			}
+			this.put(epoch, END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for space in the queue of the epoch.
+	 *
+	 * @return false if the epoch was cancelled
+	 */
+	private boolean put(Epoch epoch, Decoded image) throws InterruptedException {
+		while (!epoch.cancelled) {
+			if (epoch.queue.offer(image, 100, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public DataSet next(int num) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	/**
+	 * Cancels the decoding of the current epoch and shuffles the files, which are
+	 * decoded again once the next batch is asked for.
+	 */
+	@Override
+	public void reset() {
+		if (this.epoch != null) {
+			this.epoch.cancelled = true;
+		}
+		this.nextBatch = null;
+
+		int[] order = new int[this.files.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = this.random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		this.epoch = new Epoch(order, new ArrayBlockingQueue<Decoded>(this.queueCapacity));
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		this.epoch.cancelled = true;
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public boolean resetSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported() {
+		return false;
+	}
+
+	@Override
+	public int inputColumns() {
+		return this.channels * this.height * this.width;
+	}
+
+	@Override
+	public int totalOutcomes() {
+		return this.labels.size();
+	}
+
+	@Override
+	public int batch() {
+		return this.batchSize;
+	}
+
+	@Override
+	public void setPreProcessor(DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor() {
+		return this.preProcessor;
+	}
+
+	@Override
+	public List<String> getLabels() {
+		return this.labels;
+	}
+
+	private static class Decoded {
+
+		private final float[] pixels;
+		private final int label;
+		private final IOException failure;
+
+		private Decoded(float[] pixels, int label, IOException failure) {
+			this.pixels = pixels;
+			this.label = label;
+			this.failure = failure;
+		}
+	}
+
+	private static class Epoch {
+
+		private final int[] order;
+		private final BlockingQueue<Decoded> queue;
+		private final AtomicInteger next;
+		private long start;
+		private volatile boolean cancelled;
+		private boolean started;
+		private int finishedWorkers;
+		private boolean logged;
+
+		private Epoch(int[] order, BlockingQueue<Decoded> queue) {
+			this.order = order;
+			this.queue = queue;
+			this.next = new AtomicInteger();
+		}
+	}
+
+	public static class Builder {
+
+		private final File folder;
+		private final int height;
+		private final int width;
+		private final int channels;
+		private int batchSize = 54;
+		private int workers = Runtime.getRuntime().availableProcessors();
+		private int queueCapacity = 1024;
+		private Supplier<ImageTransform> augmentation;
+		private long seed = 1234;
+		private DataType dataType = DataType.FLOAT;
+
+		/**
+		 * @param folder   the root folder with one sub-folder per class
+		 * @param height   the images are resized to
+		 * @param width    the images are resized to
+		 * @param channels 1 for grayscale, 3 for color
+		 */
+		public Builder(File folder, int height, int width, int channels) {
+			this.folder = folder;
+			this.height = height;
+			this.width = width;
+			this.channels = channels;
+		}
+
+		/**
+		 * Number of images per batch. Defaults to 54.
+		 */
+		public Builder batchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		/**
+		 * Number of decoding threads. Defaults to the number of available processors.
+		 */
+		public Builder workers(int workers) {
+			this.workers = workers;
+			return this;
+		}
+
+		/**
+		 * Number of decoded images waiting for the training thread at most; workers
+		 * block when it is reached. Defaults to 1024.
+		 */
+		public Builder queueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		/**
+		 * Creates the transform applied to every image, one per worker since
+		 * transforms are not thread-safe. Defaults to none.
+		 */
+		public Builder augmentation(Supplier<ImageTransform> augmentation) {
+			this.augmentation = augmentation;
+			return this;
+		}
+
+		/**
+		 * Seed for shuffling the files. Defaults to 1234.
+		 */
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		/**
+		 * Data type of the batches. Defaults to FLOAT.
+		 */
+		public Builder dataType(DataType dataType) {
+			this.dataType = dataType;
+			return this;
+		}
+
+		public ParallelImageIterator build() throws IOException {
+			return new ParallelImageIterator(this);
+		}
+	}
+
+}
@@ -1,7 +1,10 @@
-package ch.zhaw.iwi.deeplearning;
-
-public class Paths {
-
-	// https://s3.amazonaws.com/dl4j-distribution/GoogleNews-vectors-negative300.bin.gz
-	public static final String WORD_VECTORS_PATH = "C:\\Git\\GoogleNews-vectors-negative300.bin.gz";
-}
+package ch.zhaw.iwi.deeplearning;
+
+public class Paths {
+
+	// https://s3.amazonaws.com/dl4j-distribution/GoogleNews-vectors-negative300.bin.gz
+	public static final String WORD_VECTORS_PATH = "C:\\Git\\GoogleNews-vectors-negative300.bin.gz";
+
+	// the vectors of the words of our corpora only, written by WordVectorsSubset
+	public static final String WORD_VECTORS_SUBSET_PATH = "wordvectors-subset.bin";
+}
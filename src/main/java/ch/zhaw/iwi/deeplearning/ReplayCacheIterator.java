@@ -0,0 +1,403 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Replays the batches of an iterator instead of reading, tokenizing and
+ * vectorizing the texts again on every pass. During the first complete pass
+ * each batch is compressed into a spill file; later passes read the batches
+ * back from the memory mapped file. Optionally, decoded batches are kept
+ * off-heap up to a memory budget, evicting the least recently used. If the
+ * spill file would exceed the disk budget, the cache is dropped and all passes
+ * go to the wrapped iterator.
+ *
+ * Replaying assumes the wrapped iterator returns the same batches on every pass
+ * (no shuffling). With a memory budget smaller than the data set, sequential
+ * passes evict each batch before it is used again, so the budget only pays off
+ * if most batches fit.
+ *
+ * A preprocessor set on this iterator is applied to each batch as it is handed
+ * out, on every pass, so the cache holds the batches as the wrapped iterator
+ * returns them and the preprocessor can be set or replaced at any time.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class ReplayCacheIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Logger log = LoggerFactory.getLogger(ReplayCacheIterator.class);
+
+	private enum State {
+		RECORDING, REPLAYING, BYPASSING
+	}
+
+	private final DataSetIterator delegate;
+	private final File spillFile;
+	private final long memoryBudget;
+	private final long diskBudget;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Deflater deflater;
+
+	// position and length of each batch in the spill file
+	private final List<long[]> index;
+	private final List<ByteBuffer> mappedBatches;
+	private final Map<Integer, DataSet> decoded;
+	private long decodedBytes;
+
+	private DataSetPreProcessor preProcessor;
+	private State state;
+	private int cursor;
+
+	private ReplayCacheIterator(Builder builder) throws IOException {
+		this.delegate = builder.delegate;
+		this.spillFile = builder.spillFile != null ? builder.spillFile : File.createTempFile("replay", ".cache");
+		this.spillFile.deleteOnExit();
+		this.memoryBudget = builder.memoryBudget;
+		this.diskBudget = builder.diskBudget;
+
+		this.file = new RandomAccessFile(this.spillFile, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		this.deflater = new Deflater(Deflater.BEST_SPEED);
+
+		this.index = new ArrayList<long[]>();
+		this.mappedBatches = new ArrayList<ByteBuffer>();
+		this.decoded = new LinkedHashMap<Integer, DataSet>(16, 0.75f, true);
+		this.decodedBytes = 0;
+
+		this.preProcessor = null;
+		this.state = State.RECORDING;
+		this.cursor = 0;
+	}
+
+	@Override
+	public boolean hasNext() {
+		switch (this.state) {
+		case REPLAYING:
+			return this.cursor < this.index.size();
+		case RECORDING:
+			if (this.delegate.hasNext()) {
+				return true;
+			}
+			this.finishRecording();
+			return false;
+		default:
+			return this.delegate.hasNext();
+		}
+	}
+
+	@Override
+	public DataSet next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException("ReplayCacheIterator: no more batches");
+		}
+		try {
+			switch (this.state) {
+			case REPLAYING:
+				DataSet replayed = this.replay(this.cursor++);
+				// the preprocessor may change the arrays in place, decoded batches kept in
+				// memory must stay as recorded
+				return this.preProcess(this.preProcessor != null && this.memoryBudget > 0
+						? replayed.copy()
+						: ReplayCacheIterator.shallowCopy(replayed));
+			case RECORDING:
+				DataSet dataSet = this.delegate.next();
+				this.record(dataSet);
+				return this.preProcess(dataSet);
+			default:
+				return this.preProcess(this.delegate.next());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public DataSet next(int num) {
+		throw new UnsupportedOperationException("ReplayCacheIterator replays whole batches, use next()");
+	}
+
+	@Override
+	public void reset() {
+		switch (this.state) {
+		case REPLAYING:
+			this.cursor = 0;
+			break;
+		case RECORDING:
+			// an interrupted first pass is recorded again from the start
+			this.index.clear();
+			this.decoded.clear();
+			this.decodedBytes = 0;
+			try {
+				this.channel.truncate(0);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.delegate.reset();
+			break;
+		default:
+			this.delegate.reset();
+		}
+	}
+
+	private DataSet preProcess(DataSet dataSet) {
+		if (this.preProcessor != null) {
+			this.preProcessor.preProcess(dataSet);
+		}
+		return dataSet;
+	}
+
+	private void record(DataSet dataSet) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		this.deflater.reset();
+		try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, this.deflater)) {
+			dataSet.save(out);
+		}
+
+		long position = this.channel.size();
+		if (this.diskBudget > 0 && position + bytes.size() > this.diskBudget) {
+			log.warn("ReplayCacheIterator: the spill file would exceed {} bytes, batches are no longer cached",
+					this.diskBudget);
+			this.bypass();
+			return;
+		}
+		this.channel.write(ByteBuffer.wrap(bytes.toByteArray()), position);
+		this.index.add(new long[] { position, bytes.size() });
+
+		if (this.memoryBudget > 0) {
+			try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+				this.keepDecoded(this.index.size() - 1,
+						new DataSet(ReplayCacheIterator.dup(dataSet.getFeatures()),
+								ReplayCacheIterator.dup(dataSet.getLabels()),
+								ReplayCacheIterator.dup(dataSet.getFeaturesMaskArray()),
+								ReplayCacheIterator.dup(dataSet.getLabelsMaskArray())));
+			}
+		}
+	}
+
+	private void finishRecording() {
+		try {
+			// map regions of up to 2 GB, each holding whole batches
+			long regionStart = 0;
+			MappedByteBuffer region = null;
+			for (int i = 0; i < this.index.size(); i++) {
+				long[] batch = this.index.get(i);
+				if (region == null || batch[0] + batch[1] - regionStart > Integer.MAX_VALUE) {
+					regionStart = batch[0];
+					long regionEnd = regionStart;
+					for (int j = i; j < this.index.size(); j++) {
+						long batchEnd = this.index.get(j)[0] + this.index.get(j)[1];
+						if (batchEnd - regionStart > Integer.MAX_VALUE) {
+							break;
+						}
+						regionEnd = batchEnd;
+					}
+					region = this.channel.map(MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+				}
+				ByteBuffer slice = region.duplicate();
+				slice.position((int) (batch[0] - regionStart));
+				slice.limit((int) (batch[0] + batch[1] - regionStart));
+				this.mappedBatches.add(slice.slice());
+			}
+			log.info("> Replay cache {}: {} batches, {} bytes", this.spillFile.getAbsolutePath(), this.index.size(),
+					this.channel.size());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.state = State.REPLAYING;
+		this.cursor = this.index.size();
+	}
+
+	private DataSet replay(int batch) {
+		DataSet dataSet = this.decoded.get(batch);
+		if (dataSet != null) {
+			return dataSet;
+		}
+
+		ByteBuffer mapped = this.mappedBatches.get(batch).duplicate();
+		byte[] bytes = new byte[mapped.remaining()];
+		mapped.get(bytes);
+		dataSet = new DataSet();
+		if (this.memoryBudget > 0) {
+			try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+				dataSet.load(new InflaterInputStream(new ByteArrayInputStream(bytes)));
+			}
+			this.keepDecoded(batch, dataSet);
+		} else {
+			dataSet.load(new InflaterInputStream(new ByteArrayInputStream(bytes)));
+		}
+		return dataSet;
+	}
+
+	private void keepDecoded(int batch, DataSet dataSet) {
+		long bytes = ReplayCacheIterator.bytes(dataSet);
+		if (bytes > this.memoryBudget) {
+			return;
+		}
+		this.decoded.put(batch, dataSet);
+		this.decodedBytes += bytes;
+		Iterator<DataSet> leastRecentlyUsed = this.decoded.values().iterator();
+		while (this.decodedBytes > this.memoryBudget) {
+			this.decodedBytes -= ReplayCacheIterator.bytes(leastRecentlyUsed.next());
+			leastRecentlyUsed.remove();
+		}
+	}
+
+	private void bypass() throws IOException {
+		this.state = State.BYPASSING;
+		this.index.clear();
+		this.decoded.clear();
+		this.decodedBytes = 0;
+		this.channel.close();
+		this.file.close();
+		this.spillFile.delete();
+	}
+
+	/**
+	 * The batch is handed out as a new DataSet onto the cached arrays, since DL4J
+	 * may replace the arrays of a DataSet (e.g. when migrating to a workspace).
+	 */
+	private static DataSet shallowCopy(DataSet dataSet) {
+		return new DataSet(dataSet.getFeatures(), dataSet.getLabels(), dataSet.getFeaturesMaskArray(),
+				dataSet.getLabelsMaskArray());
+	}
+
+	private static INDArray dup(INDArray array) {
+		return array == null ? null : array.dup();
+	}
+
+	private static long bytes(DataSet dataSet) {
+		long result = 0;
+		for (INDArray array : new INDArray[] { dataSet.getFeatures(), dataSet.getLabels(),
+				dataSet.getFeaturesMaskArray(), dataSet.getLabelsMaskArray() }) {
+			if (array != null) {
+				result += array.length() * array.dataType().width();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int inputColumns() {
+		return this.delegate.inputColumns();
+	}
+
+	@Override
+	public int totalOutcomes() {
+		return this.delegate.totalOutcomes();
+	}
+
+	@Override
+	public boolean resetSupported() {
+		return this.delegate.resetSupported();
+	}
+
+	@Override
+	public boolean asyncSupported() {
+		return this.delegate.asyncSupported();
+	}
+
+	@Override
+	public int batch() {
+		return this.delegate.batch();
+	}
+
+	@Override
+	public void setPreProcessor(DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor() {
+		return this.preProcessor;
+	}
+
+	@Override
+	public List<String> getLabels() {
+		return this.delegate.getLabels();
+	}
+
+	public static class Builder {
+
+		private final DataSetIterator delegate;
+		private File spillFile = null;
+		private long memoryBudget = 0;
+		private long diskBudget = 0;
+
+		/**
+		 * @param delegate the iterator whose batches are cached, it must return the
+		 *                 same batches on every pass
+		 */
+		public Builder(DataSetIterator delegate) {
+			this.delegate = delegate;
+		}
+
+		/**
+		 * File the compressed batches are written to, deleted on exit. Defaults to a
+		 * temporary file.
+		 */
+		public Builder spillFile(File spillFile) {
+			this.spillFile = spillFile;
+			return this;
+		}
+
+		/**
+		 * Off-heap bytes of decoded batches to keep between passes, least recently
+		 * used are evicted. Defaults to 0 (every batch is decoded from the spill
+		 * file).
+		 */
+		public Builder memoryBudget(long memoryBudget) {
+			this.memoryBudget = memoryBudget;
+			return this;
+		}
+
+		/**
+		 * Maximum size of the spill file in bytes. If the batches do not fit, nothing
+		 * is cached. Defaults to 0 (no limit).
+		 */
+		public Builder diskBudget(long diskBudget) {
+			this.diskBudget = diskBudget;
+			return this;
+		}
+
+		public ReplayCacheIterator build() throws IOException {
+			return new ReplayCacheIterator(this);
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Shuffles a stream of batches that is too large to shuffle as a whole: the
+ * batches are read into a buffer of bufferBatches batches, whose examples are
+ * shuffled and dealt out as new batches of the same size. Examples thus move
+ * within a window of bufferBatches x batch size examples. The pre-processor,
+ * e.g. a normalizer, is applied to each batch as it is handed out.
+ *
+ * The buffer is kept out of workspaces, so it can be wrapped in an
+ * AsyncDataSetIterator to read, shuffle and normalize ahead of training. Any
+ * source is supported: each batch is copied into the buffer as it is read, as
+ * sources may reuse their arrays for later batches (the pooled arrays of
+ * {@link BatchBufferPool}, or a workspace of the source).
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class ShuffleBufferIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private final DataSetIterator data;
+	private final int bufferBatches;
+	private final Random random;
+	private final LinkedList<DataSet> shuffled;
+	private DataSetPreProcessor preProcessor;
+
+	/**
+	 * @param data          the batches to shuffle
+	 * @param bufferBatches number of batches shuffled together
+	 * @param seed          for the shuffling
+	 */
+	public ShuffleBufferIterator(DataSetIterator data, int bufferBatches, long seed) {
+		this.data = data;
+		this.bufferBatches = bufferBatches;
+		this.random = new Random(seed);
+		this.shuffled = new LinkedList<DataSet>();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.shuffled.isEmpty()) {
+			this.fillBuffer();
+		}
+		return !this.shuffled.isEmpty();
+	}
+
+	@Override
+	public DataSet next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException("ShuffleBufferIterator: no more batches");
+		}
+		DataSet batch = this.shuffled.removeFirst();
+		if (this.preProcessor != null) {
+			this.preProcessor.preProcess(batch);
+		}
+		return batch;
+	}
+
+	private void fillBuffer() {
+		try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+			List<DataSet> buffer = new ArrayList<DataSet>();
+			int batchSize = 0;
+			while (buffer.size() < this.bufferBatches && this.data.hasNext()) {
+				DataSet batch = BatchBufferPool.detach(this.data.next());
+				batchSize = Math.max(batchSize, batch.numExamples());
+				buffer.add(batch);
+			}
+			if (buffer.isEmpty()) {
+				return;
+			}
+			DataSet merged = DataSet.merge(buffer);
+			merged.shuffle(this.random.nextLong());
+			this.shuffled.addAll(merged.batchBy(batchSize));
+		}
+	}
+
+	@Override
+	public DataSet next(int num) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	@Override
+	public void reset() {
+		this.data.reset();
+		this.shuffled.clear();
+	}
+
+	@Override
+	public boolean resetSupported() {
+		return this.data.resetSupported();
+	}
+
+	@Override
+	public boolean asyncSupported() {
+		return true;
+	}
+
+	@Override
+	public int inputColumns() {
+		return this.data.inputColumns();
+	}
+
+	@Override
+	public int totalOutcomes() {
+		return this.data.totalOutcomes();
+	}
+
+	@Override
+	public int batch() {
+		return this.data.batch();
+	}
+
+	@Override
+	public void setPreProcessor(DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor() {
+		return this.preProcessor;
+	}
+
+	@Override
+	public List<String> getLabels() {
+		return this.data.getLabels();
+	}
+
+}
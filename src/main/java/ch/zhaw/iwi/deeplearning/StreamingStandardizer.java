@@ -0,0 +1,261 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.NormalizerStandardize;
+import org.nd4j.linalg.dataset.api.preprocessor.serializer.NormalizerSerializer;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Fits a NormalizerStandardize (mean 0, unit variance per feature column) in a
+ * single pass over a DataSetIterator, so the training data never has to be in
+ * memory as a whole. The calling thread reads the batches and deals them out to
+ * workers; each worker keeps count, mean and sum of squared deviations per
+ * column (Welford) and adds the moments of each batch to them. The workers'
+ * moments are merged at the end (Chan et al.), which is numerically stable
+ * unlike summing x and x^2. The variance is the population variance, as with
+ * NormalizerStandardize.fit.
+ *
+ * The fitted NormalizerStandardize normalizes each batch in place, e.g. as the
+ * pre-processor of an iterator. {@link #loadOrFit(File, File, DataSetIterator)}
+ * keeps the statistics in a file, which later runs and inference restore
+ * instead of reading the data again. Next to it (file.source), the size,
+ * modification time and number of columns of the source file are recorded; the
+ * statistics are fitted again when these change.
+ *
+ * Features must be of rank 2 (examples x columns).
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class StreamingStandardizer {
+
+	private static final Logger log = LoggerFactory.getLogger(StreamingStandardizer.class);
+
+	// tells a worker that there are no more batches
+	private static final DataSet END = new DataSet();
+
+	private final int workers;
+
+	private StreamingStandardizer(Builder builder) {
+		this.workers = builder.workers;
+	}
+
+	/**
+	 * Restores the normalizer from file if it was fitted on source as it is now,
+	 * otherwise fits it on data and writes it to file.
+	 *
+	 * @param source the file data reads
+	 */
+	public NormalizerStandardize loadOrFit(File file, File source, DataSetIterator data)
+			throws IOException, InterruptedException {
+		File sourceFile = new File(file.getPath() + ".source");
+		Properties sourceInfo = new Properties();
+		sourceInfo.setProperty("path", source.getAbsolutePath());
+		sourceInfo.setProperty("size", String.valueOf(source.length()));
+		sourceInfo.setProperty("lastModified", String.valueOf(source.lastModified()));
+		sourceInfo.setProperty("columns", String.valueOf(data.inputColumns()));
+
+		if (file.exists() && sourceFile.exists() && sourceInfo.equals(StreamingStandardizer.load(sourceFile))) {
+			try {
+				NormalizerStandardize normalizer = NormalizerSerializer.getDefault().restore(file);
+				log.info("> Normalizer statistics restored from {}", file.getAbsolutePath());
+				return normalizer;
+			} catch (Exception e) {
+				throw new IOException("StreamingStandardizer: restoring " + file + " failed", e);
+			}
+		}
+		if (file.exists()) {
+			log.warn("StreamingStandardizer: {} was not fitted on {} as it is now, fitting again",
+					file.getAbsolutePath(), source.getAbsolutePath());
+		}
+		NormalizerStandardize normalizer = this.fit(data);
+		NormalizerSerializer.getDefault().write(normalizer, file);
+		try (OutputStream out = new FileOutputStream(sourceFile)) {
+			sourceInfo.store(out, "StreamingStandardizer");
+		}
+		log.info("> Normalizer statistics written to {}", file.getAbsolutePath());
+		return normalizer;
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		return properties;
+	}
+
+	/**
+	 * Computes mean and standard deviation of the features of all batches of data
+	 * in one pass. data is reset before, not after.
+	 */
+	public NormalizerStandardize fit(DataSetIterator data) throws InterruptedException {
+		if (data.resetSupported()) {
+			data.reset();
+		}
+
+		BlockingQueue<DataSet> queue = new ArrayBlockingQueue<DataSet>(2 * this.workers);
+		ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+		List<Future<Moments>> shards = new ArrayList<Future<Moments>>();
+		for (int i = 0; i < this.workers; i++) {
+			shards.add(executor.submit(() -> StreamingStandardizer.accumulate(queue)));
+		}
+		executor.shutdown();
+
+		try {
+			while (data.hasNext()) {
+				DataSet batch = data.next();
+				// iterators reuse their batch memory, the workers get copies
+				try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+					queue.put(new DataSet(batch.getFeatures().dup(), null));
+				}
+			}
+		} finally {
+			for (int i = 0; i < this.workers; i++) {
+				queue.put(END);
+			}
+		}
+
+		Moments moments = new Moments();
+		for (Future<Moments> shard : shards) {
+			try {
+				moments.merge(shard.get());
+			} catch (ExecutionException e) {
+				throw new RuntimeException("StreamingStandardizer: accumulating a shard failed", e.getCause());
+			}
+		}
+		if (moments.count == 0) {
+			throw new IllegalStateException("StreamingStandardizer: no examples to fit on");
+		}
+		log.info("> Normalizer statistics of {} examples fitted in one pass on {} workers", moments.count,
+				this.workers);
+		return moments.toNormalizer();
+	}
+
+	/**
+	 * Adds the batches from the queue until {@link #END}. After a failure the
+	 * remaining batches are taken but not added, so the reader never blocks.
+	 */
+	private static Moments accumulate(BlockingQueue<DataSet> queue) throws InterruptedException {
+		Moments moments = new Moments();
+		RuntimeException failure = null;
+		for (DataSet batch = queue.take(); batch != END; batch = queue.take()) {
+			if (failure != null) {
+				continue;
+			}
+			try {
+				moments.add(batch.getFeatures());
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return moments;
+	}
+
+	/**
+	 * Count, mean and sum of squared deviations from the mean per column.
+	 */
+	private static class Moments {
+
+		private long count;
+		private double[] mean;
+		private double[] squaredDeviations;
+		private DataType dataType;
+
+		private void add(INDArray features) {
+			if (features.rank() != 2) {
+				throw new IllegalArgumentException(
+						"StreamingStandardizer: features of rank 2 expected, not " + features.rank());
+			}
+			Moments batch = new Moments();
+			INDArray values = features.castTo(DataType.DOUBLE);
+			INDArray batchMean = values.mean(0);
+			INDArray deviations = values.subRowVector(batchMean);
+			batch.count = values.rows();
+			batch.mean = batchMean.toDoubleVector();
+			batch.squaredDeviations = deviations.muli(deviations).sum(0).toDoubleVector();
+			batch.dataType = features.dataType();
+			this.merge(batch);
+		}
+
+		private void merge(Moments other) {
+			if (other.count == 0) {
+				return;
+			}
+			if (this.count == 0) {
+				this.count = other.count;
+				this.mean = other.mean.clone();
+				this.squaredDeviations = other.squaredDeviations.clone();
+				this.dataType = other.dataType;
+				return;
+			}
+			long count = this.count + other.count;
+			for (int i = 0; i < this.mean.length; i++) {
+				double delta = other.mean[i] - this.mean[i];
+				this.mean[i] += delta * other.count / count;
+				this.squaredDeviations[i] += other.squaredDeviations[i]
+						+ delta * delta * this.count * other.count / count;
+			}
+			this.count = count;
+		}
+
+		private NormalizerStandardize toNormalizer() {
+			double[] std = new double[this.mean.length];
+			for (int i = 0; i < std.length; i++) {
+				std[i] = Math.max(Math.sqrt(this.squaredDeviations[i] / this.count), Nd4j.EPS_THRESHOLD);
+			}
+			try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+				return new NormalizerStandardize(Nd4j.create(this.mean).castTo(this.dataType),
+						Nd4j.create(std).castTo(this.dataType));
+			}
+		}
+	}
+
+	public static class Builder {
+
+		private int workers = Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * Number of threads accumulating batches. Defaults to the number of available
+		 * processors.
+		 */
+		public Builder workers(int workers) {
+			this.workers = workers;
+			return this;
+		}
+
+		public StreamingStandardizer build() {
+			return new StreamingStandardizer(this);
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.BaseTrainingListener;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Counts the examples a model is trained on and the time spent within epochs,
+ * to compare training throughput between configurations (e.g. data types or
+ * backprop types). Examples are counted per minibatch by the iterator returned
+ * by {@link #count(DataSetIterator)}, since with truncated BPTT a model
+ * completes one iteration per segment of a minibatch.
+ *
+ * DL4J calls listeners in the order they were set, so set this one before
+ * listeners that evaluate at the end of an epoch (e.g. EvaluativeListener with
+ * InvocationType.EPOCH_END), otherwise the evaluation is timed as training.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class ThroughputListener extends BaseTrainingListener {
+
+	// batches may be counted on a prefetch thread
+	private final AtomicLong examples = new AtomicLong();
+	private long nanos = 0;
+	private long epochStart;
+
+	@Override
+	public void onEpochStart(Model model) {
+		this.epochStart = System.nanoTime();
+	}
+
+	@Override
+	public void onEpochEnd(Model model) {
+		this.nanos += System.nanoTime() - this.epochStart;
+	}
+
+	/**
+	 * @return data, counting the examples of every batch handed out
+	 */
+	public DataSetIterator count(DataSetIterator data) {
+		return new CountingIterator(data);
+	}
+
+	/**
+	 * @return data, counting the examples of every batch handed out
+	 */
+	public MultiDataSetIterator count(MultiDataSetIterator data) {
+		return new CountingMultiIterator(data);
+	}
+
+	public long getExamples() {
+		return this.examples.get();
+	}
+
+	/**
+	 * @return examples per second over all completed epochs
+	 */
+	public double getExamplesPerSecond() {
+		return this.nanos == 0 ? 0 : this.examples.get() * 1e9 / this.nanos;
+	}
+
+	private class CountingIterator implements DataSetIterator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final DataSetIterator data;
+
+		private CountingIterator(DataSetIterator data) {
+			this.data = data;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.data.hasNext();
+		}
+
+		@Override
+		public DataSet next() {
+			DataSet batch = this.data.next();
+			ThroughputListener.this.examples.addAndGet(batch.numExamples());
+			return batch;
+		}
+
+		@Override
+		public DataSet next(int num) {
+			DataSet batch = this.data.next(num);
+			ThroughputListener.this.examples.addAndGet(batch.numExamples());
+			return batch;
+		}
+
+		@Override
+		public void reset() {
+			this.data.reset();
+		}
+
+		@Override
+		public boolean resetSupported() {
+			return this.data.resetSupported();
+		}
+
+		@Override
+		public boolean asyncSupported() {
+			return this.data.asyncSupported();
+		}
+
+		@Override
+		public int inputColumns() {
+			return this.data.inputColumns();
+		}
+
+		@Override
+		public int totalOutcomes() {
+			return this.data.totalOutcomes();
+		}
+
+		@Override
+		public int batch() {
+			return this.data.batch();
+		}
+
+		@Override
+		public void setPreProcessor(DataSetPreProcessor preProcessor) {
+			this.data.setPreProcessor(preProcessor);
+		}
+
+		@Override
+		public DataSetPreProcessor getPreProcessor() {
+			return this.data.getPreProcessor();
+		}
+
+		@Override
+		public List<String> getLabels() {
+			return this.data.getLabels();
+		}
+	}
+
+	private class CountingMultiIterator implements MultiDataSetIterator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MultiDataSetIterator data;
+
+		private CountingMultiIterator(MultiDataSetIterator data) {
+			this.data = data;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.data.hasNext();
+		}
+
+		@Override
+		public MultiDataSet next() {
+			MultiDataSet batch = this.data.next();
+			ThroughputListener.this.examples.addAndGet(batch.getFeatures(0).size(0));
+			return batch;
+		}
+
+		@Override
+		public MultiDataSet next(int num) {
+			MultiDataSet batch = this.data.next(num);
+			ThroughputListener.this.examples.addAndGet(batch.getFeatures(0).size(0));
+			return batch;
+		}
+
+		@Override
+		public void reset() {
+			this.data.reset();
+		}
+
+		@Override
+		public boolean resetSupported() {
+			return this.data.resetSupported();
+		}
+
+		@Override
+		public boolean asyncSupported() {
+			return this.data.asyncSupported();
+		}
+
+		@Override
+		public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+			this.data.setPreProcessor(preProcessor);
+		}
+
+		@Override
+		public MultiDataSetPreProcessor getPreProcessor() {
+			return this.data.getPreProcessor();
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package ch.zhaw.iwi.deeplearning;
+
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.nn.conf.layers.EmbeddingSequenceLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.misc.FrozenLayer;
+import org.deeplearning4j.nn.weights.embeddings.EmbeddingInitializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Initialises an embedding layer with the vectors of a {@link WordVectors}
+ * instance, row i holding the vector of vocab().wordAtIndex(i). Iterators
+ * built with tokenIndices(true) emit exactly these indices.
+ *
+ * The whole matrix becomes part of the model parameters (and of the saved
+ * model), so the vocabulary is limited to {@value #MAX_WORDS} words: use the
+ * vectors of the corpus vocabulary only, e.g. written by
+ * {@link WordVectorsSubset}, instead of all GoogleNews vectors.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class WordVectorsEmbeddingInitializer implements EmbeddingInitializer {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int MAX_WORDS = 500000;
+
+	private final WordVectors wordVectors;
+	private final int vectorSize;
+
+	public WordVectorsEmbeddingInitializer(WordVectors wordVectors) {
+		if (wordVectors.vocab().numWords() > MAX_WORDS) {
+			throw new IllegalArgumentException("WordVectorsEmbeddingInitializer: " + wordVectors.vocab().numWords()
+					+ " words would be embedded, at most " + MAX_WORDS + "; write the vectors of the corpus"
+					+ " vocabulary with WordVectorsSubset");
+		}
+		this.wordVectors = wordVectors;
+		this.vectorSize = wordVectors.getWordVector(wordVectors.vocab().wordAtIndex(0)).length;
+	}
+
+	/**
+	 * @return an embedding layer [vocabSize, vectorSize] that maps token indices
+	 *         to the given word vectors and is not updated during training
+	 */
+	public static Layer frozenEmbeddingLayer(WordVectors wordVectors) {
+		WordVectorsEmbeddingInitializer initializer = new WordVectorsEmbeddingInitializer(wordVectors);
+		return new FrozenLayer(new EmbeddingSequenceLayer.Builder().nIn(initializer.vocabSize())
+				.nOut(initializer.vectorSize())
+				.hasBias(false)
+				.weightInit(initializer)
+				.build());
+	}
+
+	@Override
+	public void loadWeightsInto(INDArray array) {
+		for (int i = 0; i < array.rows(); i++) {
+			array.putRow(i, this.wordVectors.getWordVectorMatrix(this.wordVectors.vocab().wordAtIndex(i)));
+		}
+	}
+
+	@Override
+	public long vocabSize() {
+		return this.wordVectors.vocab().numWords();
+	}
+
+	@Override
+	public int vectorSize() {
+		return this.vectorSize;
+	}
+
+	@Override
+	public boolean jsonSerializable() {
+		// the weights are part of the model parameters, only the shape goes to JSON
+		return false;
+	}
+}
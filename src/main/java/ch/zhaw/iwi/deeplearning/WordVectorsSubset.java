@@ -0,0 +1,337 @@
+package ch.zhaw.iwi.deeplearning;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
+import org.datavec.api.split.FileSplit;
+import org.datavec.api.writable.Writable;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.text.sentenceiterator.LineSentenceIterator;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.zhaw.iwi.deeplearning.chatbot.ChatbotEncDecTrainer;
+import ch.zhaw.iwi.deeplearning.chatbot.QAIterator4EncDecLSTM;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Writes the vectors of only those words of a large word vectors file (e.g.
+ * the 3 million GoogleNews vectors) that occur in the corpora trained on, plus
+ * a few reserved tokens, as a {@link BinaryWordVectors} file. The corpora are
+ * tokenized with each of the tokenizer factories the iterators use, so every
+ * token they look up is kept. The source is read as a stream once, in the
+ * word2vec binary format (optionally gzipped) or as a BinaryWordVectors file,
+ * without loading it.
+ *
+ * {@link #main(String[])} writes {@link Paths#WORD_VECTORS_SUBSET_PATH} from
+ * {@link Paths#WORD_VECTORS_PATH} for the classified texts and the dialogue
+ * pairs, and {@link #loadWordVectors()} loads it instead of all vectors once it
+ * exists. Word indices differ from those of the full vectors, so models
+ * trained on word indices need to be trained on the same file. The header of
+ * the subset records fingerprints (path, size and modification time) of the
+ * source and of the corpus files; {@link #loadWordVectors()} writes the subset
+ * again when they changed, or warns if the source is not at hand.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class WordVectorsSubset {
+
+	private static final Logger log = LoggerFactory.getLogger(WordVectorsSubset.class);
+
+	private final File source;
+	private final List<File> lineFiles;
+	private final List<File> columnFiles;
+	private final List<TokenizerFactory> tokenizerFactories;
+	private final List<String> reserved;
+
+	private WordVectorsSubset(Builder builder) {
+		this.source = builder.source;
+		this.lineFiles = builder.lineFiles;
+		this.columnFiles = builder.columnFiles;
+		this.tokenizerFactories = builder.tokenizerFactories;
+		this.reserved = builder.reserved;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		WordVectorsSubset.defaultSubset().write(new File(Paths.WORD_VECTORS_SUBSET_PATH));
+	}
+
+	/**
+	 * @return the subset of {@link Paths#WORD_VECTORS_PATH} for the classified
+	 *         texts and the dialogue pairs
+	 */
+	private static WordVectorsSubset defaultSubset() {
+		return new WordVectorsSubset.Builder(new File(Paths.WORD_VECTORS_PATH))
+				.lines(new File("classifiedtextdata/lines-comedy_training.csv"),
+						new File("classifiedtextdata/lines-comedy_testing.csv"),
+						new File("classifiedtextdata/lines-thriller_training.csv"),
+						new File("classifiedtextdata/lines-thriller_testing.csv"))
+				.columns(new File(ChatbotEncDecTrainer.TRAINING_DATA_FILENAME))
+				.build();
+	}
+
+	/**
+	 * Loads the vectors at {@link Paths#WORD_VECTORS_SUBSET_PATH} if they were
+	 * written, all vectors at {@link Paths#WORD_VECTORS_PATH} otherwise. A subset
+	 * written from other vectors or corpora is written again first.
+	 */
+	public static WordVectors loadWordVectors() throws IOException {
+		File subset = new File(Paths.WORD_VECTORS_SUBSET_PATH);
+		if (!subset.exists()) {
+			log.info("> No word vectors subset at {}, loading all word vectors", subset.getAbsolutePath());
+			return WordVectorSerializer.loadStaticModel(new File(Paths.WORD_VECTORS_PATH));
+		}
+		WordVectorsSubset expected = WordVectorsSubset.defaultSubset();
+		long[] fingerprints = BinaryWordVectors.subsetFingerprints(subset);
+		if (fingerprints[0] != expected.sourceFingerprint() || fingerprints[1] != expected.corpusFingerprint()) {
+			if (!expected.source.exists()) {
+				log.warn("WordVectorsSubset: {} was written from other word vectors or corpora, and {} is missing to "
+						+ "write it again", subset.getAbsolutePath(), expected.source.getAbsolutePath());
+			} else {
+				log.warn("WordVectorsSubset: {} was written from other word vectors or corpora, writing it again",
+						subset.getAbsolutePath());
+				try {
+					expected.write(subset);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("WordVectorsSubset: writing " + subset + " was interrupted", e);
+				}
+			}
+		}
+		return BinaryWordVectors.load(subset);
+	}
+
+	private long sourceFingerprint() {
+		return WordVectorsSubset.fingerprint(Arrays.asList(this.source));
+	}
+
+	private long corpusFingerprint() {
+		List<File> files = new ArrayList<File>(this.lineFiles);
+		files.addAll(this.columnFiles);
+		return WordVectorsSubset.fingerprint(files);
+	}
+
+	/**
+	 * @return a CRC32 of the paths, sizes and modification times of files, which
+	 *         changes when they are written again without reading their contents
+	 */
+	private static long fingerprint(List<File> files) {
+		CRC32 crc = new CRC32();
+		for (File file : files) {
+			String entry = file.getAbsolutePath() + '\n' + file.length() + '\n' + file.lastModified() + '\n';
+			crc.update(entry.getBytes(StandardCharsets.UTF_8));
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Writes the vectors of the words of the corpora to file, in the order of the
+	 * source.
+	 */
+	public void write(File file) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		Set<String> vocab = this.collectVocab();
+		log.info("> {} distinct tokens in {} files in {} ms", vocab.size(),
+				this.lineFiles.size() + this.columnFiles.size(), System.currentTimeMillis() - start);
+
+		List<String> words = new ArrayList<String>();
+		List<float[]> vectors = new ArrayList<float[]>();
+		long sourceWords;
+		if (BinaryWordVectors.isBinary(this.source)) {
+			BinaryWordVectors all = BinaryWordVectors.open(this.source);
+			sourceWords = all.numWords();
+			for (int i = 0; i < all.numWords(); i++) {
+				if (vocab.contains(all.wordAtIndex(i))) {
+					words.add(all.wordAtIndex(i));
+					vectors.add(all.vector(i));
+				}
+			}
+		} else {
+			sourceWords = WordVectorsSubset.readWord2VecBinary(this.source, vocab, words, vectors);
+		}
+		if (words.isEmpty()) {
+			throw new IOException("WordVectorsSubset: no word of the corpora in " + this.source);
+		}
+		for (String token : this.reserved) {
+			if (!words.contains(token)) {
+				log.warn("WordVectorsSubset: reserved token '{}' is not in {}", token, this.source);
+			}
+		}
+		log.info("> {} of {} words found among {} source vectors", words.size(), vocab.size(), sourceWords);
+
+		BinaryWordVectors.write(words.toArray(new String[words.size()]), vectors.get(0).length, vectors::get,
+				this.sourceFingerprint(), this.corpusFingerprint(), file);
+		log.info("> Word vectors subset written in {} ms ({} instead of {} bytes)",
+				System.currentTimeMillis() - start, file.length(), this.source.length());
+	}
+
+	/**
+	 * @return the tokens of all texts of the corpora and the reserved tokens
+	 */
+	private Set<String> collectVocab() throws IOException, InterruptedException {
+		Set<String> vocab = new HashSet<String>(this.reserved);
+		for (File file : this.lineFiles) {
+			SentenceIterator lines = new LineSentenceIterator(file);
+			while (lines.hasNext()) {
+				this.addTokens(vocab, lines.nextSentence());
+			}
+			lines.finish();
+		}
+		for (File file : this.columnFiles) {
+			try (CSVRecordReader reader = new CSVRecordReader()) {
+				reader.initialize(new FileSplit(file));
+				while (reader.hasNext()) {
+					for (Writable column : reader.next()) {
+						this.addTokens(vocab, column.toString());
+					}
+				}
+			}
+		}
+		return vocab;
+	}
+
+	private void addTokens(Set<String> vocab, String text) {
+		for (TokenizerFactory tokenizerFactory : this.tokenizerFactories) {
+			vocab.addAll(tokenizerFactory.create(text).getTokens());
+		}
+	}
+
+	/**
+	 * Streams a file in the binary format of word2vec (a header line with the
+	 * number of words and the vector size, then per word the word, a space and the
+	 * floats in little endian) and keeps the words of vocab with their vectors.
+	 *
+	 * @return the number of words in the file
+	 */
+	private static long readWord2VecBinary(File file, Set<String> vocab, List<String> words, List<float[]> vectors)
+			throws IOException {
+		InputStream stream = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			stream = new GZIPInputStream(stream, 1 << 16);
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 20))) {
+			long numberOfWords = Long.parseLong(WordVectorsSubset.readToken(in));
+			int vectorSize = Integer.parseInt(WordVectorsSubset.readToken(in));
+			byte[] bytes = new byte[4 * vectorSize];
+			for (long i = 0; i < numberOfWords; i++) {
+				String word = WordVectorsSubset.readToken(in);
+				in.readFully(bytes);
+				if (vocab.contains(word)) {
+					float[] vector = new float[vectorSize];
+					ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+					words.add(word);
+					vectors.add(vector);
+				}
+			}
+			return numberOfWords;
+		}
+	}
+
+	/**
+	 * @return the UTF-8 bytes up to the next space or line break, skipping line
+	 *         breaks before them
+	 */
+	private static String readToken(DataInputStream in) throws IOException {
+		ByteArrayOutputStream token = new ByteArrayOutputStream();
+		int b = in.read();
+		while (b == '\n' || b == '\r') {
+			b = in.read();
+		}
+		while (b != ' ' && b != '\n' && b != -1) {
+			token.write(b);
+			b = in.read();
+		}
+		if (b == -1 && token.size() == 0) {
+			throw new EOFException("WordVectorsSubset: word vectors file ends early");
+		}
+		return new String(token.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	public static class Builder {
+
+		private final File source;
+		private List<File> lineFiles = new ArrayList<File>();
+		private List<File> columnFiles = new ArrayList<File>();
+		private List<TokenizerFactory> tokenizerFactories;
+		private List<String> reserved = Arrays.asList(QAIterator4EncDecLSTM.EMPTY_LINE_REPLACEMENT,
+				QAIterator4EncDecLSTM.LINE_START, QAIterator4EncDecLSTM.LINE_END);
+
+		/**
+		 * @param source the word vectors to take the subset of, e.g.
+		 *               {@link Paths#WORD_VECTORS_PATH}
+		 */
+		public Builder(File source) {
+			this.source = source;
+			TokenizerFactory preprocessing = new DefaultTokenizerFactory();
+			preprocessing.setTokenPreProcessor(new CommonPreprocessor());
+			this.tokenizerFactories = Arrays.asList(new DefaultTokenizerFactory(), preprocessing);
+		}
+
+		/**
+		 * Files with one text per line, e.g. the classified texts.
+		 */
+		public Builder lines(File... files) {
+			this.lineFiles = Arrays.asList(files);
+			return this;
+		}
+
+		/**
+		 * CSV files with one text per column, e.g. the dialogue pairs.
+		 */
+		public Builder columns(File... files) {
+			this.columnFiles = Arrays.asList(files);
+			return this;
+		}
+
+		/**
+		 * The tokenizer factories the texts are tokenized with. Defaults to a
+		 * DefaultTokenizerFactory without pre-processor (ClassifiedTextIterator4CNN)
+		 * and one with a CommonPreprocessor (ClassifiedTextIterator4RNN,
+		 * QAIterator4EncDecLSTM).
+		 */
+		public Builder tokenizerFactories(TokenizerFactory... tokenizerFactories) {
+			this.tokenizerFactories = Arrays.asList(tokenizerFactories);
+			return this;
+		}
+
+		/**
+		 * Tokens kept whether or not they occur in the corpora. Defaults to the line
+		 * markers of QAIterator4EncDecLSTM.
+		 */
+		public Builder reserved(String... reserved) {
+			this.reserved = Arrays.asList(reserved);
+			return this;
+		}
+
+		public WordVectorsSubset build() {
+			return new WordVectorsSubset(this);
+		}
+	}
+
+}
@@ -1,268 +1,701 @@
-package ch.zhaw.iwi.deeplearning.chatbot;
-
-import java.io.File;
-import java.io.IOException;
-
-import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.nn.conf.BackpropType;
-import org.deeplearning4j.nn.conf.ComputationGraphConfiguration.GraphBuilder;
-import org.deeplearning4j.nn.conf.GradientNormalization;
-import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
-import org.deeplearning4j.nn.conf.graph.MergeVertex;
-import org.deeplearning4j.nn.conf.graph.rnn.DuplicateToTimeSeriesVertex;
-import org.deeplearning4j.nn.conf.graph.rnn.LastTimeStepVertex;
-import org.deeplearning4j.nn.conf.layers.LSTM;
-import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
-import org.deeplearning4j.nn.graph.ComputationGraph;
-import org.deeplearning4j.nn.weights.WeightInit;
-import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
-import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
-import org.deeplearning4j.util.ModelSerializer;
-import org.nd4j.linalg.activations.Activation;
-import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.learning.config.RmsProp;
-import org.nd4j.linalg.lossfunctions.LossFunctions;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Zurich University of Applied Sciences (ZHAW), Institute for Business
- * Information Systems (IWI), Center for Information Systems and Technologies
- * (CIS)
- * 
- * @author Alexandre de Spindler (desa@zhaw.ch)
- * 
- */
-public class ChatbotEncDecTrainer {
-
-	private static final Logger log = LoggerFactory.getLogger(ChatbotEncDecTrainer.class);
-
-	public static final String TRAINING_DATA_FILENAME = "classifieddialoguepairs/dialoguepairs-comedy.csv";
-	public static final String MODEL_FILENAME = "classifieddialoguepairs/chatbotencdec.zip";
-
-	private final File trainingDataFile;
-	private final File modelFile;
-
-	private final WordVectors wordVectors;
-	private final TokenizerFactory tokenizerFactory;
-
-	// Model Parameters
-	private final int embeddingWidth; // this is defined by the WordVectors instance
-	private final int hiddenLayerWidth;
-	private final double learningRate;
-	private final int tbttSize;
-
-	// Training Parameters
-	private final int truncateTextToLength;
-	private final int batchSize;
-	private final int nEpochs;
-
-	private ComputationGraph model;
-
-	public ChatbotEncDecTrainer(File trainingDataFile, File modelFile, Builder builder) {
-
-		log.info("> Hello ChatbotEncDecTrainer :)");
-
-		this.trainingDataFile = trainingDataFile;
-		this.modelFile = modelFile;
-
-		this.wordVectors = builder.wordVectors;
-		this.tokenizerFactory = builder.tokenizerFactory;
-
-		this.embeddingWidth = builder.wordVectors.getWordVector(builder.wordVectors.vocab().wordAtIndex(0)).length;
-		this.hiddenLayerWidth = builder.hiddenLayerWidth;
-		this.learningRate = builder.learningRate;
-		this.tbttSize = builder.tbttSize;
-
-		this.truncateTextToLength = builder.maxSentenceLength;
-		this.batchSize = builder.minibatchSize;
-		this.nEpochs = builder.epochs;
-	}
-
-	public void go() throws IOException {
-		Nd4j.getMemoryManager().setAutoGcWindow(2000);
-		this.buildModel();
-		this.trainModel(this.trainingDataFile);
-		this.saveModel(this.modelFile);
-	}
-
-	public static void main(String[] args) throws IOException {
-
-		File trainingDataFile = new File(ChatbotEncDecTrainer.TRAINING_DATA_FILENAME);
-		File modelFile = new File(ChatbotEncDecTrainer.MODEL_FILENAME);
-
-		File wordVectorsFile = new File(ChatbotEncDecWordVectors.WORDVECTORS_FILENAME);
-		WordVectors wordVectors = ChatbotEncDecWordVectors.load(wordVectorsFile);
-
-		ChatbotEncDecTrainer trainer = new ChatbotEncDecTrainer.Builder(trainingDataFile, modelFile)
-				.wordVectors(wordVectors)
-				.build();
-
-		trainer.go();
-	}
-
-	private void buildModel() {
-
-		log.info("> Building Model ...");
-
-		final NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder()
-				.updater(new RmsProp(learningRate))
-				.weightInit(WeightInit.XAVIER)
-				.gradientNormalization(GradientNormalization.RenormalizeL2PerLayer);
-
-		final GraphBuilder graphBuilder = builder.graphBuilder()
-				.backpropType(BackpropType.Standard)
-				.tBPTTBackwardLength(tbttSize)
-				.tBPTTForwardLength(tbttSize)
-				.addInputs("encoderInput", "decoderInput")
-				// TODO .setInputTypes(InputType.recurrent(dict.size()),
-				// InputType.recurrent(dict.size()))
-				.addLayer("encoder",
-						new LSTM.Builder().nIn(embeddingWidth)
-								.nOut(hiddenLayerWidth)
-								.activation(Activation.TANH)
-								.build(),
-						"encoderInput")
-				.addVertex("thoughtVector", new LastTimeStepVertex("encoderInput"), "encoder")
-				.addVertex("dup", new DuplicateToTimeSeriesVertex("decoderInput"), "thoughtVector")
-				.addVertex("merge", new MergeVertex(), "decoderInput", "dup")
-				.addLayer("decoder",
-						new LSTM.Builder().nIn(embeddingWidth + hiddenLayerWidth)
-								.nOut(hiddenLayerWidth)
-								.activation(Activation.TANH)
-								.build(),
-						"merge")
-				.addLayer("output",
-						new RnnOutputLayer.Builder().nIn(hiddenLayerWidth)
-								.nOut(embeddingWidth)
-								.activation(Activation.SOFTMAX)
-								.lossFunction(LossFunctions.LossFunction.MCXENT)
-								.build(),
-						"decoder")
-				.setOutputs("output");
-
-		this.model = new ComputationGraph(graphBuilder.build());
-		this.model.init();
-
-		log.info("> Building Model DONE");
-	}
-
-	private void trainModel(File trainingDataFile) throws IOException {
-
-		log.info("> Training Model ...");
-
-		MultiDataSetIterator trainingData = new QAIterator4EncDecLSTM.Builder(trainingDataFile)
-				.wordVectors(this.wordVectors)
-				.tokenizerFactory(this.tokenizerFactory)
-				.minibatchSize(this.batchSize)
-				.maxSentenceLength(this.truncateTextToLength)
-				.build();
-
-		this.model.addListeners(new ScoreIterationListener(100));
-		this.model.fit(trainingData, this.nEpochs);
-
-		log.info("> Training Model DONE");
-	}
-
-	private void saveModel(File modelFile) throws IOException {
-
-		log.info("> Saving Model ... to " + modelFile.getAbsolutePath());
-
-		ModelSerializer.writeModel(this.model, modelFile, true);
-
-		log.info("> Saving Model DONE");
-
-	}
-
-	public static class Builder {
-
-		private WordVectors wordVectors;
-		private TokenizerFactory tokenizerFactory;
-		private int maxSentenceLength = 256;
-		private int minibatchSize = 32;
-		private int epochs = 1;
-
-		private int hiddenLayerWidth = 512;
-		private double learningRate = 1e-1;
-		private int tbttSize = 25;
-
-		private File trainingDataFile;
-		private File modelFile;
-
-		public Builder(File trainingDataFile, File modelFile) {
-			this.trainingDataFile = trainingDataFile;
-			this.modelFile = modelFile;
-			this.tokenizerFactory = new DefaultTokenizerFactory();
-			this.tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
-		}
-
-		/**
-		 * Provide the WordVectors instance that should be used for training
-		 */
-		public Builder wordVectors(WordVectors wordVectors) {
-			this.wordVectors = wordVectors;
-			return this;
-		}
-
-		/**
-		 * The {@link TokenizerFactory} that should be used. Defaults to
-		 * {@link DefaultTokenizerFactory}
-		 */
-		public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
-			this.tokenizerFactory = tokenizerFactory;
-			return this;
-		}
-
-		/**
-		 * Maximum sentence/document length. If sentences exceed this, they will be
-		 * truncated to this length by taking the first 'maxSentenceLength' known words.
-		 */
-		public Builder maxSentenceLength(int maxSentenceLength) {
-			this.maxSentenceLength = maxSentenceLength;
-			return this;
-		}
-
-		/**
-		 * Minibatch size to use for the bot
-		 */
-		public Builder minibatchSize(int minibatchSize) {
-			this.minibatchSize = minibatchSize;
-			return this;
-		}
-
-		/**
-		 * Number of epochs the bot will be trained. Defaults to 1.
-		 */
-		public Builder epochs(int epochs) {
-			this.epochs = epochs;
-			return this;
-		}
-
-		public Builder hiddenLayerWidth(int hiddenLayerWidth) {
-			this.hiddenLayerWidth = hiddenLayerWidth;
-			return this;
-		}
-
-		public Builder learningRate(double learningRate) {
-			this.learningRate = learningRate;
-			return this;
-		}
-
-		public Builder tbttSize(int tbttSize) {
-			this.tbttSize = tbttSize;
-			return this;
-		}
-
-		public ChatbotEncDecTrainer build() {
-			if (wordVectors == null) {
-				throw new IllegalStateException("Cannot build ChatbotEncDecTrainer without a WordVectors instance");
-			}
-
-			return new ChatbotEncDecTrainer(this.trainingDataFile, this.modelFile, this);
-		}
-
-	}
-}
+package ch.zhaw.iwi.deeplearning.chatbot;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.earlystopping.EarlyStoppingConfiguration;
+import org.deeplearning4j.earlystopping.EarlyStoppingResult;
+import org.deeplearning4j.earlystopping.scorecalc.DataSetLossCalculator;
+import org.deeplearning4j.earlystopping.trainer.EarlyStoppingGraphTrainer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.nn.conf.BackpropType;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration.GraphBuilder;
+import org.deeplearning4j.nn.conf.GradientNormalization;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.graph.MergeVertex;
+import org.deeplearning4j.nn.conf.graph.StackVertex;
+import org.deeplearning4j.nn.conf.graph.UnstackVertex;
+import org.deeplearning4j.nn.conf.graph.rnn.DuplicateToTimeSeriesVertex;
+import org.deeplearning4j.nn.conf.graph.rnn.LastTimeStepVertex;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.RmsProp;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.zhaw.iwi.deeplearning.AsyncCheckpointer;
+import ch.zhaw.iwi.deeplearning.Autotuner;
+import ch.zhaw.iwi.deeplearning.EarlyStopping;
+import ch.zhaw.iwi.deeplearning.MemoryPlanner;
+import ch.zhaw.iwi.deeplearning.ThroughputListener;
+import ch.zhaw.iwi.deeplearning.WordVectorsEmbeddingInitializer;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ * 
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ * 
+ */
+public class ChatbotEncDecTrainer {
+
+	private static final Logger log = LoggerFactory.getLogger(ChatbotEncDecTrainer.class);
+
+	public static final String TRAINING_DATA_FILENAME = "classifieddialoguepairs/dialoguepairs-comedy.csv";
+	public static final String MODEL_FILENAME = "classifieddialoguepairs/chatbotencdec.zip";
+
+	private final File trainingDataFile;
+	private final File modelFile;
+
+	private final WordVectors wordVectors;
+	private final TokenizerFactory tokenizerFactory;
+
+	// Model Parameters
+	private final int embeddingWidth; // this is defined by the WordVectors instance
+	private final int hiddenLayerWidth;
+	private final double learningRate;
+	private final BackpropType backpropType;
+	private final int tbttSize;
+	private final boolean tokenIndices;
+	private final boolean labelIndices;
+	private final int labelVocabularySize;
+	private final int numSampled;
+	private final DataType dataType;
+	private final DataType networkDataType;
+
+	// Training Parameters
+	private final int truncateTextToLength;
+	private final long memoryBudget;
+	private final boolean autotune;
+	private int batchSize;
+	private final int nEpochs;
+	private final int checkpointFrequency;
+	private final int checkpointsToKeep;
+	private final boolean resume;
+	private final boolean earlyStopping;
+	private final int patience;
+	private final double minImprovement;
+	private final long maxMinutes;
+	private final int validationBatches;
+
+	private ComputationGraph model;
+
+	public ChatbotEncDecTrainer(File trainingDataFile, File modelFile, Builder builder) {
+
+		log.info("> Hello ChatbotEncDecTrainer :)");
+
+		this.trainingDataFile = trainingDataFile;
+		this.modelFile = modelFile;
+
+		this.wordVectors = builder.wordVectors;
+		this.tokenizerFactory = builder.tokenizerFactory;
+
+		this.embeddingWidth = builder.wordVectors.getWordVector(builder.wordVectors.vocab().wordAtIndex(0)).length;
+		this.hiddenLayerWidth = builder.hiddenLayerWidth;
+		this.learningRate = builder.learningRate;
+		this.backpropType = builder.backpropType;
+		this.tbttSize = builder.tbttSize;
+		this.tokenIndices = builder.tokenIndices;
+		this.labelIndices = builder.labelIndices;
+		this.labelVocabularySize = Math.min(builder.labelVocabularySize, builder.wordVectors.vocab().numWords());
+		this.numSampled = builder.numSampled;
+		this.dataType = builder.dataType;
+		this.networkDataType = builder.networkDataType;
+
+		this.truncateTextToLength = builder.maxSentenceLength;
+		this.memoryBudget = builder.memoryBudget;
+		this.autotune = builder.autotune;
+		this.batchSize = builder.minibatchSize;
+		this.nEpochs = builder.epochs;
+		this.checkpointFrequency = builder.checkpointFrequency;
+		this.checkpointsToKeep = builder.checkpointsToKeep;
+		this.resume = builder.resume;
+		this.earlyStopping = builder.earlyStopping;
+		this.patience = builder.patience;
+		this.minImprovement = builder.minImprovement;
+		this.maxMinutes = builder.maxMinutes;
+		this.validationBatches = builder.validationBatches;
+	}
+
+	public void go() throws Exception {
+		Nd4j.getMemoryManager().togglePeriodicGc(false);
+		Nd4j.setDefaultDataTypes(this.dataType, this.dataType); // batch assembly
+		this.buildModel();
+		this.tuneBatchSize(this.planMemory());
+		MemoryPlanner.logOffHeap("building the model");
+		if (this.earlyStopping) {
+			this.trainModelWithEarlyStopping(this.trainingDataFile);
+		} else {
+			this.trainModel(this.trainingDataFile);
+		}
+		MemoryPlanner.logOffHeap("training");
+		this.saveModel(this.modelFile);
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		File trainingDataFile = new File(ChatbotEncDecTrainer.TRAINING_DATA_FILENAME);
+		File modelFile = new File(ChatbotEncDecTrainer.MODEL_FILENAME);
+
+		DataType dataType = DataType.FLOAT; // FLOAT, HALF or BFLOAT16 for word vectors and batches
+		Nd4j.setDefaultDataTypes(dataType, dataType); // word vector storage
+
+		File wordVectorsFile = new File(ChatbotEncDecWordVectors.WORDVECTORS_FILENAME);
+		WordVectors wordVectors = ChatbotEncDecWordVectors.load(wordVectorsFile);
+
+		ChatbotEncDecTrainer trainer = new ChatbotEncDecTrainer.Builder(trainingDataFile, modelFile)
+				.wordVectors(wordVectors)
+				.dataType(dataType)
+				.build();
+
+		trainer.go();
+	}
+
+	private void buildModel() {
+
+		log.info("> Building Model ...");
+
+		final NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder()
+				.dataType(this.networkDataType)
+				.updater(new RmsProp(learningRate))
+				.weightInit(WeightInit.XAVIER)
+				.gradientNormalization(GradientNormalization.RenormalizeL2PerLayer);
+
+		final GraphBuilder graphBuilder;
+		if (this.backpropType == BackpropType.TruncatedBPTT) {
+			graphBuilder = this.buildConcatenatedGraph(builder);
+		} else {
+			graphBuilder = this.buildEncoderDecoderGraph(builder);
+		}
+
+		this.model = new ComputationGraph(graphBuilder.build());
+		this.model.init();
+
+		log.info("> Building Model DONE");
+	}
+
+	private GraphBuilder buildEncoderDecoderGraph(NeuralNetConfiguration.Builder builder) {
+
+		final GraphBuilder graphBuilder = builder.graphBuilder()
+				.backpropType(BackpropType.Standard)
+				.addInputs("encoderInput", "decoderInput");
+		// TODO .setInputTypes(InputType.recurrent(dict.size()),
+		// InputType.recurrent(dict.size()))
+
+		String encoderInput = "encoderInput";
+		String decoderInput = "decoderInput";
+		if (this.tokenIndices) {
+			// one embedding for both inputs, stacked along the minibatch dimension: this
+			// needs inputs of the same length, the iterator pads both to the longest
+			// sentence and ChatbotEncDec pads the decoder input to the question
+			graphBuilder.addVertex("stack", new StackVertex(), "encoderInput", "decoderInput")
+					.addLayer("embedding", WordVectorsEmbeddingInitializer.frozenEmbeddingLayer(this.wordVectors),
+							"stack")
+					.addVertex("encoderEmbedding", new UnstackVertex(0, 2), "embedding")
+					.addVertex("decoderEmbedding", new UnstackVertex(1, 2), "embedding");
+			encoderInput = "encoderEmbedding";
+			decoderInput = "decoderEmbedding";
+		}
+
+		return graphBuilder
+				.addLayer("encoder",
+						new LSTM.Builder().nIn(embeddingWidth)
+								.nOut(hiddenLayerWidth)
+								.activation(Activation.TANH)
+								.build(),
+						encoderInput)
+				.addVertex("thoughtVector", new LastTimeStepVertex("encoderInput"), "encoder")
+				.addVertex("dup", new DuplicateToTimeSeriesVertex("decoderInput"), "thoughtVector")
+				.addVertex("merge", new MergeVertex(), decoderInput, "dup")
+				.addLayer("decoder",
+						new LSTM.Builder().nIn(embeddingWidth + hiddenLayerWidth)
+								.nOut(hiddenLayerWidth)
+								.activation(Activation.TANH)
+								.build(),
+						"merge")
+				.addLayer("output", this.buildOutputLayer(), "decoder")
+				.setOutputs("output");
+	}
+
+	/**
+	 * The LastTimeStepVertex/DuplicateToTimeSeriesVertex pair needs the whole
+	 * question within one forward pass, which truncated BPTT cannot give it. For
+	 * truncated BPTT the encoder and decoder are therefore stacked over Q and A on
+	 * one time axis (see {@link QAIterator4EncDecLSTM.Builder#concatenateQA}), and
+	 * the thought vector is the recurrent state carried across segments.
+	 */
+	private GraphBuilder buildConcatenatedGraph(NeuralNetConfiguration.Builder builder) {
+
+		final GraphBuilder graphBuilder = builder.graphBuilder()
+				.backpropType(BackpropType.TruncatedBPTT)
+				.tBPTTBackwardLength(tbttSize)
+				.tBPTTForwardLength(tbttSize)
+				.addInputs("input");
+
+		String input = "input";
+		if (this.tokenIndices) {
+			graphBuilder.addLayer("embedding", WordVectorsEmbeddingInitializer.frozenEmbeddingLayer(this.wordVectors),
+					"input");
+			input = "embedding";
+		}
+
+		return graphBuilder
+				.addLayer("encoder",
+						new LSTM.Builder().nIn(embeddingWidth)
+								.nOut(hiddenLayerWidth)
+								.activation(Activation.TANH)
+								.build(),
+						input)
+				.addLayer("decoder",
+						new LSTM.Builder().nIn(hiddenLayerWidth)
+								.nOut(hiddenLayerWidth)
+								.activation(Activation.TANH)
+								.build(),
+						"encoder")
+				.addLayer("output", this.buildOutputLayer(), "decoder")
+				.setOutputs("output");
+	}
+
+	/**
+	 * Either predicts the word vector of the next word, or with label indices a
+	 * softmax over the first labelVocabularySize words of the vocabulary, so the
+	 * decoder needs no nearest neighbour search. The softmax is trained on
+	 * numSampled sampled words per batch and computed in full at inference only.
+	 */
+	private Layer buildOutputLayer() {
+		if (this.labelIndices) {
+			return new SampledSoftmaxOutputLayer(hiddenLayerWidth, this.labelVocabularySize, this.numSampled);
+		}
+		return new RnnOutputLayer.Builder().nIn(hiddenLayerWidth)
+				.nOut(embeddingWidth)
+				.activation(Activation.SOFTMAX)
+				.lossFunction(LossFunctions.LossFunction.MCXENT)
+				.build();
+	}
+
+	/**
+	 * Estimates the training memory and, given a memory budget, sets the batch size
+	 * to the largest that fits.
+	 */
+	private MemoryPlanner planMemory() {
+
+		// Q and A share one time axis when concatenated
+		int length = this.backpropType == BackpropType.TruncatedBPTT ? 2 * this.truncateTextToLength
+				: this.truncateTextToLength;
+		int featureWidth = this.tokenIndices ? 1 : this.embeddingWidth;
+		int labelWidth = this.labelIndices ? 1 : this.embeddingWidth;
+		InputType input = InputType.recurrent(featureWidth, length);
+		InputType[] inputs = this.backpropType == BackpropType.TruncatedBPTT ? new InputType[] { input }
+				: new InputType[] { input, input };
+		// inputs, labels and three masks of one example
+		long elementsPerExample = (long) (inputs.length * featureWidth + labelWidth + 3) * length;
+
+		MemoryPlanner planner = new MemoryPlanner(this.model.getConfiguration().getMemoryReport(inputs),
+				this.networkDataType, this.dataType, elementsPerExample);
+		if (this.memoryBudget > 0) {
+			this.batchSize = planner.getLargestBatchSize(this.memoryBudget);
+			log.info("> Batch size {} fits into {} bytes", this.batchSize, this.memoryBudget);
+		}
+		planner.logEstimate(this.batchSize);
+		return planner;
+	}
+
+	/**
+	 * With autotune, times batch sizes and thread counts on a copy of the model and
+	 * saves the fastest next to the model file. A saved choice is applied unless it
+	 * was made for other settings, then the defaults are used.
+	 */
+	private void tuneBatchSize(MemoryPlanner planner) throws Exception {
+
+		Autotuner autotuner = new Autotuner(new File(this.modelFile.getPath() + ".autotune"), planner,
+				this.memoryBudget).setting("truncateTextToLength", this.truncateTextToLength)
+						.setting("backpropType", this.backpropType)
+						.setting("tokenIndices", this.tokenIndices)
+						.setting("labelIndices", this.labelIndices)
+						.setting("labelVocabularySize", this.labelVocabularySize)
+						.setting("numSampled", this.numSampled)
+						.setting("dataType", this.dataType)
+						.setting("networkDataType", this.networkDataType);
+		if (this.autotune) {
+			ComputationGraph trialModel = new ComputationGraph(this.model.getConfiguration().clone());
+			trialModel.init();
+			autotuner.tune(new int[] { 16, 32, 64, 128 }, Autotuner.threadCounts(), 20,
+					(size, count) -> Autotuner.take(this.createIterator(this.trainingDataFile, size), count,
+							MultiDataSet::copy),
+					batch -> {
+						trialModel.fit(batch);
+						return (int) batch.getFeatures(0).size(0);
+					});
+		}
+		this.batchSize = autotuner.apply(this.batchSize);
+	}
+
+	private MultiDataSetIterator createIterator(File trainingDataFile, int batchSize) {
+		return new QAIterator4EncDecLSTM.Builder(trainingDataFile).wordVectors(this.wordVectors)
+				.tokenizerFactory(this.tokenizerFactory)
+				.minibatchSize(batchSize)
+				.maxSentenceLength(this.truncateTextToLength)
+				.concatenateQA(this.backpropType == BackpropType.TruncatedBPTT)
+				.tokenIndices(this.tokenIndices)
+				.labelIndices(this.labelIndices)
+				.labelVocabularySize(this.labelVocabularySize)
+				.build();
+	}
+
+	private void trainModel(File trainingDataFile) throws IOException, InterruptedException {
+
+		log.info("> Training Model ...");
+
+		MultiDataSetIterator trainingData = this.createIterator(trainingDataFile, this.batchSize);
+		AsyncCheckpointer checkpointer = null;
+		if (this.checkpointFrequency > 0) {
+			checkpointer = new AsyncCheckpointer.Builder(new File(this.modelFile.getPath() + ".checkpoints"))
+					.frequency(this.checkpointFrequency)
+					.keep(this.checkpointsToKeep)
+					.build();
+			if (this.resume) {
+				checkpointer.resume(this.model);
+			} else {
+				checkpointer.clear();
+			}
+			trainingData = checkpointer.track(this.model, trainingData);
+		}
+
+		ThroughputListener throughput = new ThroughputListener();
+		this.model.addListeners(new ScoreIterationListener(100), throughput);
+		trainingData = throughput.count(trainingData);
+		// time, throughput and off-heap memory per epoch, to compare backprop and data
+		// types
+		for (int i = this.model.getConfiguration().getEpochCount(); i < this.nEpochs; i++) {
+			long start = System.currentTimeMillis();
+			this.model.fit(trainingData);
+			log.info("Epoch {} ({}) took {} ms, {} examples/s, score {}, off-heap bytes {} (physical {})", i,
+					this.backpropType, System.currentTimeMillis() - start, throughput.getExamplesPerSecond(),
+					this.model.score(), Pointer.totalBytes(), Pointer.physicalBytes());
+		}
+		if (checkpointer != null) {
+			checkpointer.finish();
+		}
+
+		log.info("> Training Model DONE");
+	}
+
+	/**
+	 * Trains for at most nEpochs, stopping early when the loss on the first
+	 * validationBatches batches (held out from training) stops improving, and
+	 * continues with the best model.
+	 */
+	private void trainModelWithEarlyStopping(File trainingDataFile) {
+
+		log.info("> Training Model with early stopping ...");
+
+		MultiDataSetIterator trainingData = this.createIterator(trainingDataFile, this.batchSize);
+		MultiDataSetIterator validation = EarlyStopping.holdOut(trainingData, this.validationBatches);
+
+		EarlyStoppingConfiguration<ComputationGraph> earlyStoppingConf = EarlyStopping.configuration(
+				new DataSetLossCalculator(validation, true),
+				EarlyStopping.graphSaver(new File(this.modelFile.getPath() + ".earlystopping")), this.nEpochs,
+				this.patience, this.minImprovement, this.maxMinutes);
+		ThroughputListener throughput = new ThroughputListener();
+		this.model.addListeners(new ScoreIterationListener(100), throughput);
+		EarlyStoppingResult<ComputationGraph> result = new EarlyStoppingGraphTrainer(earlyStoppingConf, this.model,
+				throughput.count(EarlyStopping.skip(trainingData, this.validationBatches)), null).fit();
+		EarlyStopping.logResult(result);
+		log.info("{} examples/s", throughput.getExamplesPerSecond());
+		this.model = result.getBestModel();
+
+		log.info("> Training Model DONE");
+	}
+
+	private void saveModel(File modelFile) throws IOException {
+
+		log.info("> Saving Model ... to " + modelFile.getAbsolutePath());
+
+		ModelSerializer.writeModel(this.model, modelFile, true);
+
+		log.info("> Saving Model DONE");
+
+	}
+
+	public static class Builder {
+
+		private WordVectors wordVectors;
+		private TokenizerFactory tokenizerFactory;
+		private int maxSentenceLength = 256;
+		private int minibatchSize = 32;
+		private long memoryBudget = 0;
+		private boolean autotune = false;
+		private int epochs = 1;
+		private int checkpointFrequency = 0;
+		private int checkpointsToKeep = 3;
+		private boolean resume = false;
+		private boolean earlyStopping = false;
+		private int patience = 3;
+		private double minImprovement = 1e-3;
+		private long maxMinutes = 0;
+		private int validationBatches = 10;
+
+		private int hiddenLayerWidth = 512;
+		private double learningRate = 1e-1;
+		private BackpropType backpropType = BackpropType.Standard;
+		private int tbttSize = 25;
+		private boolean tokenIndices = false;
+		private boolean labelIndices = false;
+		private int labelVocabularySize = QAIterator4EncDecLSTM.DEFAULT_LABEL_VOCABULARY_SIZE;
+		private int numSampled = 512;
+		private DataType dataType = DataType.FLOAT;
+		private DataType networkDataType = DataType.FLOAT;
+
+		private File trainingDataFile;
+		private File modelFile;
+
+		public Builder(File trainingDataFile, File modelFile) {
+			this.trainingDataFile = trainingDataFile;
+			this.modelFile = modelFile;
+			this.tokenizerFactory = new DefaultTokenizerFactory();
+			this.tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+		}
+
+		/**
+		 * Provide the WordVectors instance that should be used for training
+		 */
+		public Builder wordVectors(WordVectors wordVectors) {
+			this.wordVectors = wordVectors;
+			return this;
+		}
+
+		/**
+		 * The {@link TokenizerFactory} that should be used. Defaults to
+		 * {@link DefaultTokenizerFactory}
+		 */
+		public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
+			this.tokenizerFactory = tokenizerFactory;
+			return this;
+		}
+
+		/**
+		 * Maximum sentence/document length. If sentences exceed this, they will be
+		 * truncated to this length by taking the first 'maxSentenceLength' known words.
+		 */
+		public Builder maxSentenceLength(int maxSentenceLength) {
+			this.maxSentenceLength = maxSentenceLength;
+			return this;
+		}
+
+		/**
+		 * Minibatch size to use for the bot
+		 */
+		public Builder minibatchSize(int minibatchSize) {
+			this.minibatchSize = minibatchSize;
+			return this;
+		}
+
+		/**
+		 * Off-heap bytes available for training. If > 0, the minibatch size is set to
+		 * the largest that fits according to {@link MemoryPlanner}. Defaults to 0.
+		 */
+		public Builder memoryBudget(long memoryBudget) {
+			this.memoryBudget = memoryBudget;
+			return this;
+		}
+
+		/**
+		 * Time short trials over batch sizes and thread counts before training and
+		 * save the fastest next to the model file (modelFile.autotune), where later
+		 * runs pick it up. Defaults to false.
+		 */
+		public Builder autotune(boolean autotune) {
+			this.autotune = autotune;
+			return this;
+		}
+
+		/**
+		 * Number of epochs the bot will be trained. Defaults to 1.
+		 */
+		public Builder epochs(int epochs) {
+			this.epochs = epochs;
+			return this;
+		}
+
+		/**
+		 * Write a checkpoint every checkpointFrequency batches to the directory
+		 * modelFile.checkpoints, on a background thread. Defaults to 0 (no
+		 * checkpoints).
+		 */
+		public Builder checkpointFrequency(int checkpointFrequency) {
+			this.checkpointFrequency = checkpointFrequency;
+			return this;
+		}
+
+		/**
+		 * Number of checkpoints to keep. Defaults to 3.
+		 */
+		public Builder checkpointsToKeep(int checkpointsToKeep) {
+			this.checkpointsToKeep = checkpointsToKeep;
+			return this;
+		}
+
+		/**
+		 * With checkpoints, continue training from the latest checkpoint, if any, at
+		 * the batch it was taken. Use the same minibatch size as before. Defaults to
+		 * false, where the checkpoints of a previous run are deleted.
+		 */
+		public Builder resume(boolean resume) {
+			this.resume = resume;
+			return this;
+		}
+
+		/**
+		 * Train until the loss on batches held out from the training data stops
+		 * improving, for at most epochs epochs, and save the best model. Checkpoints
+		 * are not written in this mode. Defaults to false.
+		 */
+		public Builder earlyStopping(boolean earlyStopping) {
+			this.earlyStopping = earlyStopping;
+			return this;
+		}
+
+		/**
+		 * With early stopping, the number of epochs without improvement before
+		 * training stops. Defaults to 3.
+		 */
+		public Builder patience(int patience) {
+			this.patience = patience;
+			return this;
+		}
+
+		/**
+		 * With early stopping, the smallest decrease of the validation loss counted as
+		 * improvement. Defaults to 1e-3.
+		 */
+		public Builder minImprovement(double minImprovement) {
+			this.minImprovement = minImprovement;
+			return this;
+		}
+
+		/**
+		 * With early stopping, the wall-clock budget in minutes. Defaults to 0 (no
+		 * limit).
+		 */
+		public Builder maxMinutes(long maxMinutes) {
+			this.maxMinutes = maxMinutes;
+			return this;
+		}
+
+		/**
+		 * With early stopping, the number of batches held out from the start of the
+		 * training data to compute the validation loss. Defaults to 10.
+		 */
+		public Builder validationBatches(int validationBatches) {
+			this.validationBatches = validationBatches;
+			return this;
+		}
+
+		public Builder hiddenLayerWidth(int hiddenLayerWidth) {
+			this.hiddenLayerWidth = hiddenLayerWidth;
+			return this;
+		}
+
+		public Builder learningRate(double learningRate) {
+			this.learningRate = learningRate;
+			return this;
+		}
+
+		/**
+		 * {@link BackpropType#TruncatedBPTT} trains on Q and A concatenated in
+		 * segments of tbttSize steps. Defaults to {@link BackpropType#Standard}.
+		 */
+		public Builder backpropType(BackpropType backpropType) {
+			this.backpropType = backpropType;
+			return this;
+		}
+
+		public Builder tbttSize(int tbttSize) {
+			this.tbttSize = tbttSize;
+			return this;
+		}
+
+		/**
+		 * Feed word vector indices through a frozen embedding layer initialised from
+		 * the WordVectors instead of feeding the word vectors. Defaults to false.
+		 */
+		public Builder tokenIndices(boolean tokenIndices) {
+			this.tokenIndices = tokenIndices;
+			return this;
+		}
+
+		/**
+		 * Predict indices of vocabulary words instead of word vectors. Defaults to
+		 * false.
+		 */
+		public Builder labelIndices(boolean labelIndices) {
+			this.labelIndices = labelIndices;
+			return this;
+		}
+
+		/**
+		 * With label indices, the size of the output softmax: only the first
+		 * labelVocabularySize (most frequent, for Word2Vec vocabularies) words are
+		 * predicted, at most the whole vocabulary. Defaults to
+		 * {@link QAIterator4EncDecLSTM#DEFAULT_LABEL_VOCABULARY_SIZE}.
+		 */
+		public Builder labelVocabularySize(int labelVocabularySize) {
+			this.labelVocabularySize = labelVocabularySize;
+			return this;
+		}
+
+		/**
+		 * With label indices, the number of words sampled per batch for the training
+		 * loss, see {@link SampledSoftmaxOutputLayer}. Defaults to 512.
+		 */
+		public Builder numSampled(int numSampled) {
+			this.numSampled = numSampled;
+			return this;
+		}
+
+		/**
+		 * Data type of the training batches (FLOAT, HALF or BFLOAT16). Word vectors
+		 * are stored in the default data type when they are loaded, see
+		 * {@link Nd4j#setDefaultDataTypes}. Defaults to FLOAT.
+		 */
+		public Builder dataType(DataType dataType) {
+			this.dataType = dataType;
+			return this;
+		}
+
+		/**
+		 * Data type of the parameters and updater state. Defaults to FLOAT, which
+		 * keeps FP32 master weights when the batches are of a reduced precision.
+		 */
+		public Builder networkDataType(DataType networkDataType) {
+			this.networkDataType = networkDataType;
+			return this;
+		}
+
+		public ChatbotEncDecTrainer build() {
+			if (wordVectors == null) {
+				throw new IllegalStateException("Cannot build ChatbotEncDecTrainer without a WordVectors instance");
+			}
+
+			return new ChatbotEncDecTrainer(this.trainingDataFile, this.modelFile, this);
+		}
+
+	}
+}
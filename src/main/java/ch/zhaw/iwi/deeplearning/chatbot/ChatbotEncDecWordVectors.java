@@ -1,83 +1,267 @@
-package ch.zhaw.iwi.deeplearning.chatbot;
-
-import java.io.File;
-import java.io.IOException;
-
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
-import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.models.word2vec.Word2Vec;
-import org.deeplearning4j.text.sentenceiterator.BasicLineIterator;
-import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
-import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
-import org.nd4j.linalg.factory.Nd4j;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- * Zurich University of Applied Sciences (ZHAW), Institute for Business
- * Information Systems (IWI), Center for Information Systems and Technologies
- * (CIS)
- * 
- * @author Alexandre de Spindler (desa@zhaw.ch)
- * 
- */
-public class ChatbotEncDecWordVectors {
-
-	private static final Logger log = LoggerFactory.getLogger(ChatbotEncDecWordVectors.class);
-
-	public static final String WORDVECTORS_FILENAME = "classifieddialoguepairs/ChatbotEncDecWordVector.txt";
-	public static final int WORDVECTORS_SIZE_DEFAULT = 300;
-
-	public static void main(String[] args) throws IOException {
-
-		log.info("> Hello ChatbotEncDecWordVectors :-)");
-
-		Nd4j.getMemoryManager().setAutoGcWindow(2000);
-
-		File trainingDataFile = new File(ChatbotEncDecTrainer.TRAINING_DATA_FILENAME);
-		File wordVectorsFile = new File(ChatbotEncDecWordVectors.WORDVECTORS_FILENAME);
-
-		TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
-		tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
-
-		ChatbotEncDecWordVectors.embed(trainingDataFile, wordVectorsFile, tokenizerFactory,
-				ChatbotEncDecWordVectors.WORDVECTORS_SIZE_DEFAULT);
-	}
-
-	public static void embed(File trainingDataFile, File wordVectorsFile, TokenizerFactory t, int embeddingWidth)
-			throws IOException {
-
-		SentenceIterator lines = new BasicLineIterator(trainingDataFile);
-
-		log.info("> Building Model ...");
-		Word2Vec model = new Word2Vec.Builder().minWordFrequency(2)
-				.iterations(5)
-				.layerSize(embeddingWidth)
-				.seed(42)
-				.windowSize(20)
-				.iterate(lines)
-				.tokenizerFactory(t)
-				.build();
-		log.info("> Building Model DONE");
-
-		log.info("> Training Model ...");
-		model.fit();
-		log.info("> Training Model DONE");
-
-		log.info("> Saving Model ... to " + wordVectorsFile.getAbsolutePath());
-		WordVectorSerializer.writeWordVectors(model.lookupTable(), wordVectorsFile);
-		log.info("> Saving Model DONE");
-	}
-
-	public static WordVectors load(File wordVectorsFile) {
-
-		log.info("> Loading Model ... from " + wordVectorsFile.getAbsolutePath());
-		WordVectors result = WordVectorSerializer.readWord2VecModel(wordVectorsFile);
-		log.info("> Loading Model DONE");
-
-		return result;
-	}
-
-}
+package ch.zhaw.iwi.deeplearning.chatbot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.Word2Vec;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.deeplearning4j.text.sentenceiterator.BasicLineIterator;
+import org.deeplearning4j.text.sentenceiterator.CollectionSentenceIterator;
+import org.deeplearning4j.text.sentenceiterator.SentenceIterator;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.zhaw.iwi.deeplearning.BinaryWordVectors;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ * 
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ * 
+ */
+public class ChatbotEncDecWordVectors {
+
+	private static final Logger log = LoggerFactory.getLogger(ChatbotEncDecWordVectors.class);
+
+	public static final String WORDVECTORS_FILENAME = "classifieddialoguepairs/ChatbotEncDecWordVector.bin";
+	public static final int WORDVECTORS_SIZE_DEFAULT = 300;
+	public static final int MIN_WORD_FREQUENCY = 2;
+	public static final int NEGATIVE_SAMPLES = 5;
+
+	public static void main(String[] args) throws IOException {
+
+		log.info("> Hello ChatbotEncDecWordVectors :-)");
+
+		File trainingDataFile = new File(ChatbotEncDecTrainer.TRAINING_DATA_FILENAME);
+		File wordVectorsFile = new File(ChatbotEncDecWordVectors.WORDVECTORS_FILENAME);
+
+		boolean incremental = false; // Train only on the dialogue lines appended since the vectors were written
+
+		TokenizerFactory tokenizerFactory = new DefaultTokenizerFactory();
+		tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+
+		if (incremental) {
+			ChatbotEncDecWordVectors.update(trainingDataFile, wordVectorsFile, tokenizerFactory,
+					ChatbotEncDecWordVectors.WORDVECTORS_SIZE_DEFAULT);
+		} else {
+			ChatbotEncDecWordVectors.embed(trainingDataFile, wordVectorsFile, tokenizerFactory,
+					ChatbotEncDecWordVectors.WORDVECTORS_SIZE_DEFAULT);
+		}
+	}
+
+	public static void embed(File trainingDataFile, File wordVectorsFile, TokenizerFactory t, int embeddingWidth)
+			throws IOException {
+
+		SentenceIterator lines = new BasicLineIterator(trainingDataFile);
+
+		log.info("> Building Model ...");
+		Word2Vec model = new Word2Vec.Builder().minWordFrequency(ChatbotEncDecWordVectors.MIN_WORD_FREQUENCY)
+				.iterations(5)
+				.layerSize(embeddingWidth)
+				.seed(42)
+				.windowSize(20)
+				.iterate(lines)
+				.tokenizerFactory(t)
+				.build();
+		log.info("> Building Model DONE");
+
+		log.info("> Training Model ...");
+		model.fit();
+		log.info("> Training Model DONE");
+
+		log.info("> Saving Model ... to " + wordVectorsFile.getAbsolutePath());
+		BinaryWordVectors.write(model, wordVectorsFile);
+		ChatbotEncDecWordVectors.writeOffset(wordVectorsFile, trainingDataFile.length());
+		log.info("> Saving Model DONE");
+	}
+
+	/**
+	 * Trains the word vectors further on the lines appended to trainingDataFile
+	 * since they were written, instead of on the whole file. Words that occur at
+	 * least MIN_WORD_FREQUENCY times in the new lines and are not in the vocab yet
+	 * are added with random vectors. The time taken depends on the number of new
+	 * lines (plus copying the existing vectors), not on the size of the file.
+	 *
+	 * The context weights of Word2Vec are not part of the vector file, so the
+	 * update trains with negative sampling from fresh context weights; this
+	 * moves the existing vectors less than the new ones. Without vectors (or the
+	 * offset file next to them) everything is embedded with {@link #embed}.
+	 */
+	public static void update(File trainingDataFile, File wordVectorsFile, TokenizerFactory t, int embeddingWidth)
+			throws IOException {
+
+		ChatbotEncDecWordVectors.convertTextFile(wordVectorsFile);
+		File offsetFile = ChatbotEncDecWordVectors.offsetFile(wordVectorsFile);
+		long length = trainingDataFile.length();
+		long offset = offsetFile.exists()
+				? Long.parseLong(new String(Files.readAllBytes(offsetFile.toPath()), StandardCharsets.UTF_8).trim())
+				: -1;
+		if (!wordVectorsFile.exists() || offset < 0 || offset > length) {
+			log.info("> No vectors of an earlier part of " + trainingDataFile.getAbsolutePath() + ", embedding all");
+			ChatbotEncDecWordVectors.embed(trainingDataFile, wordVectorsFile, t, embeddingWidth);
+			return;
+		}
+
+		List<String> newLines = ChatbotEncDecWordVectors.readLines(trainingDataFile, offset);
+		if (newLines.isEmpty()) {
+			log.info("> No new lines in " + trainingDataFile.getAbsolutePath());
+			return;
+		}
+
+		log.info("> Extending Vocabulary ...");
+		BinaryWordVectors existing = BinaryWordVectors.open(wordVectorsFile);
+		existing.verify();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String line : newLines) {
+			for (String token : t.create(line).getTokens()) {
+				counts.merge(token, 1, Integer::sum);
+			}
+		}
+		AbstractCache<VocabWord> vocab = new AbstractCache.Builder<VocabWord>().build();
+		for (int i = 0; i < existing.numWords(); i++) {
+			String word = existing.wordAtIndex(i);
+			ChatbotEncDecWordVectors.addWord(vocab, word, counts.getOrDefault(word, 0));
+		}
+		List<String> addedWords = counts.entrySet()
+				.stream()
+				.filter(entry -> entry.getValue() >= ChatbotEncDecWordVectors.MIN_WORD_FREQUENCY
+						&& !existing.hasWord(entry.getKey()))
+				.map(Map.Entry::getKey)
+				.sorted()
+				.collect(Collectors.toList());
+		for (String word : addedWords) {
+			ChatbotEncDecWordVectors.addWord(vocab, word, counts.get(word));
+		}
+		vocab.updateWordsOccurrences();
+		log.info("> Extending Vocabulary DONE: {} new lines, {} words, {} of them new", newLines.size(),
+				vocab.numWords(), addedWords.size());
+
+		InMemoryLookupTable<VocabWord> lookupTable = new InMemoryLookupTable.Builder<VocabWord>()
+				.vectorLength(existing.vectorSize())
+				.useAdaGrad(false)
+				.useHierarchicSoftmax(false)
+				.negative(ChatbotEncDecWordVectors.NEGATIVE_SAMPLES)
+				.seed(42)
+				.cache(vocab)
+				.build();
+		lookupTable.resetWeights(true); // random vectors for all words, fresh context weights
+		existing.copyTo(lookupTable.getSyn0()); // existing words keep their vectors
+
+		Word2Vec model = new Word2Vec.Builder().minWordFrequency(ChatbotEncDecWordVectors.MIN_WORD_FREQUENCY)
+				.iterations(5)
+				.layerSize(existing.vectorSize())
+				.seed(42)
+				.windowSize(20)
+				.useHierarchicSoftmax(false)
+				.negativeSample(ChatbotEncDecWordVectors.NEGATIVE_SAMPLES)
+				.vocabCache(vocab)
+				.lookupTable(lookupTable)
+				.resetModel(false)
+				.iterate(new CollectionSentenceIterator(newLines))
+				.tokenizerFactory(t)
+				.build();
+
+		log.info("> Training Model on new lines ...");
+		model.fit();
+		log.info("> Training Model on new lines DONE");
+
+		log.info("> Saving Model ... to " + wordVectorsFile.getAbsolutePath());
+		BinaryWordVectors.write(model, wordVectorsFile);
+		ChatbotEncDecWordVectors.writeOffset(wordVectorsFile, length);
+		log.info("> Saving Model DONE");
+	}
+
+	private static void addWord(AbstractCache<VocabWord> vocab, String word, int frequency) {
+		VocabWord vocabWord = new VocabWord(Math.max(1, frequency), word);
+		vocabWord.setIndex(vocab.numWords());
+		vocab.addToken(vocabWord);
+		vocab.addWordToIndex(vocabWord.getIndex(), word);
+		vocab.putVocabWord(word);
+	}
+
+	/**
+	 * @return the non-empty lines of file after offset bytes
+	 */
+	private static List<String> readLines(File file, long offset) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(
+						Channels.newInputStream(channel.position(offset)), StandardCharsets.UTF_8))) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (!line.trim().isEmpty()) {
+					lines.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * The number of bytes of the training data the vectors were trained on is kept
+	 * next to the vectors.
+	 */
+	private static File offsetFile(File wordVectorsFile) {
+		return new File(wordVectorsFile.getPath() + ".offset");
+	}
+
+	private static void writeOffset(File wordVectorsFile, long offset) throws IOException {
+		Files.write(ChatbotEncDecWordVectors.offsetFile(wordVectorsFile).toPath(),
+				Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Loads word vectors written by {@link #embed}, or text files written with
+	 * WordVectorSerializer before. Without wordVectorsFile, a text file of the
+	 * same name ending with .txt instead of .bin (as written before) is converted
+	 * to it first.
+	 */
+	public static WordVectors load(File wordVectorsFile) throws IOException {
+
+		ChatbotEncDecWordVectors.convertTextFile(wordVectorsFile);
+		log.info("> Loading Model ... from " + wordVectorsFile.getAbsolutePath());
+		WordVectors result = BinaryWordVectors.isBinary(wordVectorsFile)
+				? BinaryWordVectors.open(wordVectorsFile).toWordVectors()
+				: WordVectorSerializer.readWord2VecModel(wordVectorsFile);
+		log.info("> Loading Model DONE");
+
+		return result;
+	}
+
+	/**
+	 * Writes the vectors of the text file next to wordVectorsFile (.txt instead of
+	 * .bin) to wordVectorsFile unless it exists. Without an offset file, the next
+	 * {@link #update} embeds the whole training data.
+	 */
+	private static void convertTextFile(File wordVectorsFile) throws IOException {
+		File textFile = new File(wordVectorsFile.getPath().replaceFirst("\\.bin$", ".txt"));
+		if (wordVectorsFile.exists() || textFile.equals(wordVectorsFile) || !textFile.exists()) {
+			return;
+		}
+		log.info("> Converting Model ... from " + textFile.getAbsolutePath() + " to "
+				+ wordVectorsFile.getAbsolutePath());
+		BinaryWordVectors.write(WordVectorSerializer.readWord2VecModel(textFile), wordVectorsFile);
+		log.info("> Converting Model DONE");
+	}
+
+}
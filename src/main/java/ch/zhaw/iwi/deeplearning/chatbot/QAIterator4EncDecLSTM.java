@@ -1,378 +1,659 @@
-package ch.zhaw.iwi.deeplearning.chatbot;
-
-import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.NoSuchElementException;
-
-import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
-import org.datavec.api.split.FileSplit;
-import org.datavec.api.writable.Writable;
-import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
-import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
-import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
-import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
-import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.MultiDataSet;
-import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
-import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
-import org.nd4j.linalg.indexing.NDArrayIndex;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import ch.zhaw.iwi.deeplearning.Paths;
-
-/**
- * Zurich University of Applied Sciences (ZHAW), Institute for Business
- * Information Systems (IWI), Center for Information Systems and Technologies
- * (CIS)
- * 
- * @author Alexandre de Spindler (desa@zhaw.ch)
- * 
- */
-public class QAIterator4EncDecLSTM implements MultiDataSetIterator {
-
-	private static final Logger log = LoggerFactory.getLogger(QAIterator4EncDecLSTM.class);
-
-	// private static final String UNKNOWN_WORD_SENTINEL = "UNKNOWN_WORD";
-	public static final String EMPTY_LINE_REPLACEMENT = "well";
-	public static final String LINE_START = "say";
-	public static final String LINE_END = "right";
-
-	private final File trainingDataFile;
-	private final WordVectors wordVectors;
-	private final int vectorSize;
-	private final TokenizerFactory tokenizerFactory;
-
-	private final int minibatchSize;
-	private final int maxSentenceLength;
-
-	private int cursor;
-	private boolean done;
-	private List<String> knownWords;
-	private List<String> unknownWords;
-
-	public QAIterator4EncDecLSTM(File trainingDataFile, Builder builder) {
-
-		this.trainingDataFile = trainingDataFile;
-		this.wordVectors = builder.wordVectors;
-		this.vectorSize = builder.wordVectors.getWordVector(builder.wordVectors.vocab().wordAtIndex(0)).length;
-		this.tokenizerFactory = builder.tokenizerFactory;
-
-		this.minibatchSize = builder.minibatchSize;
-		this.maxSentenceLength = builder.maxSentenceLength;
-
-		this.reset();
-	}
-
-	public static void main(String[] args) {
-
-		Nd4j.getMemoryManager().setAutoGcWindow(5000);
-
-		WordVectors wordVectors = WordVectorSerializer.loadStaticModel(new File(Paths.WORD_VECTORS_PATH));
-
-		MultiDataSetIterator it;
-		MultiDataSet current;
-		int count = 0;
-
-		File trainingDataFile = new File(ChatbotEncDecTrainer.TRAINING_DATA_FILENAME);
-		it = new QAIterator4EncDecLSTM.Builder(trainingDataFile).wordVectors(wordVectors).build();
-
-		count = 0;
-		while (it.hasNext()) {
-			current = it.next();
-			count++;
-			System.out.println("MultiDataSet[" + count + "] " + current.getMemoryFootprint());
-		}
-	}
-
-	private MultiDataSet nextDataSet(int numberOfExamples) throws Exception {
-
-		CSVRecordReader reader = new CSVRecordReader();
-		reader.initialize(new FileSplit(this.trainingDataFile));
-
-		// 1. Skip lines from previous batches
-		int numberOfLinesReadPreviousBatches = 0;
-		while (reader.hasNext() && numberOfLinesReadPreviousBatches < this.cursor) {
-			reader.next();
-			numberOfLinesReadPreviousBatches++;
-		}
-		// Reached end of file while skipping?
-		if (!reader.hasNext()) {
-			QAIterator4EncDecLSTM.log.warn(
-					"QAIterator4EncDecLSTM.nextDataSet(int) reached the end of a file while TRYING TO SKIP LINES from previous batches");
-			this.done = true;
-		}
-
-		// 2. Read lines for current batch and tokenise
-		List<List<String>> qTokens = new ArrayList<List<String>>(numberOfExamples);
-		List<List<String>> aTokens = new ArrayList<List<String>>(numberOfExamples);
-
-		List<String> currentQTokens;
-		List<String> currentATokens;
-		int maxLength = 0;
-		int numberOfLinesRead = 0;
-		while (reader.hasNext() && numberOfLinesRead < numberOfExamples) {
-			List<Writable> line = reader.next();
-
-			currentQTokens = this.tokenizeSentence(line.get(0).toString());
-			currentATokens = this.tokenizeSentence(line.get(1).toString());
-
-			// TODO check for empty lines and handle these!!!
-			if (currentQTokens.isEmpty()) {
-				currentQTokens.add(EMPTY_LINE_REPLACEMENT);
-			}
-			if (currentATokens.isEmpty()) {
-				currentATokens.add(EMPTY_LINE_REPLACEMENT);
-			}
-
-			// TODO remove this
-			// System.out.println(currentQTokens + "\n\t" + currentATokens);
-			maxLength = Math.max(maxLength, Math.max(currentQTokens.size(), currentATokens.size()));
-
-			qTokens.add(numberOfLinesRead, currentQTokens);
-			aTokens.add(numberOfLinesRead, currentATokens);
-
-			numberOfLinesRead++;
-		}
-		// Reached end of file while reading batch?
-		// Else: reached end of file when done reading batch?
-		if (!reader.hasNext() && numberOfLinesRead < numberOfExamples) {
-			QAIterator4EncDecLSTM.log.warn(
-					"QAIterator4EncDecLSTM.nextDataSet(int) reached the end of a file while TRYING TO READ LINES from current batch");
-			numberOfExamples = numberOfLinesRead;
-			this.done = true;
-		} else if (!reader.hasNext()) {
-			QAIterator4EncDecLSTM.log.warn(
-					"QAIterator4EncDecLSTM.nextDataSet(int) reached the end of a file and was able to read full batch of lines");
-			this.done = true;
-		}
-		this.cursor += numberOfExamples;
-		reader.close();
-
-		// TODO possibly unnecessary but for now ...
-		if (qTokens.size() != aTokens.size()) {
-			throw new Exception("QAIterator4EncDecLSTM has got qTokens.size() !- aTokens.size() :-(");
-		}
-
-		// for truncation ...
-		if (maxLength > this.maxSentenceLength) {
-			maxLength = this.maxSentenceLength;
-		}
-
-		// 3. Map Tokens to Word Vectors, the put Vectors for input, prediction and
-		// decode into NDArrays
-
-		INDArray input = Nd4j.create(new int[] { numberOfExamples, this.vectorSize, maxLength }, 'f');
-		INDArray prediction = Nd4j.create(new int[] { numberOfExamples, this.vectorSize, maxLength }, 'f');
-		INDArray decode = Nd4j.create(new int[] { numberOfExamples, this.vectorSize, maxLength }, 'f');
-		INDArray inputMask = Nd4j.zeros(numberOfExamples, maxLength);
-		// this mask is also used for the decoder input, the length is the same
-		INDArray predictionMask = Nd4j.zeros(numberOfExamples, maxLength);
-
-		List<String> currentQTokenList, currentATokenList, currentDecoderTokenList;
-		int sequenceLengthQ, sequenceLengthA;
-		INDArray currentQVectors, currentAVectors, currentDecodeVectors;
-
-		for (int i = 0; i < qTokens.size(); i++) {
-			// ... for truncation
-			currentQTokenList = qTokens.get(i);
-			sequenceLengthQ = Math.min(maxLength, currentQTokenList.size());
-			currentATokenList = aTokens.get(i);
-			// put LINE_END at the end of A
-			currentATokenList.add(LINE_END);
-			sequenceLengthA = Math.min(maxLength, currentATokenList.size());
-
-			// Decoder is A offset by 1, with "go" in the beginning and NOT the "eos" at the
-			// end of prediction
-			currentDecoderTokenList = new ArrayList<String>(sequenceLengthA);
-			// put LINE_START at the beginning of decoder
-			currentDecoderTokenList.add(0, LINE_START);
-			for (int j = 0; j < sequenceLengthA; j++) {
-				if (j < sequenceLengthA - 1) {
-					currentDecoderTokenList.add(currentATokenList.get(j));
-				}
-			}
-
-			// word vectors for Q and A ad Decoder
-
-			// Q is reversed (see paper)
-			List<String> reversedQTokenList = currentQTokenList.subList(0, sequenceLengthQ);
-			Collections.reverse(reversedQTokenList);
-			try {
-				currentQVectors = this.wordVectors.getWordVectors(reversedQTokenList).transpose();
-				currentAVectors = this.wordVectors.getWordVectors(currentATokenList.subList(0, sequenceLengthA))
-						.transpose();
-				currentDecodeVectors = this.wordVectors.getWordVectors(currentDecoderTokenList).transpose();
-			} catch (IllegalStateException e) {
-				// TODO this is for debugging purposes only
-				// TODO HANDLE empty list in tokenization: replace unknown words with something
-				// known
-				throw e;
-			}
-
-			try {
-
-				// Q goes into input
-				input.put(new INDArrayIndex[] { NDArrayIndex.point(i), NDArrayIndex.all(),
-						NDArrayIndex.interval(0, sequenceLengthQ) }, currentQVectors);
-				inputMask.put(new INDArrayIndex[] { NDArrayIndex.point(i), NDArrayIndex.interval(0, sequenceLengthQ) },
-						Nd4j.ones(sequenceLengthQ));
-
-				// A goes into prediction
-				prediction.put(new INDArrayIndex[] { NDArrayIndex.point(i), NDArrayIndex.all(),
-						NDArrayIndex.interval(0, sequenceLengthA) }, currentAVectors);
-				predictionMask.put(
-						new INDArrayIndex[] { NDArrayIndex.point(i), NDArrayIndex.interval(0, sequenceLengthA) },
-						Nd4j.ones(sequenceLengthA));
-
-				// Aaaaand the decoder
-				decode.put(new INDArrayIndex[] { NDArrayIndex.point(i), NDArrayIndex.all(),
-						NDArrayIndex.interval(0, sequenceLengthA) }, currentDecodeVectors);
-
-			} catch (IllegalStateException e) {
-				// TODO this is for debugging purposes only
-				System.out.println(">>> " + e.getMessage() + "\n>>> " + currentQTokenList + "\n>>> " + currentATokenList
-						+ "\n>>> " + currentDecoderTokenList);
-				throw e;
-			}
-		}
-
-		return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { input, decode }, new INDArray[] { prediction },
-				new INDArray[] { inputMask, predictionMask }, new INDArray[] { predictionMask });
-	}
-
-	private List<String> tokenizeSentence(String sentence) {
-		Tokenizer t = this.tokenizerFactory.create(sentence);
-
-		List<String> result = new ArrayList<>();
-		while (t.hasMoreTokens()) {
-			String token = t.nextToken();
-			if (!this.wordVectors.outOfVocabularySupported() && !this.wordVectors.hasWord(token)) {
-				// TODO how to handle unknown words?
-				// result.add(UNKNOWN_WORD_SENTINEL);
-				this.unknownWords.add(token);
-			} else {
-				this.knownWords.add(token);
-				result.add(token);
-			}
-		}
-		return result;
-	}
-
-	@Override
-	public boolean hasNext() {
-		return !this.done;
-	}
-
-	@Override
-	public MultiDataSet next() {
-		return this.next(this.minibatchSize);
-	}
-
-	@Override
-	public MultiDataSet next(int num) {
-		if (!this.hasNext()) {
-			throw new NoSuchElementException(
-					"ClassifiedTextIterator.next(int) cannot return any more data given the number of lines available per class");
-		}
-		try {
-			return this.nextDataSet(num);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-	}
-
-	@Override
-	public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
-		throw new UnsupportedOperationException("Not implemented");
-	}
-
-	@Override
-	public MultiDataSetPreProcessor getPreProcessor() {
-		throw new UnsupportedOperationException("Not implemented");
-	}
-
-	@Override
-	public boolean resetSupported() {
-		return true;
-	}
-
-	@Override
-	public boolean asyncSupported() {
-		return true;
-	}
-
-	@Override
-	public void reset() {
-		this.cursor = 0;
-		this.done = false;
-		this.knownWords = new ArrayList<String>();
-		this.unknownWords = new ArrayList<String>();
-	}
-
-	public static class Builder {
-
-		private WordVectors wordVectors;
-		private TokenizerFactory tokenizerFactory;
-		private int maxSentenceLength = 256;
-		private int minibatchSize = 32;
-
-		private File trainingDataFile;
-
-		public Builder(File trainingDataFile) {
-			this.trainingDataFile = trainingDataFile;
-			this.tokenizerFactory = new DefaultTokenizerFactory();
-			this.tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
-		}
-
-		/**
-		 * Provide the WordVectors instance that should be used for training
-		 */
-		public Builder wordVectors(WordVectors wordVectors) {
-			this.wordVectors = wordVectors;
-			return this;
-		}
-
-		/**
-		 * The {@link TokenizerFactory} that should be used. Defaults to
-		 * {@link DefaultTokenizerFactory}
-		 */
-		public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
-			this.tokenizerFactory = tokenizerFactory;
-			return this;
-		}
-
-		/**
-		 * Minibatch size to use for the DataSetIterator
-		 */
-		public Builder minibatchSize(int minibatchSize) {
-			this.minibatchSize = minibatchSize;
-			return this;
-		}
-
-		/**
-		 * Maximum sentence/document length. If sentences exceed this, they will be
-		 * truncated to this length by taking the first 'maxSentenceLength' known words.
-		 */
-		public Builder maxSentenceLength(int maxSentenceLength) {
-			this.maxSentenceLength = maxSentenceLength;
-			return this;
-		}
-
-		public QAIterator4EncDecLSTM build() {
-			if (wordVectors == null) {
-				throw new IllegalStateException("Cannot build QAIterator4EncDecLSTM without a WordVectors instance");
-			}
-
-			return new QAIterator4EncDecLSTM(this.trainingDataFile, this);
-		}
-
-	}
-
-}
+package ch.zhaw.iwi.deeplearning.chatbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
+import org.datavec.api.split.FileSplit;
+import org.datavec.api.writable.Writable;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizer.preprocessor.CommonPreprocessor;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.DefaultTokenizerFactory;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ch.zhaw.iwi.deeplearning.BatchBufferPool;
+import ch.zhaw.iwi.deeplearning.BatchWorkspace;
+import ch.zhaw.iwi.deeplearning.WordVectorsSubset;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ * 
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ * 
+ */
+public class QAIterator4EncDecLSTM implements MultiDataSetIterator {
+
+	private static final Logger log = LoggerFactory.getLogger(QAIterator4EncDecLSTM.class);
+
+	// private static final String UNKNOWN_WORD_SENTINEL = "UNKNOWN_WORD";
+	public static final String EMPTY_LINE_REPLACEMENT = "well";
+	public static final String LINE_START = "say";
+	public static final String LINE_END = "right";
+	private static final String WORKSPACE_ID = "QAIterator4EncDecLSTM";
+
+	/**
+	 * The words predicted with label indices unless set otherwise: training only
+	 * scores a sample of them (see {@link SampledSoftmaxOutputLayer}), but the
+	 * output layer holds one weight row per word, too many for the whole
+	 * vocabulary (3 million words for GoogleNews).
+	 */
+	public static final int DEFAULT_LABEL_VOCABULARY_SIZE = 100000;
+
+	private final File trainingDataFile;
+	private final WordVectors wordVectors;
+	private final int vectorSize;
+	private final TokenizerFactory tokenizerFactory;
+
+	private final int minibatchSize;
+	private final int maxSentenceLength;
+	private final boolean concatenateQA;
+	private final boolean tokenIndices;
+	private final boolean labelIndices;
+	private final int labelVocabularySize;
+	private final boolean detachBatches;
+	private final boolean releaseOnNext;
+
+	private int cursor;
+	private boolean done;
+	private List<String> knownWords;
+	private List<String> unknownWords;
+
+	private final BatchBufferPool buffers;
+	private final INDArray wordVectorRows;
+	// with releaseOnNext, the batch handed out last
+	private MultiDataSet lastBatch;
+
+	public QAIterator4EncDecLSTM(File trainingDataFile, Builder builder) {
+
+		this.trainingDataFile = trainingDataFile;
+		this.wordVectors = builder.wordVectors;
+		this.vectorSize = builder.wordVectors.getWordVector(builder.wordVectors.vocab().wordAtIndex(0)).length;
+		this.tokenizerFactory = builder.tokenizerFactory;
+
+		this.minibatchSize = builder.minibatchSize;
+		this.maxSentenceLength = builder.maxSentenceLength;
+		this.concatenateQA = builder.concatenateQA;
+		this.tokenIndices = builder.tokenIndices;
+		this.labelIndices = builder.labelIndices;
+		this.labelVocabularySize = Math.min(builder.labelVocabularySize, builder.wordVectors.vocab().numWords());
+		this.detachBatches = builder.detachBatches;
+		this.releaseOnNext = builder.releaseOnNext;
+
+		// batches are assembled into preallocated arrays of the maximal batch size,
+		// Q and A share one time axis when concatenated
+		int maxLength = this.concatenateQA ? 2 * this.maxSentenceLength : this.maxSentenceLength;
+		this.buffers = new BatchBufferPool();
+		for (String name : new String[] { "input", "decode" }) {
+			if (this.tokenIndices) {
+				this.buffers.reserve(name, DataType.FLOAT, this.minibatchSize, 1, maxLength);
+			} else {
+				this.buffers.reserve(name, Nd4j.defaultFloatingPointType(), this.minibatchSize, this.vectorSize,
+						maxLength);
+			}
+		}
+		if (this.labelIndices) {
+			this.buffers.reserve("prediction", DataType.FLOAT, this.minibatchSize, 1, maxLength);
+		} else {
+			this.buffers.reserve("prediction", Nd4j.defaultFloatingPointType(), this.minibatchSize,
+					this.vectorSize, maxLength);
+		}
+		for (String name : new String[] { "inputMask", "predictionMask", "labelsMask" }) {
+			this.buffers.reserve(name, Nd4j.defaultFloatingPointType(), this.minibatchSize, maxLength);
+		}
+		this.wordVectorRows = BatchBufferPool.wordVectorRows(this.wordVectors);
+
+		this.reset();
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		Nd4j.getMemoryManager().togglePeriodicGc(false); // batches are assembled in a workspace
+
+		WordVectors wordVectors = WordVectorsSubset.loadWordVectors();
+
+		MultiDataSetIterator it;
+		MultiDataSet current;
+		int count = 0;
+
+		File trainingDataFile = new File(ChatbotEncDecTrainer.TRAINING_DATA_FILENAME);
+		it = new QAIterator4EncDecLSTM.Builder(trainingDataFile).wordVectors(wordVectors).build();
+
+		count = 0;
+		while (it.hasNext()) {
+			current = it.next();
+			count++;
+			System.out.println("MultiDataSet[" + count + "] " + current.getMemoryFootprint());
+		}
+		// every batch was released on the next, so all of them fit into the pooled arrays
+		if (BatchBufferPool.getAllocations() > 0) {
+			throw new IllegalStateException(BatchBufferPool.getAllocations() + " batch arrays were allocated");
+		}
+	}
+
+	private MultiDataSet nextDataSet(int numberOfExamples) throws Exception {
+
+		CSVRecordReader reader = new CSVRecordReader();
+		reader.initialize(new FileSplit(this.trainingDataFile));
+
+		// 1. Skip lines from previous batches
+		int numberOfLinesReadPreviousBatches = 0;
+		while (reader.hasNext() && numberOfLinesReadPreviousBatches < this.cursor) {
+			reader.next();
+			numberOfLinesReadPreviousBatches++;
+		}
+		// Reached end of file while skipping?
+		if (!reader.hasNext()) {
+			QAIterator4EncDecLSTM.log.warn(
+					"QAIterator4EncDecLSTM.nextDataSet(int) reached the end of a file while TRYING TO SKIP LINES from previous batches");
+			this.done = true;
+		}
+
+		// 2. Read lines for current batch and tokenise
+		List<List<String>> qTokens = new ArrayList<List<String>>(numberOfExamples);
+		List<List<String>> aTokens = new ArrayList<List<String>>(numberOfExamples);
+
+		List<String> currentQTokens;
+		List<String> currentATokens;
+		int maxLength = 0;
+		int numberOfLinesRead = 0;
+		while (reader.hasNext() && numberOfLinesRead < numberOfExamples) {
+			List<Writable> line = reader.next();
+
+			currentQTokens = this.tokenizeSentence(line.get(0).toString());
+			currentATokens = this.tokenizeSentence(line.get(1).toString());
+
+			// TODO check for empty lines and handle these!!!
+			if (currentQTokens.isEmpty()) {
+				currentQTokens.add(EMPTY_LINE_REPLACEMENT);
+			}
+			if (currentATokens.isEmpty()) {
+				currentATokens.add(EMPTY_LINE_REPLACEMENT);
+			}
+
+			// TODO remove this
+			// System.out.println(currentQTokens + "\n\t" + currentATokens);
+			maxLength = Math.max(maxLength, Math.max(currentQTokens.size(), currentATokens.size()));
+
+			qTokens.add(numberOfLinesRead, currentQTokens);
+			aTokens.add(numberOfLinesRead, currentATokens);
+
+			numberOfLinesRead++;
+		}
+		// Reached end of file while reading batch?
+		// Else: reached end of file when done reading batch?
+		if (!reader.hasNext() && numberOfLinesRead < numberOfExamples) {
+			QAIterator4EncDecLSTM.log.warn(
+					"QAIterator4EncDecLSTM.nextDataSet(int) reached the end of a file while TRYING TO READ LINES from current batch");
+			numberOfExamples = numberOfLinesRead;
+			this.done = true;
+		} else if (!reader.hasNext()) {
+			QAIterator4EncDecLSTM.log.warn(
+					"QAIterator4EncDecLSTM.nextDataSet(int) reached the end of a file and was able to read full batch of lines");
+			this.done = true;
+		}
+		this.cursor += numberOfExamples;
+		reader.close();
+
+		// TODO possibly unnecessary but for now ...
+		if (qTokens.size() != aTokens.size()) {
+			throw new Exception("QAIterator4EncDecLSTM has got qTokens.size() !- aTokens.size() :-(");
+		}
+
+		// for truncation ...
+		if (maxLength > this.maxSentenceLength) {
+			maxLength = this.maxSentenceLength;
+		}
+
+		this.buffers.nextBatch();
+		if (this.concatenateQA) {
+			return this.concatenatedDataSet(qTokens, aTokens);
+		}
+
+		// 3. Map Tokens to Word Vectors, the put Vectors for input, prediction and
+		// decode into NDArrays
+
+		INDArray input = this.createFeatures("input", numberOfExamples, maxLength);
+		INDArray prediction = this.createLabels(numberOfExamples, maxLength);
+		INDArray decode = this.createFeatures("decode", numberOfExamples, maxLength);
+		INDArray inputMask = this.buffers.get("inputMask", numberOfExamples, maxLength);
+		// this mask is also used for the decoder input, the length is the same
+		INDArray predictionMask = this.buffers.get("predictionMask", numberOfExamples, maxLength);
+		// ... except with label indices, where words outside the label vocabulary are
+		// masked in the labels only
+		INDArray labelsMask = this.labelIndices ? this.buffers.get("labelsMask", numberOfExamples, maxLength)
+				: predictionMask;
+
+		List<String> currentQTokenList, currentATokenList, currentDecoderTokenList;
+		int sequenceLengthQ, sequenceLengthA;
+
+		for (int i = 0; i < qTokens.size(); i++) {
+			// ... for truncation
+			currentQTokenList = qTokens.get(i);
+			sequenceLengthQ = Math.min(maxLength, currentQTokenList.size());
+			currentATokenList = aTokens.get(i);
+			// put LINE_END at the end of A
+			currentATokenList.add(LINE_END);
+			sequenceLengthA = Math.min(maxLength, currentATokenList.size());
+
+			// Decoder is A offset by 1, with "go" in the beginning and NOT the "eos" at the
+			// end of prediction
+			currentDecoderTokenList = new ArrayList<String>(sequenceLengthA);
+			// put LINE_START at the beginning of decoder
+			currentDecoderTokenList.add(0, LINE_START);
+			for (int j = 0; j < sequenceLengthA; j++) {
+				if (j < sequenceLengthA - 1) {
+					currentDecoderTokenList.add(currentATokenList.get(j));
+				}
+			}
+
+			// word vectors for Q and A ad Decoder
+
+			// Q is reversed (see paper)
+			List<String> reversedQTokenList = currentQTokenList.subList(0, sequenceLengthQ);
+			Collections.reverse(reversedQTokenList);
+
+			try {
+
+				// Q goes into input
+				if (this.tokenIndices) {
+					this.putIndices(input, i, 0, reversedQTokenList);
+				} else {
+					this.putVectors(input, i, 0, reversedQTokenList);
+				}
+				inputMask.get(NDArrayIndex.point(i), NDArrayIndex.interval(0, sequenceLengthQ)).assign(1);
+
+				// A goes into prediction
+				predictionMask.get(NDArrayIndex.point(i), NDArrayIndex.interval(0, sequenceLengthA)).assign(1);
+				if (this.labelIndices) {
+					this.putLabelIndices(prediction, labelsMask, i, 0,
+							currentATokenList.subList(0, sequenceLengthA));
+				} else {
+					this.putVectors(prediction, i, 0, currentATokenList.subList(0, sequenceLengthA));
+				}
+
+				// Aaaaand the decoder
+				if (this.tokenIndices) {
+					this.putIndices(decode, i, 0, currentDecoderTokenList);
+				} else {
+					this.putVectors(decode, i, 0, currentDecoderTokenList);
+				}
+
+			} catch (IllegalStateException e) {
+				// TODO this is for debugging purposes only
+				System.out.println(">>> " + e.getMessage() + "\n>>> " + currentQTokenList + "\n>>> " + currentATokenList
+						+ "\n>>> " + currentDecoderTokenList);
+				throw e;
+			}
+		}
+
+		return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { input, decode }, new INDArray[] { prediction },
+				new INDArray[] { inputMask, predictionMask }, new INDArray[] { labelsMask });
+	}
+
+	/**
+	 * Puts Q and the decoder input one after the other onto a single time axis:
+	 * reversed Q at [0, q) followed by LINE_START and A at [q, q + a). The labels
+	 * (A followed by LINE_END) are only unmasked at [q, q + a), so no loss is
+	 * computed while the question is read. Unlike the encoder/decoder layout,
+	 * this layout does not need the whole question in one forward pass, which is
+	 * what makes truncated BPTT possible: the recurrent state carries the question
+	 * across segment boundaries.
+	 */
+	private MultiDataSet concatenatedDataSet(List<List<String>> qTokens, List<List<String>> aTokens) {
+
+		int numberOfExamples = qTokens.size();
+		int[] sequenceLengthsQ = new int[numberOfExamples];
+		int[] sequenceLengthsA = new int[numberOfExamples];
+
+		int totalLength = 0;
+		for (int i = 0; i < numberOfExamples; i++) {
+			// put LINE_END at the end of A
+			aTokens.get(i).add(LINE_END);
+			sequenceLengthsQ[i] = Math.min(this.maxSentenceLength, qTokens.get(i).size());
+			sequenceLengthsA[i] = Math.min(this.maxSentenceLength, aTokens.get(i).size());
+			totalLength = Math.max(totalLength, sequenceLengthsQ[i] + sequenceLengthsA[i]);
+		}
+
+		INDArray input = this.createFeatures("input", numberOfExamples, totalLength);
+		INDArray prediction = this.createLabels(numberOfExamples, totalLength);
+		INDArray inputMask = this.buffers.get("inputMask", numberOfExamples, totalLength);
+		INDArray predictionMask = this.buffers.get("predictionMask", numberOfExamples, totalLength);
+
+		List<String> currentATokenList, currentDecoderTokenList;
+		int sequenceLengthQ, sequenceLengthA;
+		for (int i = 0; i < numberOfExamples; i++) {
+			sequenceLengthQ = sequenceLengthsQ[i];
+			sequenceLengthA = sequenceLengthsA[i];
+			currentATokenList = aTokens.get(i).subList(0, sequenceLengthA);
+
+			// Q is reversed (see paper)
+			List<String> reversedQTokenList = qTokens.get(i).subList(0, sequenceLengthQ);
+			Collections.reverse(reversedQTokenList);
+
+			// Decoder is A offset by 1, with LINE_START in the beginning
+			currentDecoderTokenList = new ArrayList<String>(sequenceLengthA);
+			currentDecoderTokenList.add(LINE_START);
+			currentDecoderTokenList.addAll(currentATokenList.subList(0, sequenceLengthA - 1));
+
+			if (this.tokenIndices) {
+				this.putIndices(input, i, 0, reversedQTokenList);
+				this.putIndices(input, i, sequenceLengthQ, currentDecoderTokenList);
+			} else {
+				this.putVectors(input, i, 0, reversedQTokenList);
+				this.putVectors(input, i, sequenceLengthQ, currentDecoderTokenList);
+			}
+			inputMask.get(new INDArrayIndex[] { NDArrayIndex.point(i),
+					NDArrayIndex.interval(0, sequenceLengthQ + sequenceLengthA) }).assign(1);
+
+			predictionMask.get(new INDArrayIndex[] { NDArrayIndex.point(i),
+					NDArrayIndex.interval(sequenceLengthQ, sequenceLengthQ + sequenceLengthA) }).assign(1);
+			if (this.labelIndices) {
+				this.putLabelIndices(prediction, predictionMask, i, sequenceLengthQ, currentATokenList);
+			} else {
+				this.putVectors(prediction, i, sequenceLengthQ, currentATokenList);
+			}
+		}
+
+		return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { input }, new INDArray[] { prediction },
+				new INDArray[] { inputMask }, new INDArray[] { predictionMask });
+	}
+
+	/**
+	 * Word vectors are [minibatch, vectorSize, length]. Token indices are
+	 * [minibatch, 1, length] rather than [minibatch, length] because
+	 * DuplicateToTimeSeriesVertex and truncated BPTT both take the time axis from
+	 * dimension 2 of the network inputs. Indices stay FLOAT whatever the default
+	 * data type, HALF and BFLOAT16 cannot represent large indices exactly.
+	 */
+	private INDArray createFeatures(String name, int numberOfExamples, int length) {
+		if (this.tokenIndices) {
+			return this.buffers.get(name, numberOfExamples, 1, length);
+		}
+		return this.buffers.get(name, numberOfExamples, this.vectorSize, length);
+	}
+
+	/**
+	 * Word vectors are [minibatch, vectorSize, length]; label indices are
+	 * [minibatch, 1, length] as expected by {@link SampledSoftmaxOutputLayer}.
+	 */
+	private INDArray createLabels(int numberOfExamples, int length) {
+		if (this.labelIndices) {
+			return this.buffers.get("prediction", numberOfExamples, 1, length);
+		}
+		return this.buffers.get("prediction", numberOfExamples, this.vectorSize, length);
+	}
+
+	/**
+	 * Labels are word indices plus one, 0 marks steps that are not predicted (see
+	 * {@link SampledSoftmaxOutputLayer}), such as padding and words outside the
+	 * first labelVocabularySize words of the vocabulary. The labels mask is set
+	 * accordingly.
+	 */
+	private void putLabelIndices(INDArray labels, INDArray labelsMask, int example, int offset,
+			List<String> tokens) {
+		for (int j = 0; j < tokens.size(); j++) {
+			int index = this.wordVectors.indexOf(tokens.get(j));
+			if (index < this.labelVocabularySize) {
+				labels.putScalar(new int[] { example, 0, offset + j }, index + 1);
+				labelsMask.putScalar(new int[] { example, offset + j }, 1.0);
+			} else {
+				labelsMask.putScalar(new int[] { example, offset + j }, 0.0);
+			}
+		}
+	}
+
+	/**
+	 * Vector by vector into the (pooled) array, without an intermediate [length,
+	 * vectorSize] matrix, and copied from views onto the lookup table rows if
+	 * there is one.
+	 */
+	private void putVectors(INDArray features, int example, int offset, List<String> tokens) {
+		for (int j = 0; j < tokens.size(); j++) {
+			features.get(NDArrayIndex.point(example), NDArrayIndex.all(), NDArrayIndex.point(offset + j))
+					.assign(BatchBufferPool.wordVector(this.wordVectors, this.wordVectorRows, tokens.get(j)));
+		}
+	}
+
+	private void putIndices(INDArray features, int example, int offset, List<String> tokens) {
+		for (int j = 0; j < tokens.size(); j++) {
+			features.putScalar(new int[] { example, 0, offset + j }, this.wordVectors.indexOf(tokens.get(j)));
+		}
+	}
+
+	private List<String> tokenizeSentence(String sentence) {
+		Tokenizer t = this.tokenizerFactory.create(sentence);
+
+		List<String> result = new ArrayList<>();
+		while (t.hasMoreTokens()) {
+			String token = t.nextToken();
+			if (!this.wordVectors.outOfVocabularySupported() && !this.wordVectors.hasWord(token)) {
+				// TODO how to handle unknown words?
+				// result.add(UNKNOWN_WORD_SENTINEL);
+				this.unknownWords.add(token);
+			} else {
+				this.knownWords.add(token);
+				result.add(token);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !this.done;
+	}
+
+	@Override
+	public MultiDataSet next() {
+		return this.next(this.minibatchSize);
+	}
+
+	@Override
+	public MultiDataSet next(int num) {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException(
+					"ClassifiedTextIterator.next(int) cannot return any more data given the number of lines available per class");
+		}
+		if (this.lastBatch != null) {
+			this.release(this.lastBatch);
+			this.lastBatch = null;
+		}
+		try (MemoryWorkspace ws = BatchWorkspace.activate(WORKSPACE_ID)) {
+			MultiDataSet batch = this.buffers.lease(BatchWorkspace.detach(ws, this.nextDataSet(num)));
+			if (this.detachBatches) {
+				MultiDataSet copy = BatchBufferPool.detach(batch);
+				this.release(batch);
+				return copy;
+			}
+			if (this.releaseOnNext) {
+				this.lastBatch = batch;
+			}
+			return batch;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the pooled arrays of batch, which must not be used afterwards. Only
+	 * needed without releaseOnNext, see {@link Builder#releaseOnNext(boolean)}.
+	 */
+	public void release(MultiDataSet batch) {
+		this.buffers.release(batch);
+	}
+
+	@Override
+	public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	@Override
+	public MultiDataSetPreProcessor getPreProcessor() {
+		throw new UnsupportedOperationException("Not implemented");
+	}
+
+	@Override
+	public boolean resetSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported() {
+		return !this.releaseOnNext;
+	}
+
+	@Override
+	public void reset() {
+		this.cursor = 0;
+		this.done = false;
+		this.knownWords = new ArrayList<String>();
+		this.unknownWords = new ArrayList<String>();
+	}
+
+	public static class Builder {
+
+		private WordVectors wordVectors;
+		private TokenizerFactory tokenizerFactory;
+		private int maxSentenceLength = 256;
+		private int minibatchSize = 32;
+		private boolean concatenateQA = false;
+		private boolean tokenIndices = false;
+		private boolean labelIndices = false;
+		private int labelVocabularySize = DEFAULT_LABEL_VOCABULARY_SIZE;
+		private boolean detachBatches = false;
+		private boolean releaseOnNext = true;
+
+		private File trainingDataFile;
+
+		public Builder(File trainingDataFile) {
+			this.trainingDataFile = trainingDataFile;
+			this.tokenizerFactory = new DefaultTokenizerFactory();
+			this.tokenizerFactory.setTokenPreProcessor(new CommonPreprocessor());
+		}
+
+		/**
+		 * Provide the WordVectors instance that should be used for training
+		 */
+		public Builder wordVectors(WordVectors wordVectors) {
+			this.wordVectors = wordVectors;
+			return this;
+		}
+
+		/**
+		 * The {@link TokenizerFactory} that should be used. Defaults to
+		 * {@link DefaultTokenizerFactory}
+		 */
+		public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
+			this.tokenizerFactory = tokenizerFactory;
+			return this;
+		}
+
+		/**
+		 * Minibatch size to use for the DataSetIterator
+		 */
+		public Builder minibatchSize(int minibatchSize) {
+			this.minibatchSize = minibatchSize;
+			return this;
+		}
+
+		/**
+		 * Maximum sentence/document length. If sentences exceed this, they will be
+		 * truncated to this length by taking the first 'maxSentenceLength' known words.
+		 */
+		public Builder maxSentenceLength(int maxSentenceLength) {
+			this.maxSentenceLength = maxSentenceLength;
+			return this;
+		}
+
+		/**
+		 * Emit Q and A on one shared time axis with a single input instead of separate
+		 * encoder and decoder inputs. Required for training with truncated BPTT.
+		 * Defaults to false.
+		 */
+		public Builder concatenateQA(boolean concatenateQA) {
+			this.concatenateQA = concatenateQA;
+			return this;
+		}
+
+		/**
+		 * Emit encoder and decoder inputs as [minibatch, 1, length] word vector indices
+		 * (see {@link ch.zhaw.iwi.deeplearning.WordVectorsEmbeddingInitializer})
+		 * instead of [minibatch, vectorSize, length] word vectors. The prediction
+		 * stays word vectors. Defaults to false.
+		 */
+		public Builder tokenIndices(boolean tokenIndices) {
+			this.tokenIndices = tokenIndices;
+			return this;
+		}
+
+		/**
+		 * Emit the prediction as [minibatch, 1, length] word vector indices instead of
+		 * [minibatch, vectorSize, length] word vectors, for an output layer over the
+		 * vocabulary. Defaults to false.
+		 */
+		public Builder labelIndices(boolean labelIndices) {
+			this.labelIndices = labelIndices;
+			return this;
+		}
+
+		/**
+		 * With label indices, only the first labelVocabularySize words of the
+		 * vocabulary are predicted, at most the whole vocabulary. Defaults to
+		 * {@link QAIterator4EncDecLSTM#DEFAULT_LABEL_VOCABULARY_SIZE}.
+		 */
+		public Builder labelVocabularySize(int labelVocabularySize) {
+			this.labelVocabularySize = labelVocabularySize;
+			return this;
+		}
+
+		/**
+		 * Hand out copies of the batches instead of the pooled arrays (see
+		 * {@link BatchBufferPool}), for consumers that keep batches. Defaults to
+		 * false.
+		 */
+		public Builder detachBatches(boolean detachBatches) {
+			this.detachBatches = detachBatches;
+			return this;
+		}
+
+		/**
+		 * Release the pooled arrays of a batch when the next batch is requested, as
+		 * fit and evaluate are done with a batch by then. DL4J must not prefetch
+		 * batches then, so asyncSupported() is false. Without, the consumer returns
+		 * each batch with release(batch); batches not released take their slot for
+		 * good, and once no slot is free, batches are allocated. Defaults to true.
+		 */
+		public Builder releaseOnNext(boolean releaseOnNext) {
+			this.releaseOnNext = releaseOnNext;
+			return this;
+		}
+
+		public QAIterator4EncDecLSTM build() {
+			if (wordVectors == null) {
+				throw new IllegalStateException("Cannot build QAIterator4EncDecLSTM without a WordVectors instance");
+			}
+
+			return new QAIterator4EncDecLSTM(this.trainingDataFile, this);
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package ch.zhaw.iwi.deeplearning.chatbot;
+
+import java.util.Map;
+
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.samediff.SDLayerParams;
+import org.deeplearning4j.nn.conf.layers.samediff.SameDiffOutputLayer;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.autodiff.samediff.SDVariable;
+import org.nd4j.autodiff.samediff.SameDiff;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Zurich University of Applied Sciences (ZHAW), Institute for Business
+ * Information Systems (IWI), Center for Information Systems and Technologies
+ * (CIS)
+ *
+ * Recurrent output layer with a softmax over nOut words, trained with a sampled
+ * softmax (Jean et al., On Using Very Large Target Vocabulary for Neural Machine
+ * Translation): per batch, numSampled negative words are drawn from a
+ * log-uniform (Zipf) distribution, which suits vocabularies sorted by
+ * frequency, and the loss of each step is a softmax over its label and these
+ * negatives only, corrected by their sampling probabilities. Training thus
+ * costs numSampled instead of nOut dot products per step, the full softmax is
+ * only computed at inference.
+ *
+ * Labels are [minibatch, 1, length] word indices plus one, 0 marks steps that
+ * are not predicted: SameDiff output layers are not given the labels mask. A
+ * negative that happens to be the label of a step is not removed.
+ *
+ * @author Alexandre de Spindler (desa@zhaw.ch)
+ *
+ */
+public class SampledSoftmaxOutputLayer extends SameDiffOutputLayer {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String WEIGHT_KEY = "W";
+	private static final String BIAS_KEY = "b";
+	private static final String ACTIVATIONS = "activations";
+
+	private long nIn;
+	private long nOut;
+	private int numSampled;
+
+	public SampledSoftmaxOutputLayer(long nIn, long nOut, int numSampled) {
+		this.nIn = nIn;
+		this.nOut = nOut;
+		this.numSampled = numSampled;
+	}
+
+	// for JSON deserialization
+	@SuppressWarnings("unused")
+	private SampledSoftmaxOutputLayer() {
+	}
+
+	@Override
+	public SDVariable defineLayer(SameDiff sd, SDVariable layerInput, SDVariable labels,
+			Map<String, SDVariable> paramTable) {
+
+		// [nOut, nIn], one row per word as in an embedding, and [nOut]
+		SDVariable weights = paramTable.get(WEIGHT_KEY);
+		SDVariable bias = sd.reshape(paramTable.get(BIAS_KEY), this.nOut);
+
+		// full softmax for inference: [minibatch, nIn, length] -> [minibatch, nOut,
+		// length]
+		SDVariable logits = sd.tensorMmul(layerInput, weights, new int[][] { { 1 }, { 1 } }).add(bias);
+		sd.permute(ACTIVATIONS, sd.nn().softmax(logits, 2), 0, 2, 1);
+
+		// sampled softmax for training, one row per step: [minibatch * length, nIn]
+		SDVariable steps = sd.reshape(sd.permute(layerInput, 0, 2, 1), -1, this.nIn);
+		SDVariable shiftedLabels = sd.reshape(labels, -1);
+		SDVariable mask = sd.castTo(sd.gt(shiftedLabels, 0), steps.dataType());
+		SDVariable trueIndices = sd.castTo(sd.nn().relu(shiftedLabels.sub(1), 0), DataType.INT);
+
+		// log-uniform: P(k) = log((k + 2) / (k + 1)) / log(nOut + 1), by inverse
+		// transform sampling
+		SDVariable uniform = sd.random().uniform(0, 1, this.numSampled);
+		SDVariable sampledIndices = sd.castTo(
+				sd.math().floor(sd.math().exp(uniform.mul(Math.log(this.nOut + 1)))).sub(1), DataType.INT);
+
+		SDVariable trueLogits = sd.sum(steps.mul(sd.gather(weights, trueIndices, 0)), 1)
+				.add(sd.gather(bias, trueIndices, 0))
+				.sub(this.logProbability(sd, trueIndices, steps.dataType()));
+		SDVariable sampledLogits = sd.mmul(steps, sd.transpose(sd.gather(weights, sampledIndices, 0)))
+				.add(sd.gather(bias, sampledIndices, 0))
+				.sub(this.logProbability(sd, sampledIndices, steps.dataType()));
+
+		SDVariable stepLosses = sd.math()
+				.logSumExp(sd.concat(1, sd.expandDims(trueLogits, 1), sampledLogits), 1)
+				.sub(trueLogits);
+		// summed, the score is divided by the minibatch size as for the other output
+		// layers
+		return sd.sum(stepLosses.mul(mask));
+	}
+
+	/**
+	 * @return log P(k) up to the constant -log(log(nOut + 1)), which cancels in
+	 *         the softmax
+	 */
+	private SDVariable logProbability(SameDiff sd, SDVariable indices, DataType dataType) {
+		return sd.math().log(sd.math().log1p(sd.castTo(indices, dataType).add(1).rdiv(1)));
+	}
+
+	@Override
+	public String activationsVertexName() {
+		return ACTIVATIONS;
+	}
+
+	@Override
+	public void defineParameters(SDLayerParams params) {
+		params.addWeightParam(WEIGHT_KEY, this.nOut, this.nIn);
+		params.addBiasParam(BIAS_KEY, 1, this.nOut);
+	}
+
+	@Override
+	public void initializeParameters(Map<String, INDArray> params) {
+		this.initWeights((int) this.nIn, (int) this.nOut, WeightInit.XAVIER, params.get(WEIGHT_KEY));
+		params.get(BIAS_KEY).assign(0);
+	}
+
+	@Override
+	public InputType getOutputType(int layerIndex, InputType inputType) {
+		return InputType.recurrent(this.nOut, ((InputType.InputTypeRecurrent) inputType).getTimeSeriesLength());
+	}
+
+	public long getNIn() {
+		return this.nIn;
+	}
+
+	public long getNOut() {
+		return this.nOut;
+	}
+
+	public int getNumSampled() {
+		return this.numSampled;
+	}
+
+}